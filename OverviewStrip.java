@@ -0,0 +1,265 @@
+package lah.widgets;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewTreeObserver;
+import lah.widgets.text.OverviewIndex;
+import lah.widgets.text.TexLexer;
+
+/**
+ * Thin strip showing an overview of the whole text of a {@link TextArea}: one bar per group of paragraphs, as long as
+ * their average length and colored with their dominant syntax style, and the visible part of the text on top
+ *
+ * The bars are rasterized into a bitmap from the summaries of the text's {@link OverviewIndex} and only the rows whose
+ * summaries changed are painted again. Paragraphs are grouped by a power of two and rows have a fixed height, so the
+ * mapping (and the whole bitmap) only changes when the number of paragraphs crosses a power of two. Touching the strip
+ * scrolls the text to the corresponding paragraph through {@link TextArea#scrollToParagraph(int)}, without laying out
+ * anything.
+ *
+ * @author L.A.H.
+ *
+ */
+public class OverviewStrip extends View implements OverviewIndex.Listener, ViewTreeObserver.OnScrollChangedListener {
+
+	/**
+	 * Average paragraph length drawn as a full-width bar
+	 */
+	private static final int FULL_LENGTH = 80;
+
+	/**
+	 * Maximal height of the row of a paragraph in short texts
+	 */
+	private static final int MAX_ROW_HEIGHT = 4;
+
+	private int mBackgroundColor = 0xFFF4F4F4;
+
+	private Bitmap mBitmap;
+
+	private Canvas mBitmapCanvas;
+
+	// Rows of the bitmap to paint again, mDirtyFrom > mDirtyTo if there is none
+	private int mDirtyFrom, mDirtyTo = Integer.MAX_VALUE;
+
+	// First paragraph of the viewport the last time it was drawn
+	private int mDrawnFirstParagraph = -1;
+
+	private final Paint mPaint = new Paint();
+
+	// Number of paragraphs per row, a power of two
+	private int mParagraphsPerRow = 1;
+
+	private int mRowHeight = 1;
+
+	private final int[] mStyleWeights = new int[TexLexer.STYLE_COUNT];
+
+	private TextArea mTextArea;
+
+	private int mViewportColor = 0x30000000;
+
+	public OverviewStrip(Context context) {
+		super(context);
+	}
+
+	public OverviewStrip(Context context, AttributeSet attrs) {
+		super(context, attrs);
+	}
+
+	public OverviewStrip(Context context, AttributeSet attrs, int defStyle) {
+		super(context, attrs, defStyle);
+	}
+
+	private void invalidateRows(int first, int last) {
+		mDirtyFrom = Math.min(mDirtyFrom, first);
+		mDirtyTo = Math.max(mDirtyTo, last);
+		invalidate();
+	}
+
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		getViewTreeObserver().addOnScrollChangedListener(this);
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		getViewTreeObserver().removeOnScrollChangedListener(this);
+		super.onDetachedFromWindow();
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		if (mBitmap == null || mTextArea == null)
+			return;
+		final OverviewIndex overview = mTextArea.getOverview();
+		updateMapping(overview.getLineCount());
+		final int rows = mBitmap.getHeight() / mRowHeight;
+		for (int row = mDirtyFrom; row <= mDirtyTo && row < rows; row++)
+			paintRow(overview, row);
+		mDirtyFrom = Integer.MAX_VALUE;
+		mDirtyTo = -1;
+		canvas.drawBitmap(mBitmap, getPaddingLeft(), getPaddingTop(), null);
+
+		if (mTextArea.getLayout() != null) {
+			final int first = mTextArea.getFirstVisibleParagraph();
+			final int last = mTextArea.getLastVisibleParagraph();
+			final int top = getPaddingTop() + first / mParagraphsPerRow * mRowHeight;
+			final int bottom = getPaddingTop() + (last / mParagraphsPerRow + 1) * mRowHeight;
+			mPaint.setColor(mViewportColor);
+			canvas.drawRect(getPaddingLeft(), top, getPaddingLeft() + mBitmap.getWidth(), bottom, mPaint);
+			mDrawnFirstParagraph = first;
+		}
+	}
+
+	@Override
+	public void onScrollChanged() {
+		if (mTextArea != null && mTextArea.getLayout() != null
+				&& mTextArea.getFirstVisibleParagraph() != mDrawnFirstParagraph)
+			invalidate();
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		if (mBitmap != null)
+			mBitmap.recycle();
+		final int width = w - getPaddingLeft() - getPaddingRight();
+		final int height = h - getPaddingTop() - getPaddingBottom();
+		if (width > 0 && height > 0) {
+			mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			mBitmapCanvas = new Canvas(mBitmap);
+		} else {
+			mBitmap = null;
+			mBitmapCanvas = null;
+		}
+		// Force a new mapping for the new height
+		mParagraphsPerRow = mRowHeight = 0;
+	}
+
+	public void onSummariesChanged(int firstLine, int lastLine) {
+		if (mBitmap == null)
+			return;
+		final int count = mTextArea.getOverview().getLineCount();
+		if (updateMapping(count)) {
+			invalidate();
+			return;
+		}
+		// When paragraphs were removed, the rows past the new end must be cleared as well
+		invalidateRows(firstLine / mParagraphsPerRow, lastLine >= count - 1 ? Integer.MAX_VALUE : lastLine
+				/ mParagraphsPerRow);
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		if (mTextArea == null || mTextArea.getLayout() == null || mBitmap == null)
+			return super.onTouchEvent(event);
+		switch (event.getActionMasked()) {
+		case MotionEvent.ACTION_DOWN:
+			getParent().requestDisallowInterceptTouchEvent(true);
+			scrollToTouch(event);
+			return true;
+		case MotionEvent.ACTION_MOVE:
+			scrollToTouch(event);
+			return true;
+		case MotionEvent.ACTION_UP:
+		case MotionEvent.ACTION_CANCEL:
+			getParent().requestDisallowInterceptTouchEvent(false);
+			return true;
+		}
+		return super.onTouchEvent(event);
+	}
+
+	private void paintRow(OverviewIndex overview, int row) {
+		final int top = row * mRowHeight;
+		final int width = mBitmap.getWidth();
+		mPaint.setColor(mBackgroundColor);
+		mBitmapCanvas.drawRect(0, top, width, top + mRowHeight, mPaint);
+
+		final int first = row * mParagraphsPerRow;
+		final int last = Math.min(overview.getLineCount(), first + mParagraphsPerRow);
+		int length = 0, summarized = 0;
+		for (int s = 0; s < mStyleWeights.length; s++)
+			mStyleWeights[s] = 0;
+		for (int p = first; p < last; p++) {
+			final int summary = overview.getSummary(p);
+			if (summary == OverviewIndex.NONE)
+				continue;
+			length += OverviewIndex.getLength(summary);
+			mStyleWeights[OverviewIndex.getStyle(summary)] += OverviewIndex.getLength(summary);
+			summarized++;
+		}
+		if (length == 0)
+			return;
+		int style = TexLexer.STYLE_DEFAULT;
+		for (int s = 0; s < mStyleWeights.length; s++) {
+			if (mStyleWeights[s] > mStyleWeights[style])
+				style = s;
+		}
+		final int bar = Math.max(1, (int) ((long) width * Math.min(length / summarized, FULL_LENGTH) / FULL_LENGTH));
+		mPaint.setColor(mTextArea.getSyntaxColor(style));
+		mBitmapCanvas.drawRect(0, top, bar, top + mRowHeight, mPaint);
+	}
+
+	/**
+	 * Center the viewport of the text area on the touched paragraph
+	 */
+	private void scrollToTouch(MotionEvent event) {
+		// A touch may come before the first draw after a size change, which resets the mapping
+		if (updateMapping(mTextArea.getOverview().getLineCount()))
+			invalidate();
+		final int row = Math.max(0, (int) event.getY() - getPaddingTop()) / mRowHeight;
+		final int visible = mTextArea.getLastVisibleParagraph() - mTextArea.getFirstVisibleParagraph();
+		mTextArea.scrollToParagraph(row * mParagraphsPerRow - visible / 2);
+	}
+
+	/**
+	 * Set the colors of the background and of the indicator of the visible part of the text
+	 */
+	public void setColors(int backgroundColor, int viewportColor) {
+		mBackgroundColor = backgroundColor;
+		mViewportColor = viewportColor;
+		invalidateRows(0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Show the overview of the text area, null to show nothing
+	 */
+	public void setTextArea(TextArea textArea) {
+		if (mTextArea != null)
+			mTextArea.getOverview().setListener(null);
+		mTextArea = textArea;
+		if (mTextArea != null)
+			mTextArea.getOverview().setListener(this);
+		invalidateRows(0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Compute the number of paragraphs per row and the row height for the number of paragraphs
+	 *
+	 * @return whether the mapping changed, in which case the whole bitmap is marked to be painted again
+	 */
+	private boolean updateMapping(int count) {
+		final int height = mBitmap.getHeight();
+		int perRow = 1, rowHeight = 1;
+		if (count <= height) {
+			rowHeight = MAX_ROW_HEIGHT;
+			while (rowHeight > 1 && count * rowHeight > height)
+				rowHeight >>= 1;
+		} else {
+			while ((count + perRow - 1) / perRow > height)
+				perRow <<= 1;
+		}
+		if (perRow == mParagraphsPerRow && rowHeight == mRowHeight)
+			return false;
+		mParagraphsPerRow = perRow;
+		mRowHeight = rowHeight;
+		mDirtyFrom = 0;
+		mDirtyTo = Integer.MAX_VALUE;
+		return true;
+	}
+
+}
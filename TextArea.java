@@ -2,9 +2,12 @@ package lah.widgets;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
+import android.content.ClipData;
 import android.content.ClipboardManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.res.ColorStateList;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Canvas;
 import android.graphics.Paint;
@@ -27,16 +30,20 @@ import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.SpannedString;
 import android.text.TextPaint;
-import android.text.TextWatcher;
 import android.text.method.MetaKeyKeyListener;
 import android.text.style.CharacterStyle;
+import android.text.style.MetricAffectingSpan;
 import android.text.style.ParagraphStyle;
 import android.text.style.UpdateAppearance;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
 import android.util.TypedValue;
 import android.view.DragEvent;
 import android.view.Gravity;
+import android.view.HapticFeedbackConstants;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.VelocityTracker;
 import android.view.View;
 import android.view.ViewConfiguration;
 import android.view.ViewDebug;
@@ -47,12 +54,39 @@ import android.view.ViewTreeObserver;
 import android.view.WindowManager;
 import android.view.animation.AnimationUtils;
 import android.view.inputmethod.BaseInputConnection;
+import android.view.inputmethod.CompletionInfo;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputConnection;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.PopupWindow;
 import android.widget.RemoteViews.RemoteView;
 import android.widget.Scroller;
+import java.io.IOException;
+import lah.widgets.text.BracketIndex;
+import lah.widgets.text.CaretSet;
+import lah.widgets.text.CharBufferPool;
+import lah.widgets.text.ColumnSelection;
+import lah.widgets.text.CompletionTrie;
+import lah.widgets.text.FastScrollThumb;
+import lah.widgets.text.FontCache;
+import lah.widgets.text.FoldMap;
+import lah.widgets.text.IncrementalHighlighter;
+import lah.widgets.text.LineIndex;
+import lah.widgets.text.LineNumberGutter;
+import lah.widgets.text.MatchList;
+import lah.widgets.text.MemoryUsage;
+import lah.widgets.text.OutlineIndex;
+import lah.widgets.text.OverviewIndex;
+import lah.widgets.text.SpellChecker;
+import lah.widgets.text.SpellDictionary;
+import lah.widgets.text.StyleRunBuffer;
+import lah.widgets.text.StyleRunStore;
+import lah.widgets.text.TexLexer;
+import lah.widgets.text.TextDocument;
+import lah.widgets.text.TextSearcher;
+import lah.widgets.text.TextSnapshot;
+import lah.widgets.text.TextWorker;
+import lah.widgets.text.WordBoundaryFinder;
 
 /**
  * Simple text editing widget
@@ -67,7 +101,8 @@ import android.widget.Scroller;
  */
 @RemoteView
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
-public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener, TextWatcher {
+public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener, TextDocument.Listener,
+		IncrementalHighlighter.Callback, SpellChecker.Callback, TextSearcher.Listener {
 
 	@SuppressLint("HandlerLeak")
 	public class Blink extends Handler implements Runnable {
@@ -149,10 +184,51 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			return false;
 		}
 
+		@Override
+		public boolean commitCompletion(CompletionInfo text) {
+			TextArea.this.beginBatchEdit();
+			TextArea.this.onCommitCompletion(text);
+			TextArea.this.endBatchEdit();
+			return true;
+		}
+
+		@Override
+		public boolean commitText(CharSequence text, int newCursorPosition) {
+			if (!editAtCarets(getComposingLength(), 0, text))
+				return super.commitText(text, newCursorPosition);
+			removeComposingSpans(mText);
+			return true;
+		}
+
+		@Override
+		public boolean deleteSurroundingText(int beforeLength, int afterLength) {
+			if (!editAtCarets(beforeLength, afterLength, ""))
+				return super.deleteSurroundingText(beforeLength, afterLength);
+			return true;
+		}
+
+		/**
+		 * @return the length of the composing text ending at the cursor, which is replaced at every caret
+		 */
+		private int getComposingLength() {
+			final int start = getComposingSpanStart(mText), end = getComposingSpanEnd(mText);
+			return start >= 0 && end == getSelectionStart() ? end - start : 0;
+		}
+
 		@Override
 		public Editable getEditable() {
 			return TextArea.this.mText;
 		}
+
+		@Override
+		public boolean setComposingText(CharSequence text, int newCursorPosition) {
+			if (!editAtCarets(getComposingLength(), 0, text))
+				return super.setComposingText(text, newCursorPosition);
+			// The input method tracks the composing text at the primary caret only
+			final int cursor = getSelectionStart();
+			setComposingRegion(cursor - text.length(), cursor);
+			return true;
+		}
 	}
 
 	public abstract class HandleView extends View implements TextViewPositionListener {
@@ -161,6 +237,8 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		private static final int TOUCH_UP_FILTER_DELAY_AFTER = 150;
 		private static final int TOUCH_UP_FILTER_DELAY_BEFORE = 350;
 		private final PopupWindow mContainer;
+		// Position of mContainer in the window when it was last shown or moved
+		private int mContainerX, mContainerY;
 		protected Drawable mDrawable;
 		protected Drawable mDrawableLtr;
 		protected Drawable mDrawableRtl;
@@ -348,7 +426,7 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 				final int line = layout.getLineForOffset(offset);
 
 				mPositionX = (int) (layout.getPrimaryHorizontal(offset) - 0.5f - mHotspotX);
-				mPositionY = layout.getLineBottom(line);
+				mPositionY = toVisualVertical(layout.getLineBottom(line));
 
 				// Take TextView's padding and scroll into account.
 				mPositionX += viewportToContentHorizontalOffset();
@@ -403,11 +481,13 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 				if (isVisible()) {
 					final int positionX = parentPositionX + mPositionX;
 					final int positionY = parentPositionY + mPositionY;
-					if (isShowing()) {
-						mContainer.update(positionX, positionY, -1, -1);
-					} else {
+					if (!isShowing()) {
 						mContainer.showAtLocation(this, Gravity.NO_GRAVITY, positionX, positionY);
+					} else if (positionX != mContainerX || positionY != mContainerY) {
+						mContainer.update(positionX, positionY, -1, -1);
 					}
+					mContainerX = positionX;
+					mContainerY = positionY;
 				} else {
 					if (isShowing()) {
 						dismiss();
@@ -581,12 +661,22 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
-	public class PositionListener implements ViewTreeObserver.OnPreDrawListener {
+	/**
+	 * Tracker of the position of the TextView in its window for the handles
+	 * 
+	 * The position is only queried again after a layout pass or a scroll somewhere in the view tree, the only events
+	 * which can move the TextView in its window, so that frames in which nothing moved do not walk up the hierarchy.
+	 * Subscribers are kept packed at the start of the array.
+	 */
+	public class PositionListener implements ViewTreeObserver.OnPreDrawListener,
+			ViewTreeObserver.OnGlobalLayoutListener, ViewTreeObserver.OnScrollChangedListener {
 		// 3 handles
 		private final int MAXIMUM_NUMBER_OF_LISTENERS = 6;
 		private boolean mCanMove[] = new boolean[MAXIMUM_NUMBER_OF_LISTENERS];
 		private int mNumberOfListeners;
 		private boolean mPositionHasChanged = true;
+		// Whether the position in the window has to be queried again before the next frame
+		private boolean mPositionIsStale = true;
 		private TextViewPositionListener[] mPositionListeners = new TextViewPositionListener[MAXIMUM_NUMBER_OF_LISTENERS];
 		// Absolute position of the TextView with respect to its parent window
 		private int mPositionX, mPositionY;
@@ -594,24 +684,21 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		final int[] mTempCoords = new int[2];
 
 		public void addSubscriber(TextViewPositionListener positionListener, boolean canMove) {
+			for (int i = 0; i < mNumberOfListeners; i++) {
+				if (mPositionListeners[i] == positionListener)
+					return;
+			}
+
 			if (mNumberOfListeners == 0) {
 				updatePosition();
 				ViewTreeObserver vto = getViewTreeObserver();
 				vto.addOnPreDrawListener(this);
+				vto.addOnGlobalLayoutListener(this);
+				vto.addOnScrollChangedListener(this);
 			}
 
-			int emptySlotIndex = -1;
-			for (int i = 0; i < MAXIMUM_NUMBER_OF_LISTENERS; i++) {
-				TextViewPositionListener listener = mPositionListeners[i];
-				if (listener == positionListener) {
-					return;
-				} else if (emptySlotIndex < 0 && listener == null) {
-					emptySlotIndex = i;
-				}
-			}
-
-			mPositionListeners[emptySlotIndex] = positionListener;
-			mCanMove[emptySlotIndex] = canMove;
+			mPositionListeners[mNumberOfListeners] = positionListener;
+			mCanMove[mNumberOfListeners] = canMove;
 			mNumberOfListeners++;
 		}
 
@@ -623,16 +710,23 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			return mPositionY;
 		}
 
+		@Override
+		public void onGlobalLayout() {
+			mPositionIsStale = true;
+		}
+
 		@Override
 		public boolean onPreDraw() {
-			updatePosition();
+			if (mPositionIsStale) {
+				updatePosition();
+			} else {
+				mPositionHasChanged = false;
+			}
 
-			for (int i = 0; i < MAXIMUM_NUMBER_OF_LISTENERS; i++) {
+			for (int i = 0; i < mNumberOfListeners; i++) {
 				if (mPositionHasChanged || mScrollHasChanged || mCanMove[i]) {
-					TextViewPositionListener positionListener = mPositionListeners[i];
-					if (positionListener != null) {
-						positionListener.updatePosition(mPositionX, mPositionY, mPositionHasChanged, mScrollHasChanged);
-					}
+					mPositionListeners[i].updatePosition(mPositionX, mPositionY, mPositionHasChanged,
+							mScrollHasChanged);
 				}
 			}
 
@@ -640,23 +734,45 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			return true;
 		}
 
+		/**
+		 * Called after a scroll anywhere in the view tree, including one of this TextView. This happens after the
+		 * pre-draw pass of the frame, so the position is only marked stale and a frame is requested, whose pre-draw pass
+		 * queries it once.
+		 */
+		@Override
 		public void onScrollChanged() {
+			mPositionIsStale = true;
+			invalidate();
+		}
+
+		/**
+		 * Called when this TextView scrolled, before the scroll is dispatched to the view tree
+		 */
+		public void onTextScrolled() {
 			mScrollHasChanged = true;
 		}
 
 		public void removeSubscriber(TextViewPositionListener positionListener) {
-			for (int i = 0; i < MAXIMUM_NUMBER_OF_LISTENERS; i++) {
+			for (int i = 0; i < mNumberOfListeners; i++) {
 				if (mPositionListeners[i] == positionListener) {
-					mPositionListeners[i] = null;
+					// Move the last subscriber into the slot
 					mNumberOfListeners--;
-					break;
+					mPositionListeners[i] = mPositionListeners[mNumberOfListeners];
+					mCanMove[i] = mCanMove[mNumberOfListeners];
+					mPositionListeners[mNumberOfListeners] = null;
+					if (mNumberOfListeners == 0)
+						removeTreeListeners();
+					return;
 				}
 			}
+		}
 
-			if (mNumberOfListeners == 0) {
-				ViewTreeObserver vto = getViewTreeObserver();
-				vto.removeOnPreDrawListener(this);
-			}
+		@SuppressWarnings("deprecation")
+		private void removeTreeListeners() {
+			ViewTreeObserver vto = getViewTreeObserver();
+			vto.removeOnPreDrawListener(this);
+			vto.removeGlobalOnLayoutListener(this);
+			vto.removeOnScrollChangedListener(this);
 		}
 
 		private void updatePosition() {
@@ -664,14 +780,189 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			mPositionHasChanged = mTempCoords[0] != mPositionX || mTempCoords[1] != mPositionY;
 			mPositionX = mTempCoords[0];
 			mPositionY = mTempCoords[1];
+			mPositionIsStale = false;
 		}
 	}
 
-	public static class TextUtils {
+	public class SelectionEndHandleView extends HandleView {
+
+		public SelectionEndHandleView(Drawable drawableLtr, Drawable drawableRtl) {
+			super(drawableLtr, drawableRtl);
+		}
+
+		@Override
+		public int getCurrentCursorOffset() {
+			return getSelectionEnd();
+		}
+
+		@Override
+		protected int getHotspotX(Drawable drawable, boolean isRtlRun) {
+			if (isRtlRun) {
+				return (drawable.getIntrinsicWidth() * 3) / 4;
+			} else {
+				return drawable.getIntrinsicWidth() / 4;
+			}
+		}
+
+		@Override
+		public void updatePosition(float x, float y) {
+			int offset = getOffsetForPosition(x, y);
+
+			// Handles can not cross and selection is at least one character
+			final int selectionStart = getSelectionStart();
+			if (offset <= selectionStart)
+				offset = Math.min(selectionStart + 1, mText.length());
+
+			positionAtCursorOffset(offset, false);
+		}
+
+		@Override
+		public void updateSelection(int offset) {
+			Selection.setSelection(getText(), getSelectionStart(), offset);
+			updateDrawable();
+		}
+	}
+
+	/**
+	 * Controller of a range selection with a handle at each end, started by a long-press or a double-tap on a word
+	 */
+	public class SelectionModifierCursorController implements CursorController {
+		private float mDownPositionX, mDownPositionY;
+		private SelectionEndHandleView mEndHandle;
+		private boolean mGestureStayedInTapRegion;
+		private long mPreviousTapUpTime = 0;
+		private SelectionStartHandleView mStartHandle;
+
+		public void hide() {
+			if (mStartHandle != null)
+				mStartHandle.hide();
+			if (mEndHandle != null)
+				mEndHandle.hide();
+		}
+
+		private void initHandles() {
+			if (mSelectHandleLeft == null)
+				mSelectHandleLeft = getResources().getDrawable(mTextSelectHandleLeftRes);
+			if (mSelectHandleRight == null)
+				mSelectHandleRight = getResources().getDrawable(mTextSelectHandleRightRes);
+			if (mStartHandle == null)
+				mStartHandle = new SelectionStartHandleView(mSelectHandleLeft, mSelectHandleRight);
+			if (mEndHandle == null)
+				mEndHandle = new SelectionEndHandleView(mSelectHandleRight, mSelectHandleLeft);
+			mStartHandle.show();
+			mEndHandle.show();
+		}
+
+		public boolean isSelectionStartDragged() {
+			return mStartHandle != null && mStartHandle.isDragging();
+		}
+
+		@Override
+		public void onDetached() {
+			final ViewTreeObserver observer = getViewTreeObserver();
+			observer.removeOnTouchModeChangeListener(this);
+
+			if (mStartHandle != null)
+				mStartHandle.onDetached();
+			if (mEndHandle != null)
+				mEndHandle.onDetached();
+		}
+
+		/**
+		 * Detect a double-tap, which selects the word under it
+		 */
+		public void onTouchEvent(MotionEvent event) {
+			switch (event.getActionMasked()) {
+			case MotionEvent.ACTION_DOWN: {
+				final float x = event.getX();
+				final float y = event.getY();
+				if (mGestureStayedInTapRegion
+						&& SystemClock.uptimeMillis() - mPreviousTapUpTime <= ViewConfiguration.getDoubleTapTimeout()) {
+					final float deltaX = x - mDownPositionX;
+					final float deltaY = y - mDownPositionY;
+					final int doubleTapSlop = ViewConfiguration.get(getContext()).getScaledDoubleTapSlop();
+					if (deltaX * deltaX + deltaY * deltaY < doubleTapSlop * doubleTapSlop
+							&& selectCurrentWord(getOffsetForPosition(x, y))) {
+						show();
+						mDiscardNextActionUp = true;
+					}
+				}
+				mDownPositionX = x;
+				mDownPositionY = y;
+				mGestureStayedInTapRegion = true;
+				break;
+			}
+
+			case MotionEvent.ACTION_MOVE:
+				if (mGestureStayedInTapRegion) {
+					final float deltaX = event.getX() - mDownPositionX;
+					final float deltaY = event.getY() - mDownPositionY;
+					final int doubleTapTouchSlop = ViewConfiguration.get(getContext()).getScaledTouchSlop();
+					if (deltaX * deltaX + deltaY * deltaY > doubleTapTouchSlop * doubleTapTouchSlop)
+						mGestureStayedInTapRegion = false;
+				}
+				break;
+
+			case MotionEvent.ACTION_UP:
+				mPreviousTapUpTime = SystemClock.uptimeMillis();
+				break;
+			}
+		}
+
+		public void onTouchModeChanged(boolean isInTouchMode) {
+			if (!isInTouchMode) {
+				hide();
+			}
+		}
+
+		public void show() {
+			if (isInBatchEditMode())
+				return;
+			initHandles();
+			hideInsertionPointCursorController();
+		}
+	}
+
+	public class SelectionStartHandleView extends HandleView {
+
+		public SelectionStartHandleView(Drawable drawableLtr, Drawable drawableRtl) {
+			super(drawableLtr, drawableRtl);
+		}
+
+		@Override
+		public int getCurrentCursorOffset() {
+			return getSelectionStart();
+		}
+
+		@Override
+		protected int getHotspotX(Drawable drawable, boolean isRtlRun) {
+			if (isRtlRun) {
+				return drawable.getIntrinsicWidth() / 4;
+			} else {
+				return (drawable.getIntrinsicWidth() * 3) / 4;
+			}
+		}
+
+		@Override
+		public void updatePosition(float x, float y) {
+			int offset = getOffsetForPosition(x, y);
+
+			// Handles can not cross and selection is at least one character
+			final int selectionEnd = getSelectionEnd();
+			if (offset >= selectionEnd)
+				offset = Math.max(0, selectionEnd - 1);
 
-		private static Object sLock = new Object();
+			positionAtCursorOffset(offset, false);
+		}
+
+		@Override
+		public void updateSelection(int offset) {
+			Selection.setSelection(getText(), offset, getSelectionEnd());
+			updateDrawable();
+		}
+	}
 
-		private static char[] sTemp = null;
+	public static class TextUtils {
 
 		public static void getChars(CharSequence s, int start, int end, char[] dest, int destoff) {
 			Class<? extends CharSequence> c = s.getClass();
@@ -716,18 +1007,13 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 				return false;
 		}
 
+		/**
+		 * Get a temporary buffer of at least len chars from the pool of the calling thread
+		 * 
+		 * @see CharBufferPool
+		 */
 		static char[] obtain(int len) {
-			char[] buf;
-
-			synchronized (sLock) {
-				buf = sTemp;
-				sTemp = null;
-			}
-
-			if (buf == null || buf.length < len)
-				buf = new char[idealCharArraySize(len)];
-
-			return buf;
+			return CharBufferPool.get().obtain(len);
 		}
 
 		/**
@@ -741,13 +1027,24 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			return (((long) start) << 32) | end;
 		}
 
+		/**
+		 * Give back a buffer obtained by {@link #obtain(int)} on the same thread
+		 */
 		static void recycle(char[] temp) {
-			if (temp.length > 1000)
-				return;
+			CharBufferPool.get().recycle(temp);
+		}
 
-			synchronized (sLock) {
-				sTemp = temp;
+		/**
+		 * Returns true if the string occurs in the text at the given offset, false if the offset is out of range.
+		 */
+		static boolean regionMatches(CharSequence text, int offset, String s) {
+			if (offset < 0 || offset + s.length() > text.length())
+				return false;
+			for (int i = 0; i < s.length(); i++) {
+				if (text.charAt(offset + i) != s.charAt(i))
+					return false;
 			}
+			return true;
 		}
 
 		public static CharSequence stringOrSpannedString(CharSequence source) {
@@ -814,10 +1111,82 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 				boolean parentScrolled);
 	}
 
+	/**
+	 * Forwards the memory trim events of the application to the text area while it is attached
+	 */
+	private class TrimCallbacks implements ComponentCallbacks2 {
+
+		@Override
+		public void onConfigurationChanged(Configuration newConfig) {
+		}
+
+		@Override
+		public void onLowMemory() {
+			onTrimMemory(TRIM_MEMORY_COMPLETE);
+		}
+
+		@Override
+		public void onTrimMemory(int level) {
+			TextArea.this.onTrimMemory(level);
+		}
+
+	}
+
+	/**
+	 * Pinch-to-zoom: the existing layout is drawn scaled during the gesture and the text size is only changed, with a
+	 * single relayout, when it ends
+	 */
+	private class ZoomListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
+
+		@Override
+		public boolean onScale(ScaleGestureDetector detector) {
+			final float size = mTextPaint.getTextSize();
+			final DisplayMetrics metrics = getResources().getDisplayMetrics();
+			final float min = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, MIN_ZOOM_TEXT_SIZE, metrics);
+			final float max = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, MAX_ZOOM_TEXT_SIZE, metrics);
+			mZoomScale = Math.max(min / size, Math.min(mZoomScale * detector.getScaleFactor(), max / size));
+			mZoomFocusX = detector.getFocusX();
+			mZoomFocusY = detector.getFocusY();
+			invalidate();
+			return true;
+		}
+
+		@Override
+		public boolean onScaleBegin(ScaleGestureDetector detector) {
+			if (mLayout == null)
+				return false;
+			mZooming = true;
+			mZoomScale = 1;
+			mIsBeingDragged = false;
+			stopFling();
+			cancelLongPress();
+			setPressed(false);
+			hideControllers();
+			return true;
+		}
+
+		@Override
+		public void onScaleEnd(ScaleGestureDetector detector) {
+			final float scale = mZoomScale;
+			mZoomScale = 1;
+			if (scale == 1 || mLayout == null) {
+				invalidate();
+				return;
+			}
+			// Keep the first visible paragraph at the top once the text is laid out with the new size
+			mDeferScrollParagraph = getFirstVisibleParagraph();
+			setRawTextSize(mTextPaint.getTextSize() * scale);
+		}
+	}
+
 	private static final int ANIMATED_SCROLL_GAP = 250;
 
 	static final int BLINK = 500;
 
+	// Font of a new text area, size in pixels
+	private static final int DEFAULT_PAINT_FLAGS = Paint.ANTI_ALIAS_FLAG;
+	private static final float DEFAULT_TEXT_SIZE = 20;
+
 	// private static final int CHANGE_WATCHER_PRIORITY = 100;
 
 	// static final boolean DEBUG_EXTRACT = false;
@@ -826,29 +1195,32 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 
 	static final int EXTRACT_UNKNOWN = -1;
 
+	// Drawn after the line preceding a collapsed range
+	private static final String FOLD_MARKER = "\u2026";
+
 	static long LAST_CUT_OR_COPY_TIME;
 
-	private static final int LINES = 1, EMS = LINES, PIXELS = 2;
+	// Estimated bytes held by the layout per line and by the text per span
+	private static final int LAYOUT_LINE_BYTES = 24, SPAN_BYTES = 32;
 
+	private static final int LINES = 1, EMS = LINES, PIXELS = 2;
 	static final String LOG_TAG = "TextView";
 
-	private static final float[] TEMP_POSITION = new float[2];
-
-	private static final RectF TEMP_RECTF = new RectF();
+	// Bounds of the text size in sp reachable by pinch-to-zoom
+	private static final float MAX_ZOOM_TEXT_SIZE = 72, MIN_ZOOM_TEXT_SIZE = 8;
 
-	// XXX should be much larger
-	private static final int VERY_WIDE = 1024 * 1024;
+	// Delay in ms before the memory budget is checked after a cache grew, as the estimate enumerates the spans
+	private static final int MEMORY_CHECK_DELAY = 1000;
 
 	/*
-	 * Kick-start the font cache for the zygote process (to pay the cost of initializing freetype for our default font
-	 * only once).
+	 * Caches dropped by trimMemory(), in priority order: style runs and spell checking results outside of the visible
+	 * paragraphs and the temporary buffers, the summaries of an overview nobody shows, the completion trie, and the
+	 * layout of a hidden text area
 	 */
-	static {
-		Paint p = new Paint();
-		p.setAntiAlias(true);
-		// We don't care about the result, just the side-effect of measuring.
-		p.measureText("H");
-	}
+	private static final int TRIM_RENDER_AHEAD = 0, TRIM_UNUSED_INDEXES = 1, TRIM_COMPLETIONS = 2, TRIM_LAYOUT = 3;
+
+	// XXX should be much larger
+	private static final int VERY_WIDE = 1024 * 1024;
 
 	private static int desired(Layout layout) {
 		int n = layout.getLineCount();
@@ -874,10 +1246,66 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return (int) ((lx + 0x800000) >> 24);
 	}
 
+	/**
+	 * @return the offset after [start, start + before) was replaced by after characters, moved to start if it was in
+	 *         the replaced range
+	 */
+	private static int shiftOffset(int offset, int start, int before, int after) {
+		if (offset >= start + before)
+			return offset + after - before;
+		return Math.min(offset, start);
+	}
+
+	/**
+	 * Load the default monospace font of the text areas and measure its ASCII advance widths on a background thread,
+	 * e.g. from Application.onCreate(), so that the first text area is drawn without paying for it. This is optional
+	 * and never blocks: a text area created before the warm-up is done measures the font itself.
+	 */
+	public static void warmUpFont(Context context) {
+		FontCache.warmUp(Typeface.MONOSPACE, Typeface.BOLD, DEFAULT_TEXT_SIZE,
+				context.getResources().getDisplayMetrics().density, DEFAULT_PAINT_FLAGS);
+	}
+
 	private Blink mBlink;
 
+	// Brackets and environments of mText, null if bracket matching is disabled
+	private BracketIndex mBracketIndex;
+
+	// Bracket at the cursor and its partner, cached until the cursor or the text changes
+	private final BracketIndex.Match mBracketMatch = new BracketIndex.Match();
+
+	int mBracketMatchColor = 0x4400A0FF;
+
+	// Whether mBracketMatch is drawn
+	private boolean mBracketMatchShown;
+
+	int mBracketMismatchColor = 0x66FF0000;
+
+	// Additional carets, edited along with the cursor
+	private final CaretSet mCarets = new CaretSet();
+
 	ClipboardManager mClipboard;
 
+	// Rectangular selection, drawn and edited apart from the selection of the text
+	private final ColumnSelection mColumnSelection = new ColumnSelection();
+
+	private boolean mCompletionEnabled;
+
+	// Ids in mCompletionTrie of the completions shown and of the last lookup
+	private final int[] mCompletionIds = new int[CompletionTrie.MAX_RESULTS],
+			mCompletionLookup = new int[CompletionTrie.MAX_RESULTS];
+
+	private CompletionInfo[] mCompletions;
+
+	// Start of the word being completed, -1 if there is no completion
+	private int mCompletionStart = -1;
+
+	// Dictionary and document words, null until loaded in the background
+	private CompletionTrie mCompletionTrie;
+
+	// Whether a trie is being loaded by loadCompletionTrie()
+	private boolean mCompletionTrieLoading;
+
 	int mCursorCount; // Current number of used mCursorDrawable: 0 (resource=0), 1 or 2 (split)
 
 	private final Drawable[] mCursorDrawable = new Drawable[2];
@@ -890,19 +1318,45 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 
 	private int mDeferScroll = -1;
 
+	// Paragraph to scroll to the top after the next layout, -1 if none
+	private int mDeferScrollParagraph = -1;
+
 	private int mDesiredHeightAtMeasure = -1;
 
+	// Generation of the document when the view was detached from it
+	private int mDetachedGeneration;
+
 	boolean mDiscardNextActionUp;
 
 	private boolean mDispatchTemporaryDetach;
 
+	// Text, line index and layouts shared with the other views showing the same text
+	private TextDocument mDocument;
+
+	// Whether the view stopped listening to mDocument when detached from its window
+	private boolean mDocumentDetached;
+
+	// Fast-scroll thumb, null if fast scrolling is disabled
+	private FastScrollThumb mFastScroll;
+
+	// Direction of the current fling: 1 towards the end of the text, -1 towards its start, 0 if there is none
+	private int mFlingDirection;
+
+	// Paragraphs visible when the current fling stops, prefetched while it runs
+	private int mFlingFirstParagraph, mFlingLastParagraph;
+
+	// Shared font of the text, derived from mTypeface and mTypefaceStyle and applied to mTextPaint
+	private FontCache.Font mFont;
+
 	private int mGravity = Gravity.TOP | Gravity.START;
 
 	int mHighlightColor = 0x6633B5E5;
 
 	private final Paint mHighlightPaint;
 
-	private Path mHighlightPath;
+	private IncrementalHighlighter mHighlighter;
+
+	private final Path mHighlightPath = new Path();
 
 	private boolean mHighlightPathBogus = true;
 
@@ -922,24 +1376,48 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 
 	InsertionPointCursorController mInsertionPointCursorController;
 
+	// Whether the current touch gesture scrolls the text
+	private boolean mIsBeingDragged;
+
 	float mLastDownPositionX, mLastDownPositionY;
 
 	int mLastLayoutHeight;
 
+	private float mLastMotionY;
+
 	private long mLastScroll;
 
 	private DynamicLayout mLayout;
 
+	// Start offsets of the paragraphs of mText, maintained by mDocument
+	private LineIndex mLineIndex;
+
 	private ColorStateList mLinkTextColor;
 
 	private int mMaximum = Integer.MAX_VALUE;
 
 	private int mMaxMode = LINES;
 
+	private final int mMaximumFlingVelocity, mMinimumFlingVelocity;
+
 	private int mMaxWidth = Integer.MAX_VALUE;
 
 	private int mMaxWidthMode = PIXELS;
 
+	// Estimated bytes the caches of the text area should fit in, 0 for no budget
+	private long mMemoryBudget;
+
+	private boolean mMemoryCheckPosted;
+
+	private final Runnable mMemoryChecker = new Runnable() {
+		public void run() {
+			mMemoryCheckPosted = false;
+			enforceMemoryBudget();
+		}
+	};
+
+	private final MemoryUsage mMemoryUsage = new MemoryUsage();
+
 	private int mMinimum = 0;
 
 	private int mMinMode = LINES;
@@ -948,31 +1426,110 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 
 	private int mMinWidthMode = PIXELS;
 
+	int mMisspelledColor = 0xFFFF3030;
+
 	private int mOldMaximum = mMaximum;
 
 	private int mOldMaxMode = mMaxMode;
 
-	// Global listener that detects changes in the global position of the TextView
+	// Sections, labels and refs of mText, created on the first call to getOutline()
+	private OutlineIndex mOutline;
+
+	// Paragraph summaries of mText for an OverviewStrip, created on the first call to getOverview()
+	private OverviewIndex mOverview;
+
+	// Global listener that detects changes in the global position of the TextView
 	private PositionListener mPositionListener = new PositionListener();
 
 	private boolean mPreDrawRegistered;
 
 	boolean mPreserveDetachedSelection;
 
+	// Detector of pinch-to-zoom gestures, null if zooming is disabled
+	private ScaleGestureDetector mScaleDetector;
+
 	private Scroller mScroller;
 
+	int mSearchHighlightColor = 0x66FFD600;
+
+	// Matches of the last search, shifted on edits
+	private final MatchList mSearchMatches = new MatchList();
+
+	private final Paint mSearchPaint;
+
+	private TextSearcher mSearcher;
+
 	private Drawable mSelectHandleCenter;
 
+	private Drawable mSelectHandleLeft, mSelectHandleRight;
+
+	private boolean mSelectionControllerEnabled;
+
+	SelectionModifierCursorController mSelectionModifierCursorController;
+
 	boolean mSelectionMoved;
 
+	// Selection of this view while another view of the document has the focus, -1 if not saved
+	private int mSavedSelStart = -1, mSavedSelEnd = -1;
+
 	private float mShadowRadius, mShadowDx, mShadowDy;
 
+	// Number of nested beginSpanBatch() calls
+	private int mSpanBatchNesting;
+
+	// Union of the ranges of the appearance spans changed since the last flush, -1 if none
+	private int mSpanDirtyStart = -1, mSpanDirtyEnd = -1;
+
+	// Whether a paragraph style changed since the last flush, which may move the lines below the dirty range
+	private boolean mSpanDirtyParagraph;
+
+	private final Runnable mSpanFlusher = new Runnable() {
+		public void run() {
+			mSpanFlushPosted = false;
+			if (mSpanBatchNesting == 0)
+				flushSpanChanges();
+		}
+	};
+
+	private boolean mSpanFlushPosted;
+
+	private SpellChecker mSpellChecker;
+
+	// Colors of the styles of the style runs, 0 to use the text color; indexed by the TexLexer styles
+	private final int[] mStyleColors = { 0, 0xFF0000C0, 0xFF808080, 0xFF008000, 0xFFA00000, 0xFFC06000, 0xFF800080 };
+
+	// Palette of paints to draw the style runs, derived from mTextPaint and mStyleColors
+	private final TextPaint[] mStylePaints = new TextPaint[TexLexer.STYLE_COUNT];
+
+	private boolean mStylePaintsBogus = true;
+
+	// Style runs of the paragraphs, drawn instead of the character spans of the paragraphs having some
+	private final StyleRunStore mStyleRuns = new StyleRunStore();
+
+	// Range of paragraphs whose style runs are up-to-date, empty if mStyledFirst > mStyledLast
+	private int mStyledFirst, mStyledLast = -1;
+
+	private final StyleRunBuffer mSyntaxRuns = new StyleRunBuffer();
+
 	private long mShowCursor;
 
 	private boolean mTemporaryDetach;
 
 	// tmp primitives, so we don't alloc them on each draw
-	private Rect mTempRect;
+	private final Rect mDrawClipRect = new Rect();
+
+	// Collapsed paragraph ranges, skipped by drawing, hit-testing and scrolling
+	private final FoldMap mFolds = new FoldMap();
+
+	// Line number gutter, null if line numbers are not shown
+	private LineNumberGutter mGutter;
+
+	// tmp primitives for the cursor, scroll and visibility computations, so that none of them allocates or locks
+	private final float[] mTempPosition = new float[2];
+
+	private final Rect mTempRect = new Rect();
+
+	private final RectF mTempRectF = new RectF();
 
 	@ViewDebug.ExportedProperty(category = "text")
 	private Editable mText = new SpannableStringBuilder();
@@ -981,25 +1538,60 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 
 	boolean mTextIsSelectable;
 
+	// Number of edits of mText, used to tell stale snapshots
+	private int mTextGeneration;
+
 	private final TextPaint mTextPaint;
 
-	// int mTextSelectHandleLeftRes = R.drawable.text_select_handle_left;
-	// int mTextSelectHandleRightRes = R.drawable.text_select_handle_right;
+	private TextSnapshot mTextSnapshot;
+
+	// Typeface and style requested by setTypeface()
+	private Typeface mTypeface;
+
+	private int mTypefaceStyle;
+
+	int mTextSelectHandleLeftRes = R.drawable.text_select_handle_left;
+	int mTextSelectHandleRightRes = R.drawable.text_select_handle_right;
 	int mTextSelectHandleRes = R.drawable.text_select_handle_middle;
 
 	boolean mTouchFocusSelected;
 
+	private final int mTouchSlop;
+
+	private final TrimCallbacks mTrimCallbacks = new TrimCallbacks();
+
+	private VelocityTracker mVelocityTracker;
+
+	private final WordBoundaryFinder mWordBoundaryFinder = new WordBoundaryFinder();
+
+	// Focus of the current pinch-to-zoom gesture in view coordinates
+	private float mZoomFocusX, mZoomFocusY;
+
+	// Whether the current touch gesture is a pinch-to-zoom
+	private boolean mZooming;
+
+	// Scale at which the layout is drawn during a pinch-to-zoom gesture
+	private float mZoomScale = 1;
+
 	public TextArea(Context context, AttributeSet attrs) {
 		super(context, attrs);
 		mIMM = (InputMethodManager) getContext().getSystemService(Context.INPUT_METHOD_SERVICE);
 		mClipboard = (ClipboardManager) getContext().getSystemService(Context.CLIPBOARD_SERVICE);
 		mIMS = new InputMethodState();
-		mTextPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+		mDocument = TextDocument.of(mText);
+		mDocument.addListener(this);
+		mLineIndex = mDocument.getLineIndex();
+		mTextPaint = new TextPaint(DEFAULT_PAINT_FLAGS);
 		mTextPaint.density = getResources().getDisplayMetrics().density;
 		mHighlightPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mSearchPaint = new Paint();
+		mSearchPaint.setStyle(Paint.Style.FILL);
+		final ViewConfiguration configuration = ViewConfiguration.get(context);
+		mTouchSlop = configuration.getScaledTouchSlop();
+		mMinimumFlingVelocity = configuration.getScaledMinimumFlingVelocity();
+		mMaximumFlingVelocity = configuration.getScaledMaximumFlingVelocity();
 		setTextColor(0xFF000000);
-		setRawTextSize(20);
-		setTypeface(Typeface.MONOSPACE, Typeface.BOLD);
+		setFont(Typeface.MONOSPACE, Typeface.BOLD, DEFAULT_TEXT_SIZE, DEFAULT_PAINT_FLAGS);
 		setFocusable(true);
 		setClickable(true);
 		setLongClickable(true);
@@ -1009,6 +1601,20 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		mCursorDrawable[0] = getContext().getResources().getDrawable(R.drawable.text_select_handle_middle);
 	}
 
+	/**
+	 * Add a caret at the offset, e.g. on each row of a tabular environment: text typed or deleted through the input
+	 * method is then applied at the cursor and at every caret as a single edit. The carets are removed by a tap.
+	 * 
+	 * @return false if there already is a caret at the offset
+	 */
+	public boolean addCaret(int offset) {
+		if (offset < 0 || offset > mText.length() || offset == getSelectionStart() || !mCarets.add(offset))
+			return false;
+		mHighlightPathBogus = true;
+		invalidateCursor();
+		return true;
+	}
+
 	/**
 	 * Convenience method: Append the specified text to the TextView's display buffer, upgrading it to
 	 * BufferType.EDITABLE if it was not already editable.
@@ -1025,6 +1631,25 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		mText.append(text, start, end);
 	}
 
+	/**
+	 * Add a range whose appearance changed to the dirty range of the current frame, scheduling a flush unless a span
+	 * batch is open.
+	 */
+	private void addSpanDirtyRange(int start, int end, boolean paragraph) {
+		if (mSpanDirtyStart < 0) {
+			mSpanDirtyStart = start;
+			mSpanDirtyEnd = end;
+		} else {
+			mSpanDirtyStart = Math.min(mSpanDirtyStart, start);
+			mSpanDirtyEnd = Math.max(mSpanDirtyEnd, end);
+		}
+		mSpanDirtyParagraph |= paragraph;
+		if (mSpanBatchNesting == 0 && !mSpanFlushPosted) {
+			mSpanFlushPosted = true;
+			postOnAnimation(mSpanFlusher);
+		}
+	}
+
 	/**
 	 * Make a new Layout based on the already-measured size of the view, on the assumption that it was measured
 	 * correctly at some point.
@@ -1062,6 +1687,14 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
+	/**
+	 * Start a bulk update of spans: appearance changes are accumulated until the matching {@link #endSpanBatch()}
+	 * which issues a single invalidation covering all of them. Calls can be nested.
+	 */
+	public void beginSpanBatch() {
+		mSpanBatchNesting++;
+	}
+
 	/**
 	 * Move the point, specified by the offset, into the view if it is needed. This has to be called after layout.
 	 * Returns true if anything changed.
@@ -1078,16 +1711,23 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		if (layout == null)
 			return changed;
 
+		// A point in a collapsed range can only be shown by expanding it
+		final int fold = mFolds.indexOf(mLineIndex.getLineForOffset(offset));
+		if (fold >= 0) {
+			mFolds.unfold(fold);
+			onFoldsChanged();
+		}
+
 		int line = layout.getLineForOffset(offset);
 
 		// FIXME: Is it okay to truncate this, or should we round?
 		final int x = (int) layout.getPrimaryHorizontal(offset);
-		final int top = layout.getLineTop(line);
-		final int bottom = layout.getLineTop(line + 1);
+		final int top = toVisualVertical(layout.getLineTop(line));
+		final int bottom = toVisualVertical(layout.getLineTop(line + 1));
 
 		int left = (int) Math.floor(layout.getLineLeft(line));
 		int right = (int) Math.ceil(layout.getLineRight(line));
-		int ht = layout.getHeight();
+		int ht = getVisibleLayoutHeight();
 
 		int hspace = getRight() - getLeft() - getCompoundPaddingLeft() - getCompoundPaddingRight();
 		int vspace = getBottom() - getTop() - getExtendedPaddingTop() - getExtendedPaddingBottom();
@@ -1158,8 +1798,6 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			// within our view bounds, in case the cursor is on the far left
 			// or right. If it isn't withing the bounds, then this request
 			// will be ignored.
-			if (mTempRect == null)
-				mTempRect = new Rect();
 			mTempRect.set(x - 2, top, x + 2, bottom);
 			getInterestingRect(mTempRect, line);
 			mTempRect.offset(getScrollX(), getScrollY());
@@ -1183,7 +1821,7 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 
 		int vspace = getBottom() - getTop() - getExtendedPaddingTop() - getExtendedPaddingBottom();
-		int ht = layout.getHeight();
+		int ht = getVisibleLayoutHeight();
 		int scrollx = (int) Math.floor(layout.getLineLeft(line)), scrolly = 0;
 		if (ht < vspace) {
 			scrolly = 0;
@@ -1203,6 +1841,36 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
+	/**
+	 * Whether the line can be drawn from the style runs: it must run left to right from the left edge of the layout
+	 * with the metrics of the base paint. Lines of right-to-left or non-normally aligned paragraphs, with
+	 * right-to-left characters or with spans changing the metrics are left to the layout.
+	 * 
+	 * @param metricSpans
+	 *            Whether the drawn lines may have spans changing the metrics
+	 */
+	private boolean canDrawFromRuns(Layout layout, int line, boolean metricSpans) {
+		if (layout.getParagraphDirection(line) != Layout.DIR_LEFT_TO_RIGHT
+				|| layout.getParagraphAlignment(line) != Layout.Alignment.ALIGN_NORMAL)
+			return false;
+		final int start = layout.getLineStart(line), end = layout.getLineEnd(line);
+		if (metricSpans && mText.getSpans(start, end, MetricAffectingSpan.class).length > 0)
+			return false;
+		for (int i = start; i < end; i++) {
+			final char c = mText.charAt(i);
+			// Hebrew is the first right-to-left script
+			if (c >= '\u0590') {
+				final byte direction = Character.getDirectionality(c);
+				if (direction == Character.DIRECTIONALITY_RIGHT_TO_LEFT
+						|| direction == Character.DIRECTIONALITY_RIGHT_TO_LEFT_ARABIC
+						|| direction == Character.DIRECTIONALITY_RIGHT_TO_LEFT_EMBEDDING
+						|| direction == Character.DIRECTIONALITY_RIGHT_TO_LEFT_OVERRIDE)
+					return false;
+			}
+		}
+		return true;
+	}
+
 	@Override
 	public void cancelLongPress() {
 		super.cancelLongPress();
@@ -1279,6 +1947,27 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
+	/**
+	 * Remove the carets added by {@link #addCaret(int)}, leaving the cursor alone.
+	 */
+	public void clearCarets() {
+		if (mCarets.getCount() == 0)
+			return;
+		invalidateCursor();
+		mCarets.clear();
+		mHighlightPathBogus = true;
+	}
+
+	/**
+	 * Remove the rectangular selection set by {@link #setColumnSelection(int, int)}.
+	 */
+	public void clearColumnSelection() {
+		if (mColumnSelection.isEmpty())
+			return;
+		invalidateColumnSelection();
+		mColumnSelection.clear();
+	}
+
 	/**
 	 * Use {@link BaseInputConnection#removeComposingSpans BaseInputConnection.removeComposingSpans()} to remove any IME
 	 * composing state from this text view.
@@ -1287,18 +1976,43 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		BaseInputConnection.removeComposingSpans(mText);
 	}
 
+	/**
+	 * Cancel the running search and remove the highlighting of its matches.
+	 */
+	public void clearSearch() {
+		if (mSearcher != null)
+			mSearcher.cancel();
+		if (mSearchMatches.getCount() > 0) {
+			mSearchMatches.clear();
+			invalidate();
+		}
+	}
+
 	@Override
 	public void computeScroll() {
 		if (mScroller != null) {
 			if (mScroller.computeScrollOffset()) {
-				// getScrollX() = mScroller.getCurrX();
-				// getScrollY() = mScroller.getCurrY();
-				// invalidateParentCaches();
+				scrollTo(mScroller.getCurrX(), mScroller.getCurrY());
 				postInvalidate(); // So we draw again
+			} else if (mFlingDirection != 0) {
+				mFlingDirection = 0;
+				updateStyleRuns();
 			}
 		}
 	}
 
+	/**
+	 * Copy the rows of the rectangular selection to the clipboard, one per line.
+	 * 
+	 * @return false if there is no rectangular selection
+	 */
+	public boolean copyColumnSelection() {
+		if (mColumnSelection.isEmpty())
+			return false;
+		mClipboard.setPrimaryClip(ClipData.newPlainText(null, mColumnSelection.getText(mText, mLineIndex)));
+		return true;
+	}
+
 	private void convertFromViewportToContentCoordinates(Rect r) {
 		final int horizontalOffset = viewportToContentHorizontalOffset();
 		r.left += horizontalOffset;
@@ -1327,6 +2041,144 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return mTouchFocusSelected;
 	}
 
+	/**
+	 * Delete the rectangular selection as a single edit, leaving the cursor on its first row and a caret on each of the
+	 * other rows at the left column of the block, where typing then goes to all the rows.
+	 * 
+	 * @return false if there is no rectangular selection
+	 */
+	public boolean deleteColumnSelection() {
+		final ColumnSelection block = mColumnSelection;
+		if (block.isEmpty())
+			return false;
+		final int firstLine = block.getFirstLine(), lastLine = block.getLastLine(), column = block.getStartColumn();
+		invalidateColumnSelection();
+		beginBatchEdit();
+		try {
+			block.delete(mText, mLineIndex);
+			block.clear();
+			// No paragraph was removed, so the rows are still [firstLine, lastLine]
+			mCarets.clear();
+			for (int line = firstLine + 1; line <= lastLine; line++)
+				mCarets.add(ColumnSelection.getOffset(mLineIndex, line, column));
+			Selection.setSelection(mText, ColumnSelection.getOffset(mLineIndex, firstLine, column));
+			mHighlightPathBogus = true;
+		} finally {
+			endBatchEdit();
+		}
+		return true;
+	}
+
+	/**
+	 * Highlight the cached bracket at the cursor and its partner, or the bracket alone if it is unbalanced
+	 */
+	private void drawBracketMatch(Canvas canvas, Layout layout, int firstLine, int lastLine) {
+		final BracketIndex.Match match = mBracketMatch;
+		mSearchPaint.setColor(match.partnerFound && !match.mismatch ? mBracketMatchColor : mBracketMismatchColor);
+		drawRange(canvas, layout, match.tokenStart, match.tokenEnd, firstLine, lastLine, mSearchPaint);
+		if (match.partnerFound)
+			drawRange(canvas, layout, match.partnerStart, match.partnerEnd, firstLine, lastLine, mSearchPaint);
+	}
+
+	/**
+	 * Highlight the rows of the rectangular selection on the lines [firstLine, lastLine] of the layout: with a
+	 * monospaced font, columns are at fixed positions and the block is a single rectangle
+	 */
+	private void drawColumnSelection(Canvas canvas, Layout layout, int firstLine, int lastLine) {
+		final ColumnSelection block = mColumnSelection;
+		final int first = Math.max(block.getFirstLine(), mLineIndex.getLineForOffset(layout.getLineStart(firstLine)));
+		final int last = Math.min(block.getLastLine(), mLineIndex.getLineForOffset(layout.getLineStart(lastLine)));
+		if (first > last)
+			return;
+		mSearchPaint.setColor(mHighlightColor);
+		final float charWidth = mFont.getCharWidth();
+		// Columns are on a grid only if no row wraps or has a tab or a non-ASCII character before the block end
+		boolean grid = charWidth > 0;
+		for (int paragraph = first; grid && paragraph <= last; paragraph++) {
+			final int start = mLineIndex.getLineStart(paragraph), end = block.getEnd(mLineIndex, paragraph);
+			grid = layout.getLineEnd(layout.getLineForOffset(start)) >= mLineIndex.getLineEnd(paragraph);
+			for (int i = start; grid && i < end; i++) {
+				final char c = mText.charAt(i);
+				grid = c >= ' ' && c <= '~';
+			}
+		}
+		if (grid) {
+			final int top = layout.getLineTop(layout.getLineForOffset(mLineIndex.getLineStart(first)));
+			int end = mLineIndex.getLineEnd(last);
+			if (end > mLineIndex.getLineStart(last))
+				end--;
+			final int bottom = layout.getLineBottom(layout.getLineForOffset(end));
+			canvas.drawRect(block.getStartColumn() * charWidth, top, block.getEndColumn() * charWidth, bottom,
+					mSearchPaint);
+		} else {
+			for (int paragraph = first; paragraph <= last; paragraph++)
+				drawRange(canvas, layout, block.getStart(mLineIndex, paragraph), block.getEnd(mLineIndex, paragraph),
+						firstLine, lastLine, mSearchPaint);
+		}
+	}
+
+	/**
+	 * Draw the gutter next to the lines [firstLine, lastLine] of the layout, numbering the lines starting a paragraph
+	 */
+	private void drawLineNumbers(Canvas canvas, Layout layout, int firstLine, int lastLine) {
+		// The gutter does not scroll horizontally
+		final float left = getScrollX() - mGutter.getWidth();
+		final float right = getScrollX() - mGutter.getPadding();
+		mGutter.drawBackground(canvas, left, layout.getLineTop(firstLine), layout.getLineBottom(lastLine));
+		final int paragraphCount = mLineIndex.getLineCount();
+		int paragraph = mLineIndex.getLineForOffset(layout.getLineStart(firstLine));
+		int paragraphStart = mLineIndex.getLineStart(paragraph);
+		for (int line = firstLine; line <= lastLine; line++) {
+			final int lineStart = layout.getLineStart(line);
+			if (paragraph + 1 < paragraphCount && lineStart >= mLineIndex.getLineStart(paragraph + 1)) {
+				paragraph++;
+				paragraphStart = mLineIndex.getLineStart(paragraph);
+			}
+			if (lineStart == paragraphStart)
+				mGutter.drawNumber(canvas, paragraph + 1, right, layout.getLineBaseline(line));
+		}
+	}
+
+	/**
+	 * Underline the misspelled words of the paragraphs intersecting the lines [firstLine, lastLine] of the layout
+	 */
+	private void drawMisspellings(Canvas canvas, Layout layout, int firstLine, int lastLine) {
+		final int lastParagraph = mLineIndex.getLineForOffset(layout.getLineStart(lastLine));
+		final float thickness = Math.max(1, mTextPaint.getTextSize() / 16);
+		mSearchPaint.setColor(mMisspelledColor);
+		for (int p = mLineIndex.getLineForOffset(layout.getLineStart(firstLine)); p <= lastParagraph; p++) {
+			final int[] runs = mSpellChecker.getRuns(p);
+			if (runs == null)
+				continue;
+			int start = mLineIndex.getLineStart(p);
+			for (int i = 0; i < runs.length; i += 2) {
+				final int end = start + runs[i];
+				if (runs[i + 1] == SpellChecker.STYLE_MISSPELLED) {
+					final int startLine = Math.max(firstLine, layout.getLineForOffset(start));
+					final int endLine = Math.min(lastLine, layout.getLineForOffset(end));
+					for (int line = startLine; line <= endLine; line++) {
+						final float left = start >= layout.getLineStart(line) ? layout.getPrimaryHorizontal(start)
+								: layout.getLineLeft(line);
+						final float right = end < layout.getLineEnd(line) ? layout.getPrimaryHorizontal(end) : layout
+								.getLineRight(line);
+						final float y = layout.getLineBaseline(line) + layout.getLineDescent(line) / 2;
+						canvas.drawRect(left, y, right, y + thickness, mSearchPaint);
+					}
+				}
+				start = end;
+			}
+		}
+	}
+
+	/**
+	 * Mark the given line of the layout as being followed by a collapsed range
+	 */
+	private void drawFoldMarker(Canvas canvas, Layout layout, int line) {
+		final TextPaint paint = getStylePaint(TexLexer.STYLE_COMMENT);
+		canvas.drawText(FOLD_MARKER, layout.getLineRight(line) + paint.getTextSize() / 2, layout.getLineBaseline(line),
+				paint);
+	}
+
 	private void drawCursor(Canvas canvas, int cursorOffsetVertical) {
 		final boolean translate = cursorOffsetVertical != 0;
 		if (translate)
@@ -1338,6 +2190,169 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			canvas.translate(0, -cursorOffsetVertical);
 	}
 
+	/**
+	 * Draw the text lines [firstLine, lastLine] of the layout which have no style runs, the layout takes care of the
+	 * character spans.
+	 */
+	private void drawPlainLines(Canvas canvas, Layout layout, int firstLine, int lastLine, Rect clip) {
+		canvas.save();
+		canvas.clipRect(clip.left, layout.getLineTop(firstLine), clip.right, layout.getLineBottom(lastLine));
+		layout.draw(canvas);
+		canvas.restore();
+	}
+
+	/**
+	 * Fill the part of the text range [start, end) lying on the lines [firstLine, lastLine] of the layout
+	 */
+	private void drawRange(Canvas canvas, Layout layout, int start, int end, int firstLine, int lastLine, Paint paint) {
+		final int startLine = Math.max(firstLine, layout.getLineForOffset(start));
+		final int endLine = Math.min(lastLine, layout.getLineForOffset(end));
+		for (int line = startLine; line <= endLine; line++) {
+			final float left = line == startLine && start >= layout.getLineStart(line) ? layout
+					.getPrimaryHorizontal(start) : layout.getLineLeft(line);
+			final float right = end < layout.getLineEnd(line) ? layout.getPrimaryHorizontal(end) : layout
+					.getLineRight(line);
+			canvas.drawRect(left, layout.getLineTop(line), right, layout.getLineBottom(line), paint);
+		}
+	}
+
+	/**
+	 * Highlight the search matches intersecting the lines [firstLine, lastLine] of the layout
+	 */
+	private void drawSearchMatches(Canvas canvas, Layout layout, int firstLine, int lastLine) {
+		final MatchList matches = mSearchMatches;
+		final int rangeEnd = layout.getLineEnd(lastLine);
+		mSearchPaint.setColor(mSearchHighlightColor);
+		for (int i = matches.indexOfFirstEndingAfter(layout.getLineStart(firstLine)); i < matches.getCount(); i++) {
+			final int start = matches.getStart(i);
+			if (start >= rangeEnd)
+				break;
+			drawRange(canvas, layout, start, matches.getEnd(i), firstLine, lastLine, mSearchPaint);
+		}
+	}
+
+	/**
+	 * Draw a line of the layout belonging to a paragraph with style runs, straight from the runs and the palette
+	 */
+	private void drawStyledLine(Canvas canvas, Layout layout, int line, int paragraphStart, int[] runs) {
+		final int lineStart = layout.getLineStart(line);
+		int lineEnd = layout.getLineEnd(line);
+		if (lineEnd > lineStart && mText.charAt(lineEnd - 1) == '\n')
+			lineEnd--;
+		final int baseline = layout.getLineBaseline(line);
+
+		// The line is left to right from its left edge with the metrics of the base paint (see canDrawFromRuns()) and
+		// the style paints differ only in color, so x advances by the measured pieces; the layout is asked for a
+		// position only after a tab, which it expands
+		float x = layout.getLineLeft(line);
+		int runStart = paragraphStart;
+		for (int i = 0; i <= runs.length && runStart < lineEnd; i += 2) {
+			// Characters past the last run (not restyled yet) are drawn in the default style
+			final int runEnd = i < runs.length ? runStart + runs[i] : lineEnd;
+			final int style = i < runs.length ? runs[i + 1] : TexLexer.STYLE_DEFAULT;
+			int segStart = Math.max(runStart, lineStart);
+			final int segEnd = Math.min(runEnd, lineEnd);
+			runStart = runEnd;
+			while (segStart < segEnd) {
+				int pieceEnd = segStart;
+				while (pieceEnd < segEnd && mText.charAt(pieceEnd) != '\t')
+					pieceEnd++;
+				if (pieceEnd > segStart) {
+					final TextPaint paint = getStylePaint(style);
+					canvas.drawText(mText, segStart, pieceEnd, x, baseline, paint);
+					x += paint.measureText(mText, segStart, pieceEnd);
+				}
+				if (pieceEnd < segEnd)
+					x = layout.getPrimaryHorizontal(pieceEnd + 1);
+				segStart = pieceEnd + 1;
+			}
+		}
+	}
+
+	/**
+	 * Draw the lines of the layout intersecting the clip, in layout coordinates
+	 */
+	private void drawLayoutLines(Canvas canvas, Layout layout, Path highlight, int cursorOffsetVertical, Rect clip) {
+		final int firstLine = layout.getLineForVertical(Math.max(0, clip.top));
+		final int lastLine = layout.getLineForVertical(clip.bottom);
+
+		if (highlight != null) {
+			if (cursorOffsetVertical != 0)
+				canvas.translate(0, cursorOffsetVertical);
+			canvas.drawPath(highlight, mHighlightPaint);
+			if (cursorOffsetVertical != 0)
+				canvas.translate(0, -cursorOffsetVertical);
+		}
+		if (mSearchMatches.getCount() > 0)
+			drawSearchMatches(canvas, layout, firstLine, lastLine);
+		if (!mColumnSelection.isEmpty())
+			drawColumnSelection(canvas, layout, firstLine, lastLine);
+		if (mBracketMatchShown)
+			drawBracketMatch(canvas, layout, firstLine, lastLine);
+		if (mSpellChecker != null)
+			drawMisspellings(canvas, layout, firstLine, lastLine);
+
+		// Without spans changing the metrics, which is the common case, getSpans() returns a shared empty array
+		final boolean metricSpans = mText.getSpans(layout.getLineStart(firstLine), layout.getLineEnd(lastLine),
+				MetricAffectingSpan.class).length > 0;
+		int plainFrom = -1;
+		for (int line = firstLine; line <= lastLine; line++) {
+			final int paragraph = mLineIndex.getLineForOffset(layout.getLineStart(line));
+			final int[] runs = mStyleRuns.getRuns(paragraph);
+			if (runs == null || !canDrawFromRuns(layout, line, metricSpans)) {
+				if (plainFrom < 0)
+					plainFrom = line;
+				continue;
+			}
+			if (plainFrom >= 0) {
+				drawPlainLines(canvas, layout, plainFrom, line - 1, clip);
+				plainFrom = -1;
+			}
+			drawStyledLine(canvas, layout, line, mLineIndex.getLineStart(paragraph), runs);
+		}
+		if (plainFrom >= 0)
+			drawPlainLines(canvas, layout, plainFrom, lastLine, clip);
+		// On top of the text, which may be scrolled horizontally under the gutter
+		if (mGutter != null)
+			drawLineNumbers(canvas, layout, firstLine, lastLine);
+	}
+
+	/**
+	 * Replacement for {@link Layout#draw(Canvas, Path, Paint, int)}: lines of paragraphs with style runs are drawn from
+	 * the runs, the others are drawn by the layout. With collapsed ranges, each run of visible lines is drawn shifted up
+	 * by the height hidden above it.
+	 */
+	private void drawStyledLayout(Canvas canvas, Layout layout, Path highlight, int cursorOffsetVertical) {
+		final Rect clip = mDrawClipRect;
+		if (!canvas.getClipBounds(clip))
+			return;
+		if (mFolds.getCount() == 0) {
+			drawLayoutLines(canvas, layout, highlight, cursorOffsetVertical, clip);
+			return;
+		}
+
+		ensureFoldGeometry();
+		final int bottom = clip.bottom;
+		int y = Math.max(0, clip.top);
+		while (y < bottom) {
+			final int segmentTop = mFolds.toLayout(y);
+			final int foldTop = mFolds.getNextFoldTop(segmentTop);
+			final int segmentBottom = Math.min(foldTop, segmentTop + bottom - y);
+			if (segmentBottom <= segmentTop || segmentTop >= layout.getHeight())
+				break;
+			canvas.save();
+			canvas.translate(0, y - segmentTop);
+			clip.top = segmentTop;
+			clip.bottom = segmentBottom;
+			canvas.clipRect(clip);
+			drawLayoutLines(canvas, layout, highlight, cursorOffsetVertical, clip);
+			if (segmentBottom == foldTop)
+				drawFoldMarker(canvas, layout, layout.getLineForVertical(foldTop - 1));
+			canvas.restore();
+			y += segmentBottom - segmentTop;
+		}
+	}
+
 	public void endBatchEdit() {
 		mInBatchEditControllers = false;
 		int nesting = --mIMS.mBatchEditNesting;
@@ -1346,6 +2361,46 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
+	/**
+	 * End a bulk update of spans started by {@link #beginSpanBatch()}.
+	 */
+	public void endSpanBatch() {
+		if (mSpanBatchNesting > 0 && --mSpanBatchNesting == 0)
+			flushSpanChanges();
+	}
+
+	/**
+	 * Replace [caret - before, caret + after) by the text at the cursor and at every additional caret, as one batch
+	 * edit: the view is updated and the appearance spans are flushed once for all the carets
+	 * 
+	 * @return false if there is no additional caret or a range is selected, the edit being left to the caller
+	 */
+	private boolean editAtCarets(int before, int after, CharSequence text) {
+		final int cursor = getSelectionStart();
+		if (mCarets.getCount() == 0 || cursor < 0 || cursor != getSelectionEnd())
+			return false;
+		beginBatchEdit();
+		beginSpanBatch();
+		try {
+			Selection.setSelection(mText, mCarets.edit(mText, cursor, before, after, text));
+		} finally {
+			endSpanBatch();
+			endBatchEdit();
+		}
+		return true;
+	}
+
+	/**
+	 * Drop caches in priority order until the estimated memory usage fits the budget, if there is one
+	 */
+	private void enforceMemoryBudget() {
+		for (int priority = TRIM_RENDER_AHEAD; priority <= TRIM_LAYOUT && mMemoryBudget > 0; priority++) {
+			if (getMemoryUsage(mMemoryUsage).getTotal() <= mMemoryBudget)
+				return;
+			trimMemory(priority);
+		}
+	}
+
 	void ensureEndedBatchEdit() {
 		if (mIMS.mBatchEditNesting != 0) {
 			mIMS.mBatchEditNesting = 0;
@@ -1353,6 +2408,27 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
+	private void ensureFoldGeometry() {
+		if (mFolds.isGeometryBogus() && mLayout != null)
+			mFolds.updateGeometry(mLayout, mLineIndex);
+	}
+
+	/**
+	 * Search the text for the query in the background; the matches are highlighted as they are streamed back and are
+	 * available from {@link #getSearchMatches()}. A new call cancels the previous search.
+	 * 
+	 * @param flags
+	 *            Combination of {@link TextSearcher#FLAG_REGEX} and {@link TextSearcher#FLAG_IGNORE_CASE}
+	 */
+	public void find(String query, int flags) {
+		if (mSearcher == null) {
+			mSearcher = new TextSearcher(mSearchMatches);
+			mSearcher.setListener(this);
+		}
+		mSearcher.search(getTextSnapshot(), query, flags);
+		invalidate();
+	}
+
 	void finishBatchEdit(final InputMethodState ims) {
 		onEndBatchEdit();
 		if (ims.mContentChanged /* || ims.mSelectionModeChanged */) {
@@ -1364,6 +2440,80 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
+	/**
+	 * Start a vertical fling with the given velocity in pixels per second, positive towards the start of the text, using
+	 * the scroller set by {@link #setScroller(Scroller)} or a new one. The paragraphs where the fling will stop are
+	 * known from the start, so they are handed to the spell checker at once and checked while the text moves.
+	 */
+	public void fling(int velocityY) {
+		if (mLayout == null)
+			return;
+		if (mScroller == null)
+			mScroller = new Scroller(getContext());
+		mScroller.fling(getScrollX(), getScrollY(), 0, -velocityY, getScrollX(), getScrollX(), 0, getMaxScrollY());
+		mFlingDirection = velocityY < 0 ? 1 : -1;
+		mFlingFirstParagraph = getParagraphAtVertical(mScroller.getFinalY());
+		mFlingLastParagraph = getParagraphAtVertical(mScroller.getFinalY() + getHeight());
+		awakenScrollBars(mScroller.getDuration());
+		updateStyleRuns();
+		invalidate();
+	}
+
+	/**
+	 * Invalidate the union of the span changes accumulated since the last flush.
+	 */
+	private void flushSpanChanges() {
+		if (mSpanDirtyStart < 0)
+			return;
+
+		final int length = mText.length();
+		final int start = Math.min(mSpanDirtyStart, length);
+		final int end = Math.min(mSpanDirtyEnd, length);
+		final boolean paragraph = mSpanDirtyParagraph;
+		mSpanDirtyStart = mSpanDirtyEnd = -1;
+		mSpanDirtyParagraph = false;
+
+		mHighlightPathBogus = true;
+		if (paragraph)
+			invalidate();
+		else
+			invalidateRegion(start, end, false);
+		checkForResize();
+	}
+
+	/**
+	 * Collapse the paragraphs following the one containing start up to the one containing end, so that only the first
+	 * paragraph of the range stays visible. Collapsed ranges inside the range are absorbed.
+	 * 
+	 * @return false if nothing was collapsed, e.g. when the range partially overlaps a collapsed range
+	 */
+	public boolean fold(int start, int end) {
+		final int first = mLineIndex.getLineForOffset(start) + 1;
+		if (!mFolds.fold(first, mLineIndex.getLineForOffset(end)))
+			return false;
+		// Keep the cursor visible at the end of the first paragraph
+		final int cursor = getSelectionStart();
+		if (cursor >= 0 && mFolds.indexOf(mLineIndex.getLineForOffset(cursor)) >= 0)
+			Selection.setSelection(mText, mLineIndex.getLineEnd(first - 1) - 1);
+		onFoldsChanged();
+		return true;
+	}
+
+	/**
+	 * Collapse the block, i.e. the \begin/\end environment or the pair of brackets, whose delimiter is at the offset.
+	 * This requires bracket matching to be enabled.
+	 * 
+	 * @see #setBracketMatchingEnabled(boolean)
+	 */
+	public boolean foldBlockAt(int offset) {
+		if (mBracketIndex == null)
+			return false;
+		final BracketIndex.Match match = new BracketIndex.Match();
+		if (!mBracketIndex.findMatch(mText, offset, match) || !match.partnerFound)
+			return false;
+		return fold(Math.min(match.tokenStart, match.partnerStart), Math.max(match.tokenStart, match.partnerStart));
+	}
+
 	@Override
 	public int getBaseline() {
 		if (mLayout == null) {
@@ -1397,7 +2547,7 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			} else {
 				boxht = getMeasuredHeight() - getExtendedPaddingTop() - getExtendedPaddingBottom();
 			}
-			int textht = l.getHeight();
+			int textht = getVisibleLayoutHeight();
 
 			if (textht < boxht) {
 				if (gravity == Gravity.TOP)
@@ -1410,6 +2560,30 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return voffset;
 	}
 
+	/**
+	 * Get the carets added by {@link #addCaret(int)}, not including the cursor; the set must not be modified.
+	 */
+	public CaretSet getCarets() {
+		return mCarets;
+	}
+
+	/**
+	 * Get the rectangular selection, empty if there is none; it must not be modified.
+	 */
+	public ColumnSelection getColumnSelection() {
+		return mColumnSelection;
+	}
+
+	/**
+	 * Get the completions of the command or environment name at the cursor, as displayed by the input method; null if
+	 * there is none.
+	 * 
+	 * @see #setAutoCompletionEnabled(boolean)
+	 */
+	public CompletionInfo[] getCompletions() {
+		return mCompletionStart < 0 ? null : mCompletions;
+	}
+
 	/**
 	 * Returns the bottom padding of the view, plus space for the bottom Drawable if any.
 	 */
@@ -1434,7 +2608,7 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 	 * Returns the left padding of the view, plus space for the left Drawable if any.
 	 */
 	public int getCompoundPaddingLeft() {
-		return getPaddingLeft();
+		return mGutter != null ? getPaddingLeft() + mGutter.getWidth() : getPaddingLeft();
 	}
 
 	/**
@@ -1486,7 +2660,7 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 
 		int linecount = layout.getLineCount();
 		int pad = getCompoundPaddingTop() + getCompoundPaddingBottom();
-		int desired = layout.getLineTop(linecount);
+		int desired = layout == mLayout ? getVisibleLayoutHeight() : layout.getLineTop(linecount);
 
 		desired += pad;
 
@@ -1519,6 +2693,14 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return desired;
 	}
 
+	/**
+	 * Returns the document of the text, shared with the other text areas showing the same Editable, e.g. the panes of a
+	 * split editor.
+	 */
+	public TextDocument getDocument() {
+		return mDocument;
+	}
+
 	/**
 	 * Returns the extended bottom padding of the view, including both the bottom Drawable if any and any extra space to
 	 * keep more than maxLines of text from showing. It is only valid to call this after measuring.
@@ -1583,8 +2765,20 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
-	@Override
-	public void getFocusedRect(Rect r) {
+	/**
+	 * @return the font of the text, shared with the other views using the same typeface, style, size and flags; its
+	 *         advance table and metrics can be used to measure ASCII text without a paint
+	 */
+	public FontCache.Font getFont() {
+		return mFont;
+	}
+
+	int getFirstVisibleParagraph() {
+		return getParagraphAtVertical(getScrollY());
+	}
+
+	@Override
+	public void getFocusedRect(Rect r) {
 		if (mLayout == null) {
 			super.getFocusedRect(r);
 			return;
@@ -1599,15 +2793,15 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		int selStart = getSelectionStart();
 		if (selStart < 0 || selStart >= selEnd) {
 			int line = mLayout.getLineForOffset(selEnd);
-			r.top = mLayout.getLineTop(line);
-			r.bottom = mLayout.getLineBottom(line);
+			r.top = toVisualVertical(mLayout.getLineTop(line));
+			r.bottom = toVisualVertical(mLayout.getLineBottom(line));
 			r.left = (int) mLayout.getPrimaryHorizontal(selEnd) - 2;
 			r.right = r.left + 4;
 		} else {
 			int lineStart = mLayout.getLineForOffset(selStart);
 			int lineEnd = mLayout.getLineForOffset(selEnd);
-			r.top = mLayout.getLineTop(lineStart);
-			r.bottom = mLayout.getLineBottom(lineEnd);
+			r.top = toVisualVertical(mLayout.getLineTop(lineStart));
+			r.bottom = toVisualVertical(mLayout.getLineBottom(lineEnd));
 			if (lineStart == lineEnd) {
 				r.left = (int) mLayout.getPrimaryHorizontal(selStart);
 				r.right = (int) mLayout.getPrimaryHorizontal(selEnd);
@@ -1615,17 +2809,13 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 				// Selection extends across multiple lines -- make the focused
 				// rect cover the entire width.
 				if (mHighlightPathBogus) {
-					if (mHighlightPath == null)
-						mHighlightPath = new Path();
 					mHighlightPath.reset();
 					mLayout.getSelectionPath(selStart, selEnd, mHighlightPath);
 					mHighlightPathBogus = false;
 				}
-				synchronized (TEMP_RECTF) {
-					mHighlightPath.computeBounds(TEMP_RECTF, true);
-					r.left = (int) TEMP_RECTF.left - 1;
-					r.right = (int) TEMP_RECTF.right + 1;
-				}
+				mHighlightPath.computeBounds(mTempRectF, true);
+				r.left = (int) mTempRectF.left - 1;
+				r.right = (int) mTempRectF.right + 1;
 			}
 		}
 
@@ -1731,13 +2921,17 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return getCompoundPaddingLeft() - getPaddingLeft() + (int) Math.min(0, mShadowDx - mShadowRadius);
 	}
 
+	int getLastVisibleParagraph() {
+		return getParagraphAtVertical(getScrollY() + getHeight());
+	}
+
 	int getLineAtCoordinate(float y) {
 		y -= getTotalPaddingTop();
 		// Clamp the position to inside of the view.
 		y = Math.max(0.0f, y);
 		y = Math.min(getHeight() - getTotalPaddingBottom() - 1, y);
 		y += getScrollY();
-		return getLayout().getLineForVertical((int) y);
+		return getLayout().getLineForVertical(toLayoutVertical((int) y));
 	}
 
 	/**
@@ -1776,7 +2970,7 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 	 *         be taller or shorter than this height, and the layout may contain additional first- or last-line padding.
 	 */
 	public int getLineHeight() {
-		return round(mTextPaint.getFontMetricsInt(null));
+		return mFont.getLineSpacing();
 	}
 
 	/**
@@ -1828,6 +3022,14 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return mMaxMode == LINES ? mMaximum : -1;
 	}
 
+	/**
+	 * @return the largest vertical scroll, at which the end of the text is at the bottom of the view
+	 */
+	private int getMaxScrollY() {
+		final int vspace = getBottom() - getTop() - getExtendedPaddingTop() - getExtendedPaddingBottom();
+		return Math.max(0, getVisibleLayoutHeight() - vspace);
+	}
+
 	/**
 	 * @return the maximum width of the TextView, in pixels or -1 if the maximum width was set in ems instead (using
 	 *         {@link #setMaxEms(int)} or {@link #setEms(int)}).
@@ -1841,6 +3043,46 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return mMaxWidthMode == PIXELS ? mMaxWidth : -1;
 	}
 
+	/**
+	 * @return the memory budget set by {@link #setMemoryBudget(long)}, 0 if there is none
+	 */
+	public long getMemoryBudget() {
+		return mMemoryBudget;
+	}
+
+	/**
+	 * Estimate the memory held by the text area for its text, spans, layout, cached style runs, indexes and
+	 * completions. This enumerates the spans of the text and the paragraphs of the caches, so it is not meant to be
+	 * called on every frame.
+	 * 
+	 * @param usage
+	 *            Report to fill, it is reset first
+	 * @return usage
+	 */
+	public MemoryUsage getMemoryUsage(MemoryUsage usage) {
+		usage.reset();
+		usage.add(MemoryUsage.TEXT, 16 + 2L * mText.length());
+		usage.add(MemoryUsage.SPANS, (long) SPAN_BYTES * mText.getSpans(0, mText.length(), Object.class).length);
+		if (mLayout != null)
+			usage.add(MemoryUsage.LAYOUT, (long) LAYOUT_LINE_BYTES * mLayout.getLineCount());
+		usage.add(MemoryUsage.STYLE_RUNS, mStyleRuns.getMemoryUsage());
+		if (mSpellChecker != null)
+			usage.add(MemoryUsage.STYLE_RUNS, mSpellChecker.getMemoryUsage());
+		if (mOverview != null)
+			usage.add(MemoryUsage.STYLE_RUNS, mOverview.getMemoryUsage());
+		usage.add(MemoryUsage.INDEXES, mLineIndex.getMemoryUsage() + mSearchMatches.getMemoryUsage()
+				+ mCarets.getMemoryUsage());
+		if (mHighlighter != null)
+			usage.add(MemoryUsage.INDEXES, mHighlighter.getMemoryUsage());
+		if (mBracketIndex != null)
+			usage.add(MemoryUsage.INDEXES, mBracketIndex.getMemoryUsage());
+		if (mOutline != null)
+			usage.add(MemoryUsage.INDEXES, mOutline.getMemoryUsage());
+		if (mCompletionTrie != null)
+			usage.add(MemoryUsage.COMPLETIONS, mCompletionTrie.getMemoryUsage());
+		return usage;
+	}
+
 	/**
 	 * @return the minimum width of the TextView, expressed in ems or -1 if the minimum width was set in pixels instead
 	 *         (using {@link #setMinWidth(int)} or {@link #setWidth(int)}).
@@ -1915,6 +3157,34 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return offset;
 	}
 
+	/**
+	 * Get the outline (sections, labels and refs) of the text, which is maintained incrementally from the first call
+	 * on.
+	 */
+	public OutlineIndex getOutline() {
+		if (mOutline == null) {
+			mOutline = new OutlineIndex(mLineIndex);
+			if (mText != null)
+				mOutline.onTextChanged(mText, 0, 0, mText.length(), 0, mLineIndex.getLineCount() - 1);
+		}
+		return mOutline;
+	}
+
+	/**
+	 * Get the per-paragraph summaries of the text drawn by an {@link OverviewStrip}, which are maintained
+	 * incrementally from the first call on.
+	 */
+	public OverviewIndex getOverview() {
+		if (mOverview == null) {
+			mOverview = new OverviewIndex(mLineIndex);
+			mOverview.setHighlighter(mHighlighter);
+			if (mText != null)
+				mOverview.attach(mText);
+			postMemoryCheck();
+		}
+		return mOverview;
+	}
+
 	/**
 	 * @return the base paint used for the text. Please use this only to consult the Paint's properties and not to
 	 *         change them.
@@ -1931,6 +3201,14 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return mTextPaint.getFlags();
 	}
 
+	/**
+	 * @return the paragraph displayed at the vertical coordinate of the view's content
+	 */
+	private int getParagraphAtVertical(int y) {
+		final int line = mLayout.getLineForVertical(toLayoutVertical(y));
+		return mLineIndex.getLineForOffset(mLayout.getLineStart(line));
+	}
+
 	private PositionListener getPositionListener() {
 		return mPositionListener;
 	}
@@ -1941,19 +3219,43 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 	}
 
 	/**
-	 * Convenience for {@link Selection#getSelectionEnd}.
+	 * @return the matches of the last search started by {@link #find(String, int)}, kept up-to-date with the edits
+	 */
+	public MatchList getSearchMatches() {
+		return mSearchMatches;
+	}
+
+	SelectionModifierCursorController getSelectionController() {
+		if (!mSelectionControllerEnabled) {
+			return null;
+		}
+
+		if (mSelectionModifierCursorController == null) {
+			mSelectionModifierCursorController = new SelectionModifierCursorController();
+
+			final ViewTreeObserver observer = getViewTreeObserver();
+			observer.addOnTouchModeChangeListener(mSelectionModifierCursorController);
+		}
+
+		return mSelectionModifierCursorController;
+	}
+
+	/**
+	 * Convenience for {@link Selection#getSelectionEnd}, or the selection this view had when another view of its
+	 * document took the focus.
 	 */
 	@ViewDebug.ExportedProperty(category = "text")
 	public int getSelectionEnd() {
-		return Selection.getSelectionEnd(getText());
+		return mSavedSelEnd >= 0 ? mSavedSelEnd : Selection.getSelectionEnd(getText());
 	}
 
 	/**
-	 * Convenience for {@link Selection#getSelectionStart}.
+	 * Convenience for {@link Selection#getSelectionStart}, or the selection this view had when another view of its
+	 * document took the focus.
 	 */
 	@ViewDebug.ExportedProperty(category = "text")
 	public int getSelectionStart() {
-		return Selection.getSelectionStart(getText());
+		return mSavedSelStart >= 0 ? mSavedSelStart : Selection.getSelectionStart(getText());
 	}
 
 	/**
@@ -1991,6 +3293,41 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return mShadowRadius;
 	}
 
+	/**
+	 * @return the spell checker, e.g. to manage its personal dictionary, or null if spell checking is disabled
+	 */
+	public SpellChecker getSpellChecker() {
+		return mSpellChecker;
+	}
+
+	private TextPaint getStylePaint(int style) {
+		if (mStylePaintsBogus) {
+			for (int i = 0; i < mStylePaints.length; i++) {
+				if (mStylePaints[i] == null)
+					mStylePaints[i] = new TextPaint();
+				mStylePaints[i].set(mTextPaint);
+				mStylePaints[i].setColor(mStyleColors[i] != 0 ? mStyleColors[i] : mCurTextColor);
+			}
+			mStylePaintsBogus = false;
+		}
+		return mStylePaints[style];
+	}
+
+	/**
+	 * @return the style runs drawn in place of the character spans of the paragraphs. The styles index the colors set
+	 *         by {@link #setSyntaxColor(int, int)}; call {@link #invalidate()} after modifying the runs.
+	 */
+	public StyleRunStore getStyleRuns() {
+		return mStyleRuns;
+	}
+
+	/**
+	 * @return the color the {@link TexLexer} style is drawn in
+	 */
+	public int getSyntaxColor(int style) {
+		return mStyleColors[style] != 0 ? mStyleColors[style] : mCurTextColor;
+	}
+
 	@ViewDebug.CapturedViewProperty
 	public Editable getText() {
 		return mText;
@@ -2006,6 +3343,16 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return mTextColor;
 	}
 
+	/**
+	 * @return an immutable copy of the text to be processed on a background thread. The copy is shared until the next
+	 *         edit, so this is cheap to call repeatedly.
+	 */
+	public TextSnapshot getTextSnapshot() {
+		if (mTextSnapshot == null || mTextSnapshot.getGeneration() != mTextGeneration)
+			mTextSnapshot = TextSnapshot.obtain(mText, 0, mText.length(), mTextGeneration);
+		return mTextSnapshot;
+	}
+
 	/**
 	 * @return the extent by which text is currently being stretched horizontally. This will usually be 1.
 	 */
@@ -2087,10 +3434,16 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			if (selStart == selEnd) {
 				if (isCursorVisible() && (SystemClock.uptimeMillis() - mShowCursor) % (2 * BLINK) < BLINK) {
 					if (mHighlightPathBogus) {
-						if (mHighlightPath == null)
-							mHighlightPath = new Path();
 						mHighlightPath.reset();
 						mLayout.getCursorPath(selStart, mHighlightPath, mText);
+						// The additional carets join the cursor path, so that blinking invalidates their bounds at once
+						for (int i = 0; i < mCarets.getCount(); i++) {
+							final int offset = mCarets.getOffset(i);
+							final int line = mLayout.getLineForOffset(offset);
+							final float x = mLayout.getPrimaryHorizontal(offset) - 0.5f;
+							mHighlightPath.moveTo(x, mLayout.getLineTop(line));
+							mHighlightPath.lineTo(x, mLayout.getLineBottom(line));
+						}
 						updateCursorsPositions();
 						mHighlightPathBogus = false;
 					}
@@ -2102,8 +3455,6 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 				}
 			} else {
 				if (mHighlightPathBogus) {
-					if (mHighlightPath == null)
-						mHighlightPath = new Path();
 					mHighlightPath.reset();
 					mLayout.getSelectionPath(selStart, selEnd, mHighlightPath);
 					mHighlightPathBogus = false;
@@ -2119,6 +3470,16 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return highlight;
 	}
 
+	/**
+	 * Height of the layout without the collapsed ranges
+	 */
+	private int getVisibleLayoutHeight() {
+		if (mFolds.getCount() == 0)
+			return mLayout.getHeight();
+		ensureFoldGeometry();
+		return mLayout.getHeight() - mFolds.getHiddenHeight();
+	}
+
 	int getVerticalOffset(boolean forceNormal) {
 		int voffset = 0;
 		final int gravity = mGravity & Gravity.VERTICAL_GRAVITY_MASK;
@@ -2133,7 +3494,7 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			} else {
 				boxht = getMeasuredHeight() - getExtendedPaddingTop() - getExtendedPaddingBottom();
 			}
-			int textht = l.getHeight();
+			int textht = getVisibleLayoutHeight();
 
 			if (textht < boxht) {
 				if (gravity == Gravity.BOTTOM)
@@ -2163,6 +3524,13 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return selectionStart >= 0 && selectionStart != selectionEnd;
 	}
 
+	/**
+	 * @return True if this view supports selection handles.
+	 */
+	boolean hasSelectionController() {
+		return mSelectionControllerEnabled;
+	}
+
 	/**
 	 * Hides the insertion controller and stops text selection mode, hiding the selection controller
 	 */
@@ -2172,6 +3540,7 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 
 	private void hideCursorControllers() {
 		hideInsertionPointCursorController();
+		hideSelectionModifierCursorController();
 	}
 
 	private void hideInsertionPointCursorController() {
@@ -2180,9 +3549,20 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
+	private void hideSelectionModifierCursorController() {
+		if (mSelectionModifierCursorController != null) {
+			mSelectionModifierCursorController.hide();
+		}
+	}
+
 	void invalidateCursor() {
 		int where = getSelectionEnd();
-		invalidateCursor(where, where, where);
+		final int count = mCarets.getCount();
+		if (count > 0)
+			// A single region covering the cursor and all the carets
+			invalidateCursor(where, mCarets.getOffset(0), mCarets.getOffset(count - 1));
+		else
+			invalidateCursor(where, where, where);
 	}
 
 	private void invalidateCursor(int a, int b, int c) {
@@ -2201,28 +3581,25 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			final int verticalPadding = getExtendedPaddingTop() + getVerticalOffset(true);
 
 			if (mCursorCount == 0) {
-				synchronized (TEMP_RECTF) {
-					/*
-					 * The reason for this concern about the thickness of the cursor and doing the floor/ceil on the
-					 * coordinates is that some EditTexts (notably textfields in the Browser) have anti-aliased text
-					 * where not all the characters are necessarily at integer-multiple locations. This should make sure
-					 * the entire cursor gets invalidated instead of sometimes missing half a pixel.
-					 */
-					float thick = (float) Math.ceil(mTextPaint.getStrokeWidth());
-					if (thick < 1.0f) {
-						thick = 1.0f;
-					}
+				/*
+				 * The reason for this concern about the thickness of the cursor and doing the floor/ceil on the
+				 * coordinates is that some EditTexts (notably textfields in the Browser) have anti-aliased text where
+				 * not all the characters are necessarily at integer-multiple locations. This should make sure the
+				 * entire cursor gets invalidated instead of sometimes missing half a pixel.
+				 */
+				float thick = (float) Math.ceil(mTextPaint.getStrokeWidth());
+				if (thick < 1.0f) {
+					thick = 1.0f;
+				}
 
-					thick /= 2.0f;
+				thick /= 2.0f;
 
-					// mHighlightPath is guaranteed to be non null at that point.
-					mHighlightPath.computeBounds(TEMP_RECTF, false);
+				mHighlightPath.computeBounds(mTempRectF, false);
 
-					invalidate((int) Math.floor(horizontalPadding + TEMP_RECTF.left - thick),
-							(int) Math.floor(verticalPadding + TEMP_RECTF.top - thick),
-							(int) Math.ceil(horizontalPadding + TEMP_RECTF.right + thick),
-							(int) Math.ceil(verticalPadding + TEMP_RECTF.bottom + thick));
-				}
+				invalidate((int) Math.floor(horizontalPadding + mTempRectF.left - thick),
+						(int) Math.floor(verticalPadding + mTempRectF.top - thick),
+						(int) Math.ceil(horizontalPadding + mTempRectF.right + thick),
+						(int) Math.ceil(verticalPadding + mTempRectF.bottom + thick));
 			} else {
 				for (int i = 0; i < mCursorCount; i++) {
 					Rect bounds = mCursorDrawable[i].getBounds();
@@ -2233,6 +3610,14 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
+	/**
+	 * Invalidate the paragraphs of the rectangular selection
+	 */
+	private void invalidateColumnSelection() {
+		invalidateRegion(mLineIndex.getLineStart(mColumnSelection.getFirstLine()),
+				mLineIndex.getLineEnd(mColumnSelection.getLastLine()), false);
+	}
+
 	/**
 	 * Invalidates the region of text enclosed between the start and end text offsets.
 	 */
@@ -2241,7 +3626,7 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			invalidate();
 		} else {
 			int lineStart = mLayout.getLineForOffset(start);
-			int top = mLayout.getLineTop(lineStart);
+			int top = toVisualVertical(mLayout.getLineTop(lineStart));
 
 			// This is ridiculous, but the descent from the line above
 			// can hang down into the line we really want to redraw,
@@ -2260,7 +3645,7 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			else
 				lineEnd = mLayout.getLineForOffset(end);
 
-			int bottom = mLayout.getLineBottom(lineEnd);
+			int bottom = toVisualVertical(mLayout.getLineBottom(lineEnd));
 
 			// mEditor can be null in case selection is set programmatically.
 			if (invalidateCursor) {
@@ -2290,6 +3675,14 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
+	public boolean isAutoCompletionEnabled() {
+		return mCompletionEnabled;
+	}
+
+	public boolean isBracketMatchingEnabled() {
+		return mBracketIndex != null;
+	}
+
 	/**
 	 * @return whether or not the cursor is visible (assuming this TextView is editable)
 	 * 
@@ -2302,6 +3695,13 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return mCursorVisible;
 	}
 
+	/**
+	 * @return whether a fast-scroll thumb is shown while scrolling long texts
+	 */
+	public boolean isFastScrollEnabled() {
+		return mFastScroll != null;
+	}
+
 	boolean isInBatchEditMode() {
 		return mIMS.mBatchEditNesting > 0;
 	}
@@ -2314,44 +3714,49 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return mIMM.isActive(this);
 	}
 
+	/**
+	 * @return whether the paragraph numbers are shown in a gutter
+	 */
+	public boolean isLineNumbersEnabled() {
+		return mGutter != null;
+	}
+
 	@Override
 	protected boolean isPaddingOffsetRequired() {
 		return mShadowRadius != 0;
 	}
 
 	private boolean isPositionVisible(int positionX, int positionY) {
-		synchronized (TEMP_POSITION) {
-			final float[] position = TEMP_POSITION;
-			position[0] = positionX;
-			position[1] = positionY;
-			View view = this;
-
-			while (view != null) {
-				if (view != this) {
-					// Local scroll is already taken into account in positionX/Y
-					position[0] -= view.getScrollX();
-					position[1] -= view.getScrollY();
-				}
+		final float[] position = mTempPosition;
+		position[0] = positionX;
+		position[1] = positionY;
+		View view = this;
+
+		while (view != null) {
+			if (view != this) {
+				// Local scroll is already taken into account in positionX/Y
+				position[0] -= view.getScrollX();
+				position[1] -= view.getScrollY();
+			}
 
-				if (position[0] < 0 || position[1] < 0 || position[0] > view.getWidth()
-						|| position[1] > view.getHeight()) {
-					return false;
-				}
+			if (position[0] < 0 || position[1] < 0 || position[0] > view.getWidth()
+					|| position[1] > view.getHeight()) {
+				return false;
+			}
 
-				if (!view.getMatrix().isIdentity()) {
-					view.getMatrix().mapPoints(position);
-				}
+			if (!view.getMatrix().isIdentity()) {
+				view.getMatrix().mapPoints(position);
+			}
 
-				position[0] += view.getLeft();
-				position[1] += view.getTop();
+			position[0] += view.getLeft();
+			position[1] += view.getTop();
 
-				final ViewParent parent = view.getParent();
-				if (parent instanceof View) {
-					view = (View) parent;
-				} else {
-					// We've reached the ViewRoot, stop iterating
-					view = null;
-				}
+			final ViewParent parent = view.getParent();
+			if (parent instanceof View) {
+				view = (View) parent;
+			} else {
+				// We've reached the ViewRoot, stop iterating
+				view = null;
 			}
 		}
 
@@ -2359,10 +3764,52 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return true;
 	}
 
+	/**
+	 * @return whether the misspelled words are underlined
+	 */
+	public boolean isSpellCheckingEnabled() {
+		return mSpellChecker != null;
+	}
+
+	/**
+	 * @return whether the content is highlighted as TeX source
+	 */
+	public boolean isSyntaxHighlightingEnabled() {
+		return mHighlighter != null;
+	}
+
 	public boolean isTextSelectable() {
 		return mTextIsSelectable;
 	}
 
+	/**
+	 * @return whether the text size can be changed by pinching
+	 */
+	public boolean isZoomEnabled() {
+		return mScaleDetector != null;
+	}
+
+	/**
+	 * Move the cursor to the offset and, if its paragraph is not visible, scroll the paragraph to the middle of the
+	 * view. Unlike {@link #bringPointIntoView(int)}, the scroll is found from the line index with binary searches only,
+	 * so a jump costs the same whatever its distance and the length of the text.
+	 */
+	public void jumpToOffset(int offset) {
+		Selection.setSelection(mText, offset);
+		if (mLayout == null)
+			return;
+		final int paragraph = mLineIndex.getLineForOffset(offset);
+		final int fold = mFolds.indexOf(paragraph);
+		if (fold >= 0) {
+			mFolds.unfold(fold);
+			onFoldsChanged();
+		}
+		final int first = getFirstVisibleParagraph();
+		final int last = getLastVisibleParagraph();
+		if (paragraph <= first || paragraph >= last)
+			scrollToParagraph(paragraph - (last - first) / 2);
+	}
+
 	/**
 	 * Returns the length, in characters, of the text managed by this TextView
 	 */
@@ -2370,6 +3817,45 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return mText.length();
 	}
 
+	/**
+	 * Load the bundled dictionary and count the words of the text in the background, the trie is installed unless
+	 * completion was disabled or another trie was installed in the mean time
+	 */
+	private void loadCompletionTrie() {
+		if (mCompletionTrieLoading)
+			return;
+		mCompletionTrieLoading = true;
+		final TextSnapshot snapshot = getTextSnapshot();
+		final Resources resources = getResources();
+		TextWorker.getWorkerHandler().post(new Runnable() {
+			@Override
+			public void run() {
+				CompletionTrie trie;
+				try {
+					trie = CompletionTrie.load(resources.openRawResource(R.raw.tex_commands));
+				} catch (IOException e) {
+					trie = new CompletionTrie();
+				}
+				// Edits made in the mean time are not harvested, which only slightly skews the ranking
+				trie.beginUpdate();
+				trie.adjustDocument(snapshot, 0, snapshot.length(), 1);
+				trie.endUpdate();
+				final CompletionTrie result = trie;
+				TextWorker.getMainHandler().post(new Runnable() {
+					@Override
+					public void run() {
+						mCompletionTrieLoading = false;
+						if (mCompletionEnabled && mCompletionTrie == null) {
+							mCompletionTrie = result;
+							updateCompletions();
+							postMemoryCheck();
+						}
+					}
+				});
+			}
+		});
+	}
+
 	void makeBlink() {
 		if (shouldBlink()) {
 			mShowCursor = SystemClock.uptimeMillis();
@@ -2397,8 +3883,11 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			wantWidth = 0;
 		}
 
-		mLayout = new DynamicLayout(mText, mTextPaint, wantWidth, Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f,
-				mIncludePad);
+		// Shared with the other views of the document laying it out in the same font and width
+		if (mLayout != null)
+			mDocument.releaseLayout(mLayout);
+		mLayout = mDocument.obtainLayout(mFont, wantWidth, mIncludePad);
+		mFolds.invalidateGeometry();
 
 		if (bringIntoView) {
 			registerForPreDraw();
@@ -2426,8 +3915,8 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 
 		int line = mLayout.getLineForOffset(start);
 
-		final int top = mLayout.getLineTop(line);
-		final int bottom = mLayout.getLineTop(line + 1);
+		final int top = toVisualVertical(mLayout.getLineTop(line));
+		final int bottom = toVisualVertical(mLayout.getLineTop(line + 1));
 		final int vspace = getBottom() - getTop() - getExtendedPaddingTop() - getExtendedPaddingBottom();
 		int vslack = (bottom - top) / 2;
 		if (vslack > vspace / 4)
@@ -2435,9 +3924,9 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		final int vs = getScrollY();
 
 		if (top < (vs + vslack)) {
-			line = mLayout.getLineForVertical(vs + vslack + (bottom - top));
+			line = mLayout.getLineForVertical(toLayoutVertical(vs + vslack + (bottom - top)));
 		} else if (bottom > (vspace + vs - vslack)) {
-			line = mLayout.getLineForVertical(vspace + vs - vslack - (bottom - top));
+			line = mLayout.getLineForVertical(toLayoutVertical(vspace + vs - vslack - (bottom - top)));
 		}
 
 		// Next: make sure the character is visible on screen:
@@ -2467,6 +3956,8 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 	}
 
 	private void nullLayouts() {
+		if (mLayout != null)
+			mDocument.releaseLayout(mLayout);
 		mLayout = null;
 		prepareCursorControllers();
 	}
@@ -2483,12 +3974,41 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		if (mInsertionPointCursorController != null) {
 			observer.addOnTouchModeChangeListener(mInsertionPointCursorController);
 		}
+		if (mSelectionModifierCursorController != null) {
+			observer.addOnTouchModeChangeListener(mSelectionModifierCursorController);
+		}
 		if (hasTransientState() && getSelectionStart() != getSelectionEnd()) {
 			// Since transient state is reference counted make sure it stays matched
 			// with our own calls to it for managing selection.
 			// The action mode callback will set this back again when/if the action mode starts.
 			setHasTransientState(false);
 		}
+		getContext().getApplicationContext().registerComponentCallbacks(mTrimCallbacks);
+		if (mDocumentDetached) {
+			mDocumentDetached = false;
+			if (mDocument.getGeneration() != mDetachedGeneration) {
+				// The caches missed the edits made while detached
+				setText(mText);
+			} else {
+				// Nothing changed: the caches, folds, carets and selection are kept, only the layout is made again
+				mDocument.addListener(this);
+				if (mSavedSelStart < 0 && mDocument.getListenerCount() > 1 && !isFocused())
+					saveSelection();
+				requestLayout();
+				invalidate();
+			}
+		}
+	}
+
+	/**
+	 * Replace the word being completed by the completion, called when the input method commits one of the completions
+	 * or by clients showing the completions themselves.
+	 */
+	public void onCommitCompletion(CompletionInfo completion) {
+		final int cursor = getSelectionStart();
+		if (mCompletionStart < 0 || cursor < mCompletionStart || completion.getText() == null)
+			return;
+		mText.replace(mCompletionStart, cursor, completion.getText());
 	}
 
 	/**
@@ -2517,6 +4037,17 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			mPreDrawRegistered = false;
 		}
 
+		if (mSpanFlushPosted) {
+			removeCallbacks(mSpanFlusher);
+			mSpanFlushPosted = false;
+			flushSpanChanges();
+		}
+
+		if (mMemoryCheckPosted) {
+			removeCallbacks(mMemoryChecker);
+			mMemoryCheckPosted = false;
+		}
+
 		// mEditor.onDetachedFromWindow();
 		if (mBlink != null) {
 			mBlink.removeCallbacks(mBlink);
@@ -2525,10 +4056,86 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		if (mInsertionPointCursorController != null) {
 			mInsertionPointCursorController.onDetached();
 		}
+		if (mSelectionModifierCursorController != null) {
+			mSelectionModifierCursorController.onDetached();
+		}
 		mPreserveDetachedSelection = true;
 		hideControllers();
 		mPreserveDetachedSelection = false;
 		mTemporaryDetach = false;
+		getContext().getApplicationContext().unregisterComponentCallbacks(mTrimCallbacks);
+		// A closed pane must neither be kept by the document nor keep processing its edits
+		nullLayouts();
+		mDocument.removeListener(this);
+		mDocumentDetached = true;
+		mDetachedGeneration = mDocument.getGeneration();
+	}
+
+	/**
+	 * Update the caches of the text area after the characters in [start, start + before) of the text were replaced by
+	 * after characters, by this text area or another one showing the same document
+	 */
+	@Override
+	public void onDocumentChanged(TextDocument document, int start, int before, int after, int firstLine, int lastLine,
+			int lineDelta) {
+		final Editable buffer = mText;
+		mStyleRuns.onTextChanged(firstLine, lastLine, lineDelta, start - mLineIndex.getLineStart(firstLine), before,
+				after);
+		mStyledLast = mStyledFirst - 1;
+		if (mHighlighter != null)
+			mHighlighter.onTextChanged(firstLine, lastLine, lineDelta);
+		if (mSpellChecker != null)
+			mSpellChecker.onTextChanged(firstLine, lastLine, lineDelta, start - mLineIndex.getLineStart(firstLine),
+					before, after);
+		if (mSearcher != null)
+			mSearcher.onTextChanged(start, before, after);
+		mCarets.onTextChanged(start, before, after);
+		mColumnSelection.onTextChanged(firstLine, lastLine, lineDelta);
+		mFolds.onTextChanged(firstLine, lastLine, lineDelta);
+		if (mOutline != null)
+			mOutline.onTextChanged(buffer, start, before, after, firstLine, lastLine);
+		if (mOverview != null) {
+			mOverview.onTextChanged(firstLine, lastLine, lineDelta);
+			postMemoryCheck();
+		}
+		if (mCompletionTrie != null) {
+			mCompletionTrie.adjustDocument(buffer, mLineIndex.getLineStart(firstLine), mLineIndex.getLineEnd(lastLine),
+					1);
+			updateCompletions();
+		}
+		if (mBracketIndex != null) {
+			mBracketIndex.onTextChanged(buffer, firstLine, lastLine, lineDelta);
+			updateBracketMatch();
+		}
+		mTextGeneration++;
+		if (mGutter != null && mGutter.setMaxNumber(mLineIndex.getLineCount()))
+			requestLayout();
+		// inline from handleTextChanged(buffer, start, before, after);
+		// invalidate();
+		hideCursorControllers();
+		if (mSavedSelStart >= 0) {
+			// Keep the saved cursor on the same text
+			mSavedSelStart = shiftOffset(mSavedSelStart, start, before, after);
+			mSavedSelEnd = shiftOffset(mSavedSelEnd, start, before, after);
+		}
+		if (mSavedSelStart >= 0 || (!isFocused() && mDocument.getListenerCount() > 1)) {
+			// Edited from another view of the document: do not scroll to the cursor of that view
+			invalidate();
+			checkForResize();
+		} else if (mIMS.mBatchEditNesting == 0) {
+			updateAfterEdit();
+		}
+		mIMS.mContentChanged = true;
+		if (mIMS.mChangedStart < 0) {
+			mIMS.mChangedStart = start;
+			mIMS.mChangedEnd = start + before;
+		} else {
+			mIMS.mChangedStart = Math.min(mIMS.mChangedStart, start);
+			mIMS.mChangedEnd = Math.max(mIMS.mChangedEnd, start + before - mIMS.mChangedDelta);
+		}
+		mIMS.mChangedDelta += after - before;
+		// inline from sendOnTextChanged(buffer, start, before, after);
+		hideCursorControllers();
 	}
 
 	@Override
@@ -2584,6 +4191,9 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 
 		mTextPaint.setColor(color);
 		mTextPaint.drawableState = getDrawableState();
+		// A layout shared with other views of the document draws with its own paint, given the colors of this view
+		if (layout.getPaint() != mTextPaint)
+			layout.getPaint().set(mTextPaint);
 
 		canvas.save();
 
@@ -2591,9 +4201,10 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		int extendedPaddingBottom = getExtendedPaddingBottom();
 
 		final int vspace = getBottom() - getTop() - compoundPaddingBottom - compoundPaddingTop;
-		final int maxScrollY = mLayout.getHeight() - vspace;
+		final int maxScrollY = getVisibleLayoutHeight() - vspace;
 
-		float clipLeft = compoundPaddingLeft + scrollX;
+		// The gutter is drawn with the text, inside the compound padding
+		float clipLeft = (mGutter != null ? getPaddingLeft() : compoundPaddingLeft) + scrollX;
 		float clipTop = (scrollY == 0) ? 0 : extendedPaddingTop + scrollY;
 		float clipRight = right - left - compoundPaddingRight + scrollX;
 		float clipBottom = bottom - top + scrollY - ((scrollY == maxScrollY) ? 0 : extendedPaddingBottom);
@@ -2606,6 +4217,17 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			clipBottom += Math.max(0, mShadowDy + mShadowRadius);
 		}
 
+		if (mZoomScale != 1) {
+			// Draw the existing layout scaled about the focus of the gesture, with a clip still covering the view
+			final float focusX = scrollX + mZoomFocusX;
+			final float focusY = scrollY + mZoomFocusY;
+			canvas.scale(mZoomScale, mZoomScale, focusX, focusY);
+			clipLeft = focusX + (clipLeft - focusX) / mZoomScale;
+			clipTop = focusY + (clipTop - focusY) / mZoomScale;
+			clipRight = focusX + (clipRight - focusX) / mZoomScale;
+			clipBottom = focusY + (clipBottom - focusY) / mZoomScale;
+		}
+
 		canvas.clipRect(clipLeft, clipTop, clipRight, clipBottom);
 
 		int voffsetText = 0;
@@ -2670,9 +4292,13 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			highlight = null;
 		}
 		// TODO L.A.H. Unfortunately, hardware acceleration is not publicly accessible
-		layout.draw(canvas, highlight, mHighlightPaint, cursorOffsetVertical);
+		drawStyledLayout(canvas, layout, highlight, cursorOffsetVertical);
 
 		canvas.restore();
+
+		if (mFastScroll != null)
+			mFastScroll.draw(canvas, scrollX + right - left - getPaddingRight(), scrollY + getPaddingTop(), scrollY
+					+ bottom - top - getPaddingBottom(), SystemClock.uptimeMillis());
 	}
 
 	/**
@@ -2683,6 +4309,46 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		// intentionally empty
 	}
 
+	/**
+	 * Drag the fast-scroll thumb, scrolling to the paragraph at the same fraction of the text
+	 * 
+	 * @return whether the event was consumed by the thumb
+	 */
+	private boolean onFastScrollTouchEvent(MotionEvent event) {
+		final float right = getWidth() - getPaddingRight();
+		final float top = getPaddingTop();
+		final float bottom = getHeight() - getPaddingBottom();
+		switch (event.getActionMasked()) {
+		case MotionEvent.ACTION_DOWN: {
+			if (!mFastScroll.beginDrag(event.getX(), event.getY(), right, top, bottom, SystemClock.uptimeMillis()))
+				return false;
+			stopFling();
+			final ViewParent parent = getParent();
+			if (parent != null)
+				parent.requestDisallowInterceptTouchEvent(true);
+			invalidate();
+			return true;
+		}
+		case MotionEvent.ACTION_MOVE: {
+			if (!mFastScroll.isDragging())
+				return false;
+			final float fraction = mFastScroll.moveTo(event.getY(), top, bottom);
+			final int visible = getLastVisibleParagraph() - getFirstVisibleParagraph();
+			scrollToParagraph(Math.round(fraction * Math.max(0, mLineIndex.getLineCount() - 1 - visible)));
+			invalidate();
+			return true;
+		}
+		case MotionEvent.ACTION_UP:
+		case MotionEvent.ACTION_CANCEL:
+			if (!mFastScroll.isDragging())
+				return false;
+			mFastScroll.endDrag(SystemClock.uptimeMillis());
+			postInvalidateDelayed(FastScrollThumb.HIDE_DELAY);
+			return true;
+		}
+		return mFastScroll.isDragging();
+	}
+
 	@Override
 	public void onFinishTemporaryDetach() {
 		super.onFinishTemporaryDetach();
@@ -2693,6 +4359,12 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		mTemporaryDetach = false;
 	}
 
+	private void onFoldsChanged() {
+		mHighlightPathBogus = true;
+		requestLayout();
+		invalidate();
+	}
+
 	@Override
 	protected void onFocusChanged(boolean focused, int direction, Rect previouslyFocusedRect) {
 		if (mTemporaryDetach) {
@@ -2707,9 +4379,28 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			mTouchFocusSelected = true;
 			mSelectionMoved = false;
 			makeBlink();
+			// The other views of the document keep their cursors while this one moves the selection of the text
+			for (int i = 0; i < mDocument.getListenerCount(); i++) {
+				final TextDocument.Listener listener = mDocument.getListener(i);
+				if (listener != this && listener instanceof TextArea)
+					((TextArea) listener).saveSelection();
+			}
+			if (mSavedSelStart >= 0) {
+				// Take back the cursor this view had before another view of the document was focused
+				final int length = mText.length();
+				final int selStart = Math.min(mSavedSelStart, length), selEnd = Math.min(mSavedSelEnd, length);
+				mSavedSelStart = mSavedSelEnd = -1;
+				Selection.setSelection(mText, selStart, selEnd);
+			}
+			// The trie may have been dropped by trimMemory()
+			if (mCompletionEnabled && mCompletionTrie == null)
+				loadCompletionTrie();
 		} else {
 			// Don't leave us in the middle of a batch edit.
 			onEndBatchEdit();
+			// The text has a single selection, which the view focused next will move
+			if (mDocument.getListenerCount() > 1)
+				saveSelection();
 			if (mTemporaryDetach)
 				mPreserveDetachedSelection = true;
 			hideControllers();
@@ -2725,15 +4416,24 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 	@Override
 	protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
 		super.onLayout(changed, left, top, right, bottom);
+		updateStyleRuns();
 		if (mDeferScroll >= 0) {
 			int curs = mDeferScroll;
 			mDeferScroll = -1;
 			bringPointIntoView(Math.min(curs, mText.length()));
 		}
+		if (mDeferScrollParagraph >= 0) {
+			final int paragraph = mDeferScrollParagraph;
+			mDeferScrollParagraph = -1;
+			scrollToParagraph(paragraph);
+		}
 	}
 
 	@Override
 	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+		// The gutter width, hence the compound padding, depends on the font
+		if (mGutter != null)
+			mGutter.setFont(mFont);
 		int widthMode = MeasureSpec.getMode(widthMeasureSpec);
 		int heightMode = MeasureSpec.getMode(heightMeasureSpec);
 		int widthSize = MeasureSpec.getSize(widthMeasureSpec);
@@ -2841,7 +4541,7 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		 * We didn't let makeNewLayout() register to bring the cursor into view, so do it here if there is any
 		 * possibility that it is needed.
 		 */
-		if (mLayout.getWidth() > unpaddedWidth || mLayout.getHeight() > unpaddedHeight) {
+		if (mLayout.getWidth() > unpaddedWidth || getVisibleLayoutHeight() > unpaddedHeight) {
 			registerForPreDraw();
 		} else {
 			scrollTo(0, 0);
@@ -2850,6 +4550,32 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		setMeasuredDimension(width, height);
 	}
 
+	@Override
+	public void onLinesRestyled(int firstLine, int lastLine) {
+		if (firstLine <= mStyledLast && lastLine >= mStyledFirst)
+			mStyledLast = mStyledFirst - 1;
+		if (mLayout != null && firstLine <= getLastVisibleParagraph() && lastLine >= getFirstVisibleParagraph())
+			updateStyleRuns();
+	}
+
+	@Override
+	public void onMatchesFound(int firstIndex, int count) {
+		if (mLayout == null)
+			return;
+		final int visibleStart = mLineIndex.getLineStart(getFirstVisibleParagraph());
+		final int visibleEnd = mLineIndex.getLineEnd(getLastVisibleParagraph());
+		if (mSearchMatches.getStart(firstIndex) < visibleEnd
+				&& mSearchMatches.getEnd(firstIndex + count - 1) > visibleStart)
+			invalidate();
+	}
+
+	@Override
+	public void onParagraphsChecked(int firstLine, int lastLine) {
+		if (mLayout != null && firstLine <= getLastVisibleParagraph() && lastLine >= getFirstVisibleParagraph())
+			invalidate();
+		postMemoryCheck();
+	}
+
 	@Override
 	public boolean onPreDraw() {
 		if (mLayout == null) {
@@ -2879,8 +4605,71 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 	protected void onScrollChanged(int horiz, int vert, int oldHoriz, int oldVert) {
 		super.onScrollChanged(horiz, vert, oldHoriz, oldVert);
 		if (mPositionListener != null) {
-			mPositionListener.onScrollChanged();
+			mPositionListener.onTextScrolled();
+		}
+		updateStyleRuns();
+		if (mFastScroll != null)
+			updateFastScroll();
+	}
+
+	/**
+	 * Scroll the text by dragging it and fling it on release
+	 * 
+	 * @return whether the event is part of a drag, in which case it must not move the cursor
+	 */
+	private boolean onScrollTouchEvent(MotionEvent event) {
+		if (mVelocityTracker == null)
+			mVelocityTracker = VelocityTracker.obtain();
+		mVelocityTracker.addMovement(event);
+		switch (event.getActionMasked()) {
+		case MotionEvent.ACTION_DOWN: {
+			// Touching the text stops a fling
+			stopFling();
+			mIsBeingDragged = false;
+			mLastMotionY = event.getY();
+			return false;
+		}
+		case MotionEvent.ACTION_MOVE: {
+			final float y = event.getY();
+			if (!mIsBeingDragged) {
+				if (Math.abs(y - mLastMotionY) <= mTouchSlop)
+					return false;
+				mIsBeingDragged = true;
+				mLastMotionY = y;
+				cancelLongPress();
+				final ViewParent parent = getParent();
+				if (parent != null)
+					parent.requestDisallowInterceptTouchEvent(true);
+			}
+			final int dy = (int) (mLastMotionY - y);
+			// Keep the fraction of a pixel for the next move
+			mLastMotionY -= dy;
+			final int scrollY = Math.max(0, Math.min(getScrollY() + dy, getMaxScrollY()));
+			if (scrollY != getScrollY())
+				scrollTo(getScrollX(), scrollY);
+			return true;
+		}
+		case MotionEvent.ACTION_UP:
+		case MotionEvent.ACTION_CANCEL: {
+			final boolean dragged = mIsBeingDragged;
+			if (dragged && event.getActionMasked() == MotionEvent.ACTION_UP) {
+				mVelocityTracker.computeCurrentVelocity(1000, mMaximumFlingVelocity);
+				final int velocityY = (int) mVelocityTracker.getYVelocity();
+				if (Math.abs(velocityY) > mMinimumFlingVelocity)
+					fling(velocityY);
+			}
+			mIsBeingDragged = false;
+			mVelocityTracker.recycle();
+			mVelocityTracker = null;
+			return dragged;
 		}
+		}
+		return mIsBeingDragged;
+	}
+
+	@Override
+	public void onSearchFinished(int matchCount) {
+		// intentionally empty, the matches were drawn as they arrived
 	}
 
 	@Override
@@ -2896,34 +4685,24 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		mTemporaryDetach = true;
 	}
 
-	public void onTextChanged(CharSequence buffer, int start, int before, int after) {
-		// if (DEBUG_EXTRACT)
-		// Log.v(LOG_TAG, "onTextChanged start=" + start + " before=" + before + " after=" + after + ": " + buffer);
-		// inline from handleTextChanged(buffer, start, before, after);
-		// invalidate();
-		updateAfterEdit();
-		hideCursorControllers();
-		if (mIMS.mBatchEditNesting == 0) {
-			updateAfterEdit();
-		}
-		mIMS.mContentChanged = true;
-		if (mIMS.mChangedStart < 0) {
-			mIMS.mChangedStart = start;
-			mIMS.mChangedEnd = start + before;
-		} else {
-			mIMS.mChangedStart = Math.min(mIMS.mChangedStart, start);
-			mIMS.mChangedEnd = Math.max(mIMS.mChangedEnd, start + before - mIMS.mChangedDelta);
-		}
-		mIMS.mChangedDelta += after - before;
-		// inline from sendOnTextChanged(buffer, start, before, after);
-		hideCursorControllers();
-	}
-
 	@Override
 	public boolean onTouchEvent(MotionEvent event) {
 		final int action = event.getActionMasked();
 
-		// mEditor.onTouchEvent(event);
+		if (mFastScroll != null && mLayout != null && onFastScrollTouchEvent(event))
+			return true;
+
+		if (mScaleDetector != null) {
+			mScaleDetector.onTouchEvent(event);
+			if (mZooming) {
+				// The rest of the gesture neither moves the cursor nor scrolls
+				if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL)
+					mZooming = false;
+				return true;
+			}
+		}
+
+		// mEditor.onTouchEvent(event);
 		if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
 			mLastDownPositionX = event.getX();
 			mLastDownPositionY = event.getY();
@@ -2933,9 +4712,15 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 			mTouchFocusSelected = false;
 			mIgnoreActionUpEvent = false;
 		}
+		if (hasSelectionController()) {
+			getSelectionController().onTouchEvent(event);
+		}
 
 		final boolean superResult = super.onTouchEvent(event);
 
+		if (mLayout != null && onScrollTouchEvent(event))
+			return true;
+
 		/*
 		 * Don't handle the release after a long press, because it will move the selection away from whatever the menu
 		 * action was trying to affect.
@@ -2966,6 +4751,8 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 				if (text.length() > 0) {
 					// Move cursor
 					final int offset = getOffsetForPosition(event.getX(), event.getY());
+					clearCarets();
+					clearColumnSelection();
 					Selection.setSelection(text, offset);
 					if (hasInsertionController()) {
 						getInsertionController().show();
@@ -2983,6 +4770,23 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return superResult;
 	}
 
+	/**
+	 * Drop caches for a {@link ComponentCallbacks2} trim level, the cheapest to rebuild first: the style runs and spell
+	 * checking results outside of the visible paragraphs and the temporary buffers, then the summaries of an overview
+	 * nobody shows, then the completion trie of an unfocused text area, then the layout of a hidden one. Everything is
+	 * rebuilt on demand. This is called with the levels of the application while the text area is attached.
+	 */
+	public void onTrimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+			trimMemory(TRIM_LAYOUT);
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+			trimMemory(TRIM_COMPLETIONS);
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+			trimMemory(TRIM_UNUSED_INDEXES);
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE)
+			trimMemory(TRIM_RENDER_AHEAD);
+	}
+
 	@Override
 	protected void onVisibilityChanged(View changedView, int visibility) {
 		super.onVisibilityChanged(changedView, visibility);
@@ -3011,6 +4815,22 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
+	@Override
+	public boolean performLongClick() {
+		if (super.performLongClick()) {
+			mDiscardNextActionUp = true;
+			return true;
+		}
+		// Select the word under the finger, which is looked up without scanning the text
+		if (!hasSelectionController()
+				|| !selectCurrentWord(getOffsetForPosition(mLastDownPositionX, mLastDownPositionY)))
+			return false;
+		getSelectionController().show();
+		performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
+		mDiscardNextActionUp = true;
+		return true;
+	}
+
 	void prepareCursorControllers() {
 		boolean windowSupportsHandles = false;
 
@@ -3024,6 +4844,8 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		boolean enabled = windowSupportsHandles && getLayout() != null;
 		mInsertionControllerEnabled = enabled && isCursorVisible();
 
+		mSelectionControllerEnabled = enabled && mText != null;
+
 		if (!mInsertionControllerEnabled) {
 			hideInsertionPointCursorController();
 			if (mInsertionPointCursorController != null) {
@@ -3031,6 +4853,14 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 				mInsertionPointCursorController = null;
 			}
 		}
+
+		if (!mSelectionControllerEnabled) {
+			hideSelectionModifierCursorController();
+			if (mSelectionModifierCursorController != null) {
+				mSelectionModifierCursorController.onDetached();
+				mSelectionModifierCursorController = null;
+			}
+		}
 	}
 
 	/**
@@ -3083,6 +4913,16 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return TextUtils.packRangeInLong(min, max);
 	}
 
+	/**
+	 * Enforce the memory budget a while after a cache grew, once for all the growths in the meantime
+	 */
+	private void postMemoryCheck() {
+		if (mMemoryBudget > 0 && !mMemoryCheckPosted) {
+			mMemoryCheckPosted = true;
+			postDelayed(mMemoryChecker, MEMORY_CHECK_DELAY);
+		}
+	}
+
 	private void registerForPreDraw() {
 		if (!mPreDrawRegistered) {
 			getViewTreeObserver().addOnPreDrawListener(this);
@@ -3090,6 +4930,38 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
+	/**
+	 * Replace all the matches of the query by the replacement. The matches and their replacements are found in a
+	 * single pass over a snapshot of the text, then each match is replaced on its own, from the last to the first, in
+	 * one batch edit, so that the spans, folds, carets and selection between the matches are kept.
+	 * 
+	 * @param flags
+	 *            Combination of {@link TextSearcher#FLAG_REGEX} and {@link TextSearcher#FLAG_IGNORE_CASE}
+	 * @return the number of replacements
+	 */
+	public int replaceAll(String query, String replacement, int flags) {
+		if (query == null || query.length() == 0)
+			return 0;
+
+		final TextSearcher.Replacement result = TextSearcher.replaceAll(getTextSnapshot(), query, replacement, flags);
+		if (result == null)
+			return 0;
+
+		final MatchList matches = result.getMatches();
+		final CharSequence contents = result.getContents();
+		beginBatchEdit();
+		beginSpanBatch();
+		try {
+			for (int i = matches.getCount() - 1; i >= 0; i--)
+				mText.replace(matches.getStart(i), matches.getEnd(i), contents, result.getContentStart(i),
+						result.getContentEnd(i));
+		} finally {
+			endSpanBatch();
+			endBatchEdit();
+		}
+		return result.getCount();
+	}
+
 	private void resumeBlink() {
 		if (mBlink != null) {
 			mBlink.uncancel();
@@ -3097,12 +4969,78 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
+	private boolean sameCompletions(int count) {
+		if (mCompletions == null || mCompletions.length != count)
+			return false;
+		for (int i = 0; i < count; i++) {
+			if (mCompletionLookup[i] != mCompletionIds[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Scroll vertically so that the paragraph is at the top of the view, or as close to it as the end of the text
+	 * allows. The paragraph is found with the line index and the layout line with a binary search, so a jump costs
+	 * O(log n) whatever the distance.
+	 */
+	public void scrollToParagraph(int paragraph) {
+		if (mLayout == null)
+			return;
+		paragraph = Math.max(0, Math.min(paragraph, mLineIndex.getLineCount() - 1));
+		final int line = mLayout.getLineForOffset(mLineIndex.getLineStart(paragraph));
+		final int y = Math.max(0, Math.min(toVisualVertical(mLayout.getLineTop(line)), getMaxScrollY()));
+		if (y != getScrollY())
+			scrollTo(getScrollX(), y);
+	}
+
+	/**
+	 * Keep the current selection of the text as the cursor of this view, e.g. while another view of the document has
+	 * the focus; nothing is done if it is already kept
+	 */
+	private void saveSelection() {
+		if (mSavedSelStart >= 0)
+			return;
+		mSavedSelStart = Math.max(0, Selection.getSelectionStart(mText));
+		mSavedSelEnd = Math.max(0, Selection.getSelectionEnd(mText));
+	}
+
 	boolean selectAllText() {
 		final int length = mText.length();
 		Selection.setSelection(mText, 0, length);
 		return length > 0;
 	}
 
+	/**
+	 * Select the word around the offset, see {@link WordBoundaryFinder}
+	 * 
+	 * @return false if there is no word to select
+	 */
+	boolean selectCurrentWord(int offset) {
+		if (mText == null || !mWordBoundaryFinder.find(mText, offset, mTextGeneration))
+			return false;
+		Selection.setSelection(mText, mWordBoundaryFinder.getStart(), mWordBoundaryFinder.getEnd());
+		return true;
+	}
+
+	/**
+	 * Select the first search match after the current selection, wrapping around at the end of the text, and scroll
+	 * it into view.
+	 * 
+	 * @return false if there is no match
+	 */
+	public boolean selectNextMatch() {
+		final int count = mSearchMatches.getCount();
+		if (count == 0)
+			return false;
+		int index = mSearchMatches.indexOfFirstStartingFrom(Math.max(0, getSelectionEnd()));
+		if (index == count)
+			index = 0;
+		Selection.setSelection(mText, mSearchMatches.getStart(index), mSearchMatches.getEnd(index));
+		bringPointIntoView(mSearchMatches.getStart(index));
+		return true;
+	}
+
 	void sendOnTextChanged(CharSequence text, int start, int before, int after) {
 		// mEditor.sendOnTextChanged(start, after);
 		// Hide the controllers as soon as text is modified (typing, procedural...)
@@ -3111,6 +5049,76 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		hideCursorControllers();
 	}
 
+	/**
+	 * Enable or disable the completion of the TeX command or environment name at the cursor. The completions come from
+	 * a bundled dictionary, loaded in the background on first use, and from the words of the document; they are
+	 * displayed by the input method and available from {@link #getCompletions()}.
+	 */
+	public void setAutoCompletionEnabled(boolean enabled) {
+		if (mCompletionEnabled == enabled)
+			return;
+		mCompletionEnabled = enabled;
+		if (!enabled) {
+			mCompletionTrie = null;
+			updateCompletions();
+			return;
+		}
+		loadCompletionTrie();
+	}
+
+	/**
+	 * Sets the colors used to highlight a bracket and its partner, and an unbalanced or mismatched bracket.
+	 */
+	public void setBracketMatchColors(int matchColor, int mismatchColor) {
+		mBracketMatchColor = matchColor;
+		mBracketMismatchColor = mismatchColor;
+		if (mBracketMatchShown)
+			invalidate();
+	}
+
+	/**
+	 * Enable or disable the highlighting of the bracket or \begin/\end at the cursor and its partner.
+	 */
+	public void setBracketMatchingEnabled(boolean enabled) {
+		if (enabled == (mBracketIndex != null))
+			return;
+
+		if (enabled) {
+			mBracketIndex = new BracketIndex(mLineIndex);
+			if (mText != null)
+				mBracketIndex.onTextChanged(mText, 0, mLineIndex.getLineCount() - 1, mLineIndex.getLineCount() - 1);
+		} else {
+			mBracketIndex = null;
+		}
+		updateBracketMatch();
+	}
+
+	/**
+	 * Select the block of text whose opposite corners are the given offsets: the columns between theirs on the
+	 * paragraphs between theirs, e.g. a column of a tabular environment. Columns are counted in characters, which
+	 * matches the display with the default monospaced font.
+	 */
+	public void setColumnSelection(int anchor, int focus) {
+		clearColumnSelection();
+		final int anchorLine = mLineIndex.getLineForOffset(anchor), focusLine = mLineIndex.getLineForOffset(focus);
+		mColumnSelection.set(anchorLine, anchor - mLineIndex.getLineStart(anchorLine), focusLine,
+				focus - mLineIndex.getLineStart(focusLine));
+		invalidateColumnSelection();
+	}
+
+	/**
+	 * Set the drawable of the cursor, 0 to draw none; it is loaded here once rather than each time the cursor moves
+	 */
+	public void setCursorDrawableRes(int res) {
+		if (mCursorDrawableRes == res)
+			return;
+		mCursorDrawableRes = res;
+		for (int i = 0; i < mCursorDrawable.length; i++)
+			mCursorDrawable[i] = res == 0 ? null : getResources().getDrawable(res);
+		mHighlightPathBogus = true;
+		invalidate();
+	}
+
 	/**
 	 * Set whether the cursor is visible. The default is true. Note that this property only makes sense for editable
 	 * TextView.
@@ -3169,6 +5177,39 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		makeBlink();
 	}
 
+	/**
+	 * Show a draggable thumb along the right edge while scrolling texts longer than
+	 * {@link FastScrollThumb#MIN_PAGES} screens.
+	 */
+	public void setFastScrollEnabled(boolean enabled) {
+		if (enabled == (mFastScroll != null))
+			return;
+		if (enabled) {
+			final float density = getResources().getDisplayMetrics().density;
+			mFastScroll = new FastScrollThumb(8 * density, 48 * density);
+		} else {
+			mFastScroll = null;
+		}
+		invalidate();
+	}
+
+	private void setFont(Typeface typeface, int style, float size, int flags) {
+		mTypeface = typeface;
+		mTypefaceStyle = style;
+		final FontCache.Font font = FontCache.get(typeface, style, size, mTextPaint.density, flags);
+		if (font == mFont)
+			return;
+		mFont = font;
+		font.applyTo(mTextPaint);
+		mStylePaintsBogus = true;
+
+		if (mLayout != null) {
+			nullLayouts();
+			requestLayout();
+			invalidate();
+		}
+	}
+
 	/**
 	 * Sets the horizontal alignment of the text and the vertical gravity that will be used when there is extra space in
 	 * the TextView beyond what is required for the text itself.
@@ -3260,6 +5301,35 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
+	/**
+	 * Sets the colors of the line numbers and of the background of the gutter.
+	 */
+	public void setLineNumberColors(int textColor, int backgroundColor) {
+		if (mGutter != null) {
+			mGutter.setColors(textColor, backgroundColor);
+			invalidate();
+		}
+	}
+
+	/**
+	 * Show or hide a gutter with the paragraph numbers on the left of the text.
+	 */
+	public void setLineNumbersEnabled(boolean enabled) {
+		if (enabled == (mGutter != null))
+			return;
+
+		if (enabled) {
+			mGutter = new LineNumberGutter();
+			mGutter.setFont(mFont);
+			mGutter.setMaxNumber(mLineIndex.getLineCount());
+		} else {
+			mGutter = null;
+		}
+		// The width available to the text changed
+		requestLayout();
+		invalidate();
+	}
+
 	/**
 	 * Makes the TextView exactly this many lines tall.
 	 * 
@@ -3273,6 +5343,27 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		invalidate();
 	}
 
+	/**
+	 * Set the estimated number of bytes the text area should fit in, 0 for no budget. When the budget is set and when
+	 * a text is set, caches are dropped in the order of {@link #onTrimMemory(int)} until the estimate of
+	 * {@link #getMemoryUsage(MemoryUsage)} fits; the text, its spans and its indexes are counted but never dropped.
+	 */
+	public void setMemoryBudget(long bytes) {
+		mMemoryBudget = bytes;
+		enforceMemoryBudget();
+	}
+
+	/**
+	 * Sets the color used to underline the misspelled words.
+	 */
+	public void setMisspelledColor(int color) {
+		if (mMisspelledColor != color) {
+			mMisspelledColor = color;
+			if (mSpellChecker != null)
+				invalidate();
+		}
+	}
+
 	@Override
 	public void setPadding(int left, int top, int right, int bottom) {
 		if (left != getPaddingLeft() || right != getPaddingRight() || top != getPaddingTop()
@@ -3304,31 +5395,28 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 	 * @see Paint#setFlags
 	 */
 	public void setPaintFlags(int flags) {
-		if (mTextPaint.getFlags() != flags) {
-			mTextPaint.setFlags(flags);
-
-			if (mLayout != null) {
-				nullLayouts();
-				requestLayout();
-				invalidate();
-			}
-		}
+		if (mTextPaint.getFlags() != flags)
+			setFont(mTypeface, mTypefaceStyle, mTextPaint.getTextSize(), flags);
 	}
 
 	private void setRawTextSize(float size) {
-		if (size != mTextPaint.getTextSize()) {
-			mTextPaint.setTextSize(size);
-
-			if (mLayout != null) {
-				nullLayouts();
-				requestLayout();
-				invalidate();
-			}
-		}
+		if (size != mTextPaint.getTextSize())
+			setFont(mTypeface, mTypefaceStyle, size, mTextPaint.getFlags());
 	}
 
 	public void setScroller(Scroller s) {
 		mScroller = s;
+		mFlingDirection = 0;
+	}
+
+	/**
+	 * Sets the color used to highlight the search matches.
+	 */
+	public void setSearchHighlightColor(int color) {
+		if (mSearchHighlightColor != color) {
+			mSearchHighlightColor = color;
+			invalidate();
+		}
 	}
 
 	/**
@@ -3336,6 +5424,7 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 	 */
 	public void setShadowLayer(float radius, float dx, float dy, int color) {
 		mTextPaint.setShadowLayer(radius, dx, dy, color);
+		mStylePaintsBogus = true;
 		mShadowRadius = radius;
 		mShadowDx = dx;
 		mShadowDy = dy;
@@ -3344,6 +5433,66 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		invalidate();
 	}
 
+	/**
+	 * Set the dictionary against which the prose of the visible paragraphs is checked in the background, null to
+	 * disable spell checking. Load the dictionary with {@link SpellDictionary#load(java.io.InputStream)} off the UI
+	 * thread; words can then be added with {@link SpellChecker#addToPersonalDictionary(String)}.
+	 */
+	public void setSpellCheckDictionary(SpellDictionary dictionary) {
+		if (dictionary == null) {
+			if (mSpellChecker != null) {
+				mSpellChecker.setDictionary(null);
+				mSpellChecker.setCallback(null);
+				mSpellChecker = null;
+				invalidate();
+			}
+			return;
+		}
+		if (mSpellChecker == null) {
+			mSpellChecker = new SpellChecker(mLineIndex);
+			mSpellChecker.setCallback(this);
+			mSpellChecker.setHighlighter(mHighlighter);
+			mSpellChecker.attach(mText);
+		}
+		mSpellChecker.setDictionary(dictionary);
+		updateStyleRuns();
+	}
+
+	/**
+	 * Set the color of one of the {@link TexLexer} styles, 0 to draw the style in the text color.
+	 */
+	public void setSyntaxColor(int style, int color) {
+		if (mStyleColors[style] != color) {
+			mStyleColors[style] = color;
+			mStylePaintsBogus = true;
+			invalidate();
+		}
+	}
+
+	/**
+	 * Enable or disable the incremental TeX syntax highlighter.
+	 */
+	public void setSyntaxHighlightingEnabled(boolean enabled) {
+		if (enabled == (mHighlighter != null))
+			return;
+
+		if (enabled) {
+			mHighlighter = new IncrementalHighlighter(mLineIndex);
+			mHighlighter.setCallback(this);
+			mHighlighter.attach(mText);
+		} else {
+			mHighlighter.setCallback(null);
+			mHighlighter = null;
+			mStyleRuns.clearRuns();
+			mStyledLast = mStyledFirst - 1;
+			invalidate();
+		}
+		if (mSpellChecker != null)
+			mSpellChecker.setHighlighter(mHighlighter);
+		if (mOverview != null)
+			mOverview.setHighlighter(mHighlighter);
+	}
+
 	public void setText(Editable text) {
 		// if (mText != null)
 		// throw new IllegalStateException("TextArea does not allow second invocation of setText."
@@ -3353,16 +5502,70 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		mIMM.restartInput(this);
 		// TODO L.A.H. do a replace the content with the content of text, not simply set the value
 		// so client should do exactly one setText() then getText() and manipulate the resulting Editable
+		if (mCompletionTrie != null) {
+			// The words of the new text are counted by onDocumentChanged() below
+			mCompletionTrie.beginUpdate();
+			if (mText != null)
+				mCompletionTrie.adjustDocument(mText, 0, mText.length(), -1);
+		}
+		// Give the layout back to the document being left, before the new one can hand out the same layout
+		final int layoutWidth = mLayout != null ? mLayout.getWidth() : -1;
+		nullLayouts();
+		mDocument.removeListener(this);
+		mDocumentDetached = false;
 		mText = text;
 		// mText.replace(0, mText.length(), text);
-		mText.setSpan(this, 0, mText.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+		// Another view may already show the text, in which case its document and line index are shared
+		mDocument = TextDocument.of(text);
+		mDocument.addListener(this);
+		mLineIndex = mDocument.getLineIndex();
+		if (mHighlighter != null)
+			mHighlighter.setLineIndex(mLineIndex);
+		if (mSpellChecker != null)
+			mSpellChecker.setLineIndex(mLineIndex);
+		if (mBracketIndex != null)
+			mBracketIndex.setLineIndex(mLineIndex);
+		if (mOutline != null)
+			mOutline.setLineIndex(mLineIndex);
+		if (mOverview != null)
+			mOverview.setLineIndex(mLineIndex);
+		mSavedSelStart = mSavedSelEnd = -1;
+		if (mDocument.getListenerCount() > 1 && !isFocused())
+			// The selection of the text belongs to the views already showing it
+			saveSelection();
+		mCarets.clear();
+		mColumnSelection.clear();
 		final int textLength = text.length();
-		if (mLayout != null) {
-			checkForRelayout();
+		if (layoutWidth >= 0) {
+			makeNewLayout(layoutWidth, false);
+			requestLayout();
+			invalidate();
 		}
 		hideCursorControllers(); // inline old sendOnTextChanged(text, 0, oldlen, textLength);
-		onTextChanged(text, 0, 0, textLength);
+		mStyleRuns.clear();
+		mFolds.clear();
+		if (mOutline != null)
+			mOutline.clear();
+		if (mOverview != null)
+			mOverview.clear();
+		if (mBracketIndex != null)
+			mBracketIndex.clear();
+		if (mSpellChecker != null)
+			mSpellChecker.clear();
+		final int lineCount = mLineIndex.getLineCount();
+		onDocumentChanged(mDocument, 0, 0, textLength, 0, lineCount - 1, lineCount - 1);
+		if (mCompletionTrie != null) {
+			mCompletionTrie.endUpdate();
+			updateCompletions();
+		}
+		if (mHighlighter != null)
+			mHighlighter.attach(mText);
+		if (mSpellChecker != null)
+			mSpellChecker.attach(mText);
+		if (mOverview != null)
+			mOverview.attach(mText);
 		prepareCursorControllers();
+		enforceMemoryBudget();
 	}
 
 	/**
@@ -3387,36 +5590,15 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 	}
 
 	public void setTypeface(Typeface tf) {
-		if (mTextPaint.getTypeface() != tf) {
-			mTextPaint.setTypeface(tf);
-
-			if (mLayout != null) {
-				nullLayouts();
-				requestLayout();
-				invalidate();
-			}
-		}
+		setTypeface(tf, 0);
 	}
 
+	/**
+	 * Use the typeface derived from tf with the given style, the styling it does not provide is done algorithmically.
+	 * The derived typeface and its measurements are shared through {@link FontCache} by all the views using it.
+	 */
 	public void setTypeface(Typeface tf, int style) {
-		if (style > 0) {
-			if (tf == null) {
-				tf = Typeface.defaultFromStyle(style);
-			} else {
-				tf = Typeface.create(tf, style);
-			}
-
-			setTypeface(tf);
-			// now compute what (if any) algorithmic styling is needed
-			int typefaceStyle = tf != null ? tf.getStyle() : 0;
-			int need = style & ~typefaceStyle;
-			mTextPaint.setFakeBoldText((need & Typeface.BOLD) != 0);
-			mTextPaint.setTextSkewX((need & Typeface.ITALIC) != 0 ? -0.25f : 0);
-		} else {
-			mTextPaint.setFakeBoldText(false);
-			mTextPaint.setTextSkewX(0);
-			setTypeface(tf);
-		}
+		setFont(tf, style, mTextPaint.getTextSize(), mTextPaint.getFlags());
 	}
 
 	/**
@@ -3437,6 +5619,30 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		invalidate();
 	}
 
+	/**
+	 * Enable or disable pinch-to-zoom. During the gesture the current layout is drawn scaled, and the text is laid
+	 * out once with the new size when the gesture ends.
+	 */
+	public void setZoomEnabled(boolean enabled) {
+		if (enabled == (mScaleDetector != null))
+			return;
+		mScaleDetector = enabled ? new ScaleGestureDetector(getContext(), new ZoomListener()) : null;
+		mZooming = false;
+		mZoomScale = 1;
+		invalidate();
+	}
+
+	/**
+	 * Move the cursor to the section of the outline with the given index and scroll it into view.
+	 * 
+	 * @see #getOutline()
+	 */
+	public void showSection(int index) {
+		final int offset = getOutline().getSections().getStart(index);
+		Selection.setSelection(mText, offset);
+		bringPointIntoView(offset);
+	}
+
 	/**
 	 * @return True when the TextView isFocused and has a valid zero-length selection (cursor).
 	 */
@@ -3455,7 +5661,25 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		return start == end;
 	}
 
-	public void onSpanChanged(Spanned buf, Object what, int oldStart, int newStart, int oldEnd, int newEnd) {
+	@Override
+	public void onSpanAdded(Spannable buf, Object what, int start, int end) {
+		spanChange(buf, what, -1, start, -1, end);
+	}
+
+	@Override
+	public void onSpanChanged(Spannable buf, Object what, int oldStart, int oldEnd, int newStart, int newEnd) {
+		spanChange(buf, what, oldStart, newStart, oldEnd, newEnd);
+	}
+
+	@Override
+	public void onSpanRemoved(Spannable buf, Object what, int start, int end) {
+		spanChange(buf, what, start, -1, end, -1);
+	}
+
+	void spanChange(Spanned buf, Object what, int oldStart, int newStart, int oldEnd, int newEnd) {
+		// The selection is moved by the focused view of the document, this one keeps its saved selection
+		if (mSavedSelStart >= 0 && (what == Selection.SELECTION_START || what == Selection.SELECTION_END))
+			return;
 		// XXX Make the start and end move together if this ends up spending too much time invalidating.
 		boolean selChanged = false;
 		int newSelStart = -1, newSelEnd = -1;
@@ -3481,6 +5705,12 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 		if (selChanged) {
 			mHighlightPathBogus = true;
+			if ((buf.getSpanFlags(what) & Spanned.SPAN_INTERMEDIATE) == 0) {
+				if (mBracketIndex != null)
+					updateBracketMatch();
+				if (mCompletionTrie != null)
+					updateCompletions();
+			}
 			if (!isFocused())
 				mSelectionMoved = true;
 
@@ -3492,13 +5722,17 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 					newSelEnd = Selection.getSelectionEnd(buf);
 				}
 				// onSelectionChanged(newSelStart, newSelEnd);
+				if (newSelStart == newSelEnd)
+					hideSelectionModifierCursorController();
 			}
 		}
 		if (what instanceof UpdateAppearance || what instanceof ParagraphStyle || what instanceof CharacterStyle) {
 			if (mIMS.mBatchEditNesting == 0) {
-				invalidate();
-				mHighlightPathBogus = true;
-				checkForResize();
+				// Coalesced into one invalidation per frame (or per span batch)
+				int start = oldStart < 0 ? newStart : newStart < 0 ? oldStart : Math.min(oldStart, newStart);
+				int end = Math.max(oldEnd, newEnd);
+				if (start >= 0 && end >= start)
+					addSpanDirtyRange(start, end, what instanceof ParagraphStyle);
 			} else {
 				mIMS.mContentChanged = true;
 			}
@@ -3518,12 +5752,104 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
+	/**
+	 * Stop the current fling, if any, where it is
+	 */
+	private void stopFling() {
+		if (mFlingDirection != 0) {
+			mScroller.abortAnimation();
+			mFlingDirection = 0;
+			updateStyleRuns();
+		}
+	}
+
 	private void suspendBlink() {
 		if (mBlink != null) {
 			mBlink.cancel();
 		}
 	}
 
+	/**
+	 * Map a vertical coordinate of the display to the layout, skipping the collapsed ranges
+	 */
+	private int toLayoutVertical(int y) {
+		if (mFolds.getCount() == 0)
+			return y;
+		ensureFoldGeometry();
+		return mFolds.toLayout(y);
+	}
+
+	/**
+	 * Map a vertical coordinate of the layout to the display, coordinates in a collapsed range map to its top
+	 */
+	private int toVisualVertical(int y) {
+		if (mFolds.getCount() == 0)
+			return y;
+		ensureFoldGeometry();
+		return mFolds.toVisual(y);
+	}
+
+	/**
+	 * Drop the caches up to the given priority, from {@link #TRIM_RENDER_AHEAD} to {@link #TRIM_LAYOUT}
+	 */
+	private void trimMemory(int priority) {
+		if (mLayout != null) {
+			// The other paragraphs are lexed again when scrolled into view
+			final int first = getFirstVisibleParagraph();
+			final int last = getLastVisibleParagraph();
+			mStyleRuns.clearRuns(0, first - 1);
+			mStyleRuns.clearRuns(last + 1, Integer.MAX_VALUE);
+			mStyledFirst = Math.max(mStyledFirst, first);
+			mStyledLast = Math.min(mStyledLast, last);
+		} else {
+			mStyleRuns.clearRuns();
+			mStyledLast = mStyledFirst - 1;
+		}
+		if (mSpellChecker != null)
+			mSpellChecker.trimToVisible();
+		CharBufferPool.get().clear();
+		FontCache.releaseWarmFonts();
+
+		if (priority >= TRIM_UNUSED_INDEXES && mOverview != null && mOverview.getListener() == null) {
+			mOverview.clear();
+			mOverview = null;
+		}
+		if (priority >= TRIM_COMPLETIONS && mCompletionTrie != null && !isFocused()) {
+			// Loaded again when the text area gains focus
+			mCompletionTrie = null;
+			updateCompletions();
+		}
+		if (priority >= TRIM_LAYOUT && mLayout != null && getWindowVisibility() != VISIBLE)
+			nullLayouts();
+	}
+
+	/**
+	 * Expand the collapsed range containing the offset or following the paragraph containing it.
+	 * 
+	 * @return whether a range was expanded
+	 */
+	public boolean unfold(int offset) {
+		final int paragraph = mLineIndex.getLineForOffset(offset);
+		int index = mFolds.indexOf(paragraph);
+		if (index < 0)
+			index = mFolds.indexOf(paragraph + 1);
+		if (index < 0)
+			return false;
+		mFolds.unfold(index);
+		onFoldsChanged();
+		return true;
+	}
+
+	/**
+	 * Expand all the collapsed ranges.
+	 */
+	public void unfoldAll() {
+		if (mFolds.getCount() > 0) {
+			mFolds.clear();
+			onFoldsChanged();
+		}
+	}
+
 	void updateAfterEdit() {
 		invalidate();
 		int curs = getSelectionStart();
@@ -3538,12 +5864,59 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
-	private void updateCursorPosition(int cursorIndex, int top, int bottom, float horizontal) {
-		if (mCursorDrawable[cursorIndex] == null)
-			mCursorDrawable[cursorIndex] = getResources().getDrawable(mCursorDrawableRes);
+	/**
+	 * Look up the bracket at the cursor and its partner, invalidating the view if the highlight changed
+	 */
+	private void updateBracketMatch() {
+		final BracketIndex.Match match = mBracketMatch;
+		final int cursor = getSelectionStart();
+		final boolean wasShown = mBracketMatchShown;
+		final int oldStart = match.tokenStart, oldPartnerStart = match.partnerStart;
+		final boolean oldPartnerFound = match.partnerFound;
+		mBracketMatchShown = mBracketIndex != null && cursor >= 0 && cursor == getSelectionEnd()
+				&& mBracketIndex.findMatch(mText, cursor, match);
+		if (wasShown == mBracketMatchShown && (!wasShown || (oldStart == match.tokenStart
+				&& oldPartnerFound == match.partnerFound && oldPartnerStart == match.partnerStart)))
+			return;
+		if (wasShown || mBracketMatchShown)
+			invalidate();
+	}
 
-		if (mTempRect == null)
-			mTempRect = new Rect();
+	/**
+	 * Look up the completions of the command (or of the environment name after \begin{ or \end{) before the cursor
+	 * and hand them to the input method if they changed
+	 */
+	private void updateCompletions() {
+		final int cursor = getSelectionStart();
+		int start = -1, count = 0;
+		if (mCompletionTrie != null && cursor >= 0 && cursor == getSelectionEnd()) {
+			start = cursor;
+			while (start > 0 && CompletionTrie.isLetter(mText.charAt(start - 1)))
+				start--;
+			if (start > 0 && mText.charAt(start - 1) == '\\') {
+				start--;
+			} else if (start == cursor || !(TextUtils.regionMatches(mText, start - 7, "\\begin{") || TextUtils
+					.regionMatches(mText, start - 5, "\\end{"))) {
+				start = -1;
+			}
+			if (start >= 0 && cursor - start >= 2)
+				count = mCompletionTrie.find(mText, start, cursor, mCompletionLookup);
+		}
+		if (count == 0)
+			start = -1;
+		if (start == mCompletionStart && (start < 0 || sameCompletions(count)))
+			return;
+
+		mCompletionStart = start;
+		System.arraycopy(mCompletionLookup, 0, mCompletionIds, 0, count);
+		mCompletions = new CompletionInfo[count];
+		for (int i = 0; i < count; i++)
+			mCompletions[i] = new CompletionInfo(mCompletionIds[i], i, mCompletionTrie.getWord(mCompletionIds[i]));
+		if (mIMM.isActive(this))
+			mIMM.displayCompletions(this, mCompletions);
+	}
+
+	private void updateCursorPosition(int cursorIndex, int top, int bottom, float horizontal) {
 		mCursorDrawable[cursorIndex].getPadding(mTempRect);
 		final int width = mCursorDrawable[cursorIndex].getIntrinsicWidth();
 		horizontal = Math.max(0.5f, horizontal - 0.5f);
@@ -3561,8 +5934,8 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 
 		final int offset = getSelectionStart();
 		final int line = layout.getLineForOffset(offset);
-		final int top = layout.getLineTop(line);
-		final int bottom = layout.getLineTop(line + 1);
+		final int top = toVisualVertical(layout.getLineTop(line));
+		final int bottom = toVisualVertical(layout.getLineTop(line + 1));
 
 		mCursorCount = 1;
 
@@ -3579,11 +5952,86 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 		}
 	}
 
+	/**
+	 * Move the fast-scroll thumb to the first visible paragraph and show it, if the text is long enough
+	 */
+	private void updateFastScroll() {
+		if (mLayout == null || getMaxScrollY() < (FastScrollThumb.MIN_PAGES - 1) * getHeight())
+			return;
+		final int first = getFirstVisibleParagraph();
+		final int range = mLineIndex.getLineCount() - 1 - (getLastVisibleParagraph() - first);
+		mFastScroll.onScrolled(range > 0 ? (float) first / range : 0, SystemClock.uptimeMillis());
+		// Draw again once the thumb is to be hidden
+		postInvalidateDelayed(FastScrollThumb.HIDE_DELAY);
+	}
+
+	/**
+	 * Refresh the style runs of the visible paragraphs from the highlighter, invalidating once if any changed, and let
+	 * the spell checker know which paragraphs are visible.
+	 * 
+	 * Only the paragraphs scrolling in are lexed, and during a fling the runs are computed one screen ahead in the
+	 * direction of the fling, so that paragraphs are ready by the time they appear. The spell checker is given the
+	 * paragraphs where the fling will stop instead of those crossed on the way.
+	 */
+	private void updateStyleRuns() {
+		if (mLayout == null)
+			return;
+
+		int first = getFirstVisibleParagraph();
+		int last = getLastVisibleParagraph();
+		if (mSpellChecker != null) {
+			if (mFlingDirection != 0)
+				mSpellChecker.setVisibleParagraphs(mFlingFirstParagraph, mFlingLastParagraph);
+			else
+				mSpellChecker.setVisibleParagraphs(first, last);
+		}
+		if (mHighlighter == null)
+			return;
+		if (mFlingDirection > 0)
+			last = Math.min(last + (last - first + 1), mLineIndex.getLineCount() - 1);
+		else if (mFlingDirection < 0)
+			first = Math.max(0, first - (last - first + 1));
+		boolean changed = false;
+		if (mStyledFirst > mStyledLast || last < mStyledFirst - 1 || first > mStyledLast + 1) {
+			changed = updateStyleRuns(first, last);
+			mStyledFirst = first;
+			mStyledLast = last;
+		} else {
+			if (first < mStyledFirst) {
+				changed |= updateStyleRuns(first, mStyledFirst - 1);
+				mStyledFirst = first;
+			}
+			if (last > mStyledLast) {
+				changed |= updateStyleRuns(mStyledLast + 1, last);
+				mStyledLast = last;
+			}
+		}
+		if (changed) {
+			invalidate();
+			postMemoryCheck();
+		}
+	}
+
+	/**
+	 * Lex the paragraphs [first, last] again
+	 * 
+	 * @return whether the runs of any of them changed
+	 */
+	private boolean updateStyleRuns(int first, int last) {
+		boolean changed = false;
+		for (int line = first; line <= last; line++) {
+			mHighlighter.getLineRuns(line, mSyntaxRuns);
+			changed |= mStyleRuns.setRuns(line, mSyntaxRuns);
+		}
+		return changed;
+	}
+
 	private void updateTextColors() {
 		boolean inval = false;
 		int color = mTextColor.getColorForState(getDrawableState(), 0);
 		if (color != mCurTextColor) {
 			mCurTextColor = color;
+			mStylePaintsBogus = true;
 			inval = true;
 		}
 		if (mLinkTextColor != null) {
@@ -3618,11 +6066,20 @@ public class TextArea extends View implements ViewTreeObserver.OnPreDrawListener
 	}
 
 	@Override
-	public void afterTextChanged(Editable arg0) {
+	public void afterDocumentChanged(TextDocument document) {
+		// The layout has been reflowed by now
+		mFolds.invalidateGeometry();
 	}
 
 	@Override
-	public void beforeTextChanged(CharSequence arg0, int arg1, int arg2, int arg3) {
+	public void beforeDocumentChanged(TextDocument document, int start, int before, int after) {
+		if (mCompletionTrie != null) {
+			// Discount the words of the paragraphs about to change, they are counted again in onDocumentChanged()
+			final int firstLine = mLineIndex.getLineForOffset(start);
+			final int lastLine = mLineIndex.getLineForOffset(start + before);
+			mCompletionTrie.adjustDocument(mText, mLineIndex.getLineStart(firstLine), mLineIndex.getLineEnd(lastLine),
+					-1);
+		}
 	}
 
 }
@@ -0,0 +1,516 @@
+package lah.widgets.text;
+
+/**
+ * Incrementally maintained index of the {}, [] and \begin{..}\end{..} pairs of a TeX source
+ *
+ * Each paragraph (aligned with a {@link LineIndex}) keeps its bracket tokens in a primitive array and is rescanned
+ * only when an edit touches it. For each kind of bracket, a segment tree over the paragraphs stores the net depth
+ * change and the minimal prefix depth of every paragraph, so that the partner of a bracket is located in O(log n) by
+ * descending the tree instead of scanning the text outward.
+ *
+ * The leaves of the trees have spare capacity kept as a gap of empty leaves, which neither change the depth nor match
+ * a search. Paragraphs inserted or removed by an edit take or give back leaves at the gap, which is moved to the edit
+ * first, so that only the leaves between the previous edit and this one are updated rather than the whole trees; the
+ * trees are rebuilt only when the gap is used up.
+ *
+ * @author L.A.H.
+ *
+ */
+public class BracketIndex {
+
+	/**
+	 * Result of {@link BracketIndex#findMatch(CharSequence, int, Match)}
+	 */
+	public static class Match {
+
+		/**
+		 * Whether the two tokens do not correspond, e.g. \begin{a} closed by \end{b}
+		 */
+		public boolean mismatch;
+
+		public int partnerStart, partnerEnd;
+
+		/**
+		 * Whether a partner was found; false if the token at the offset is unbalanced
+		 */
+		public boolean partnerFound;
+
+		public int tokenStart, tokenEnd;
+
+	}
+
+	private static final int INFO_OPEN = 4;
+
+	private static final int KIND_BRACE = 0;
+
+	private static final int KIND_BRACKET = 1;
+
+	private static final int KIND_COUNT = 3;
+
+	private static final int KIND_ENVIRONMENT = 2;
+
+	private static final int KIND_MASK = 3;
+
+	private static final int LENGTH_SHIFT = 3;
+
+	/**
+	 * Minimum of an empty leaf, large enough to never match but safe from overflow when added to a depth
+	 */
+	private static final int NO_MIN = 1 << 29;
+
+	private static final int[] NO_TOKENS = new int[0];
+
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '@';
+	}
+
+	private static boolean regionMatches(CharSequence text, int at, String s) {
+		if (at + s.length() > text.length())
+			return false;
+		for (int i = 0; i < s.length(); i++) {
+			if (text.charAt(at + i) != s.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private int mCount = 1;
+
+	/**
+	 * Prefix depth at the leaf found by the last tree search
+	 */
+	private int mFoundBase;
+
+	// Empty leaves of the trees [mGapStart, mGapStart + mGapLength), the leaf of a paragraph p >= mGapStart being
+	// p + mGapLength
+	private int mGapLength, mGapStart;
+
+	private LineIndex mLineIndex;
+
+	/**
+	 * Per kind segment trees: minimal prefix depth and net depth change of the nodes
+	 */
+	private final int[][] mMin = new int[KIND_COUNT][], mSum = new int[KIND_COUNT][];
+
+	/**
+	 * Tokens of the paragraph being scanned
+	 */
+	private int[] mScratch = new int[64];
+
+	private int mScratchCount;
+
+	private int mSize;
+
+	/**
+	 * Bracket tokens of each paragraph as (offset in paragraph, info) pairs, info packing the kind, the open flag and
+	 * the length of the token
+	 */
+	private int[][] mTokens = new int[64][];
+
+	private boolean mTreeBogus = true;
+
+	public BracketIndex(LineIndex lineIndex) {
+		mLineIndex = lineIndex;
+	}
+
+	private void addToken(int offset, int kind, boolean open, int length) {
+		if (2 * mScratchCount + 2 > mScratch.length) {
+			int[] scratch = new int[mScratch.length * 2];
+			System.arraycopy(mScratch, 0, scratch, 0, 2 * mScratchCount);
+			mScratch = scratch;
+		}
+		mScratch[2 * mScratchCount] = offset;
+		mScratch[2 * mScratchCount + 1] = kind | (open ? INFO_OPEN : 0) | (length << LENGTH_SHIFT);
+		mScratchCount++;
+	}
+
+	private void buildTree() {
+		mSize = 1;
+		// Leave a quarter of spare leaves for the paragraphs to come
+		while (mSize < mCount + (mCount >> 2) + 1)
+			mSize <<= 1;
+		mGapStart = mCount;
+		mGapLength = mSize - mCount;
+		for (int kind = 0; kind < KIND_COUNT; kind++) {
+			if (mSum[kind] == null || mSum[kind].length < 2 * mSize) {
+				mSum[kind] = new int[2 * mSize];
+				mMin[kind] = new int[2 * mSize];
+			}
+			for (int i = 0; i < mSize; i++)
+				setLeaf(kind, i);
+			for (int node = mSize - 1; node >= 1; node--)
+				pull(kind, node);
+		}
+		mTreeBogus = false;
+	}
+
+	/**
+	 * Reset the index to that of an empty text
+	 */
+	public void clear() {
+		for (int i = 0; i < mCount; i++)
+			mTokens[i] = null;
+		mCount = 1;
+		mTreeBogus = true;
+	}
+
+	/**
+	 * Whether the environment names of an \begin and an \end token are the same
+	 */
+	private boolean environmentsMatch(CharSequence text, int begin, int beginLength, int end, int endLength) {
+		// "\begin{" is 7 characters, "\end{" is 5; both end with '}'
+		final int n = beginLength - 8;
+		if (n != endLength - 6)
+			return false;
+		for (int i = 0; i < n; i++) {
+			if (text.charAt(begin + 7 + i) != text.charAt(end + 5 + i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Find the first leaf from from whose minimal prefix depth is at most target, {@link #mFoundBase} receiving the
+	 * prefix depth at its start
+	 */
+	private int findFirst(int kind, int node, int lo, int hi, int from, int base, int target) {
+		if (hi <= from || (lo >= from && base + mMin[kind][node] > target))
+			return -1;
+		if (hi - lo == 1) {
+			mFoundBase = base;
+			return lo;
+		}
+		final int mid = (lo + hi) >>> 1;
+		final int left = findFirst(kind, 2 * node, lo, mid, from, base, target);
+		if (left >= 0)
+			return left;
+		return findFirst(kind, 2 * node + 1, mid, hi, from, base + mSum[kind][2 * node], target);
+	}
+
+	/**
+	 * Find the last leaf before to whose minimal prefix depth is at most target, {@link #mFoundBase} receiving the
+	 * prefix depth at its start
+	 */
+	private int findLast(int kind, int node, int lo, int hi, int to, int base, int target) {
+		if (lo >= to || base + mMin[kind][node] > target)
+			return -1;
+		if (hi - lo == 1) {
+			mFoundBase = base;
+			return lo;
+		}
+		final int mid = (lo + hi) >>> 1;
+		final int right = findLast(kind, 2 * node + 1, mid, hi, to, base + mSum[kind][2 * node], target);
+		if (right >= 0)
+			return right;
+		return findLast(kind, 2 * node, lo, mid, to, base, target);
+	}
+
+	/**
+	 * Find the bracket token at (or just before) the offset and its partner
+	 *
+	 * @return false if there is no bracket token at the offset
+	 */
+	public boolean findMatch(CharSequence text, int offset, Match out) {
+		if (mTreeBogus)
+			buildTree();
+
+		final int paragraph = mLineIndex.getLineForOffset(offset);
+		final int paragraphStart = mLineIndex.getLineStart(paragraph);
+		final int[] tokens = getTokens(paragraph);
+		int k = -1;
+		for (int i = 0; i < tokens.length; i += 2) {
+			final int start = paragraphStart + tokens[i];
+			final int end = start + (tokens[i + 1] >>> LENGTH_SHIFT);
+			if (start <= offset && offset < end) {
+				k = i;
+				break;
+			} else if (end == offset) {
+				k = i; // keep looking for a token starting at the offset
+			}
+		}
+		if (k < 0)
+			return false;
+
+		final int info = tokens[k + 1];
+		final int kind = info & KIND_MASK;
+		final boolean open = (info & INFO_OPEN) != 0;
+		out.tokenStart = paragraphStart + tokens[k];
+		out.tokenEnd = out.tokenStart + (info >>> LENGTH_SHIFT);
+		out.partnerFound = false;
+		out.mismatch = false;
+
+		// Prefix depth before the token, relative to the start of the paragraph
+		int depth = 0;
+		for (int i = 0; i < k; i += 2) {
+			if ((tokens[i + 1] & KIND_MASK) == kind)
+				depth += (tokens[i + 1] & INFO_OPEN) != 0 ? 1 : -1;
+		}
+		final int base = prefix(kind, paragraph);
+
+		int partnerParagraph = -1, partner = -1;
+		if (open) {
+			final int target = base + depth;
+			int d = target + 1;
+			for (int i = k + 2; i < tokens.length && partner < 0; i += 2) {
+				if ((tokens[i + 1] & KIND_MASK) == kind) {
+					d += (tokens[i + 1] & INFO_OPEN) != 0 ? 1 : -1;
+					if (d <= target) {
+						partnerParagraph = paragraph;
+						partner = i;
+					}
+				}
+			}
+			if (partner < 0) {
+				final int leaf = findFirst(kind, 1, 0, mSize, getLeaf(paragraph + 1), 0, target);
+				if (leaf >= 0) {
+					final int q = getParagraph(leaf);
+					final int[] qTokens = getTokens(q);
+					d = mFoundBase;
+					for (int i = 0; i < qTokens.length && partner < 0; i += 2) {
+						if ((qTokens[i + 1] & KIND_MASK) == kind) {
+							d += (qTokens[i + 1] & INFO_OPEN) != 0 ? 1 : -1;
+							if (d <= target) {
+								partnerParagraph = q;
+								partner = i;
+							}
+						}
+					}
+				}
+			}
+		} else {
+			final int target = base + depth - 1;
+			int d = base + depth;
+			for (int i = k - 2; i >= 0 && partner < 0; i -= 2) {
+				if ((tokens[i + 1] & KIND_MASK) == kind) {
+					d -= (tokens[i + 1] & INFO_OPEN) != 0 ? 1 : -1;
+					if (d <= target) {
+						partnerParagraph = paragraph;
+						partner = i;
+					}
+				}
+			}
+			if (partner < 0 && paragraph > 0) {
+				final int leaf = findLast(kind, 1, 0, mSize, getLeaf(paragraph), 0, target);
+				if (leaf >= 0) {
+					final int q = getParagraph(leaf);
+					final int[] qTokens = getTokens(q);
+					d = mFoundBase + mSum[kind][mSize + leaf];
+					for (int i = qTokens.length - 2; i >= 0 && partner < 0; i -= 2) {
+						if ((qTokens[i + 1] & KIND_MASK) == kind) {
+							d -= (qTokens[i + 1] & INFO_OPEN) != 0 ? 1 : -1;
+							if (d <= target) {
+								partnerParagraph = q;
+								partner = i;
+							}
+						}
+					}
+				}
+			}
+		}
+
+		if (partner >= 0) {
+			final int[] pTokens = getTokens(partnerParagraph);
+			final int pInfo = pTokens[partner + 1];
+			out.partnerFound = true;
+			out.partnerStart = mLineIndex.getLineStart(partnerParagraph) + pTokens[partner];
+			out.partnerEnd = out.partnerStart + (pInfo >>> LENGTH_SHIFT);
+			if (kind == KIND_ENVIRONMENT) {
+				out.mismatch = open ? !environmentsMatch(text, out.tokenStart, out.tokenEnd - out.tokenStart,
+						out.partnerStart, out.partnerEnd - out.partnerStart) : !environmentsMatch(text,
+						out.partnerStart, out.partnerEnd - out.partnerStart, out.tokenStart, out.tokenEnd
+								- out.tokenStart);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the leaf of the paragraph in the trees
+	 */
+	private int getLeaf(int paragraph) {
+		return paragraph < mGapStart ? paragraph : paragraph + mGapLength;
+	}
+
+	/**
+	 * @return the paragraph of the leaf, -1 for an empty leaf
+	 */
+	private int getParagraph(int leaf) {
+		if (leaf < mGapStart)
+			return leaf < mCount ? leaf : -1;
+		return leaf < mGapStart + mGapLength ? -1 : leaf - mGapLength;
+	}
+
+	private int[] getTokens(int paragraph) {
+		final int[] tokens = mTokens[paragraph];
+		return tokens == null ? NO_TOKENS : tokens;
+	}
+
+	/**
+	 * @return the estimated number of bytes held by the tokens and the trees
+	 */
+	public long getMemoryUsage() {
+		return MemoryUsage.sizeOf(mTokens) + MemoryUsage.sizeOf(mMin) + MemoryUsage.sizeOf(mSum)
+				+ MemoryUsage.sizeOf(mScratch);
+	}
+
+	/**
+	 * Update the index after the characters in [start, start + before) were replaced by after characters, the line
+	 * index must already be up-to-date
+	 *
+	 * @param firstLine
+	 *            First paragraph whose content changed
+	 * @param lastLine
+	 *            Last paragraph (in the new text) whose content changed
+	 * @param lineDelta
+	 *            Change in the number of paragraphs
+	 */
+	public void onTextChanged(CharSequence text, int firstLine, int lastLine, int lineDelta) {
+		final int count = mCount + lineDelta;
+		if (count > mTokens.length) {
+			int[][] tokens = new int[Math.max(count, mTokens.length * 2)][];
+			System.arraycopy(mTokens, 0, tokens, 0, mCount);
+			mTokens = tokens;
+		}
+		if (lineDelta > 0) {
+			System.arraycopy(mTokens, firstLine + 1, mTokens, firstLine + 1 + lineDelta, mCount - firstLine - 1);
+			// Drop the references left in the gap, the arrays are rewritten in place when rescanned
+			for (int i = firstLine + 1; i <= firstLine + lineDelta; i++)
+				mTokens[i] = null;
+		} else if (lineDelta < 0) {
+			System.arraycopy(mTokens, firstLine + 1 - lineDelta, mTokens, firstLine + 1, count - firstLine - 1);
+			for (int i = count; i < mCount; i++)
+				mTokens[i] = null;
+		}
+		mCount = count;
+
+		for (int line = firstLine; line <= lastLine; line++)
+			scanParagraph(text, line);
+
+		if (mTreeBogus || mCount > mSize) {
+			mTreeBogus = true;
+		} else if (lineDelta == 0) {
+			updateLeaves(getLeaf(firstLine), getLeaf(lastLine) + 1);
+		} else {
+			// Move the gap after the first changed paragraph, where it takes or gives back the leaves of the
+			// inserted or removed paragraphs; the leaves between its old and new positions change paragraph
+			final int oldEnd = mGapStart + mGapLength;
+			final int from = Math.min(mGapStart, firstLine);
+			mGapStart = firstLine + 1;
+			mGapLength = mSize - mCount;
+			final int to = Math.max(Math.max(oldEnd, mGapStart + mGapLength), getLeaf(lastLine) + 1);
+			updateLeaves(from, Math.min(to, mSize));
+		}
+	}
+
+	/**
+	 * Net depth change of the paragraphs before the given one
+	 */
+	private int prefix(int kind, int paragraph) {
+		int sum = 0;
+		for (int lo = mSize, hi = mSize + getLeaf(paragraph); lo < hi; lo >>= 1, hi >>= 1) {
+			if ((lo & 1) != 0)
+				sum += mSum[kind][lo++];
+			if ((hi & 1) != 0)
+				sum += mSum[kind][--hi];
+		}
+		return sum;
+	}
+
+	private void pull(int kind, int node) {
+		final int[] sum = mSum[kind], min = mMin[kind];
+		sum[node] = sum[2 * node] + sum[2 * node + 1];
+		min[node] = Math.min(min[2 * node], sum[2 * node] + min[2 * node + 1]);
+	}
+
+	private void scanParagraph(CharSequence text, int paragraph) {
+		final int start = mLineIndex.getLineStart(paragraph);
+		final int end = mLineIndex.getLineEnd(paragraph);
+		mScratchCount = 0;
+		int i = start;
+		while (i < end) {
+			final char c = text.charAt(i);
+			if (c == '%') {
+				break;
+			} else if (c == '\\') {
+				if (i + 1 < end && isLetter(text.charAt(i + 1))) {
+					int j = i + 1;
+					while (j < end && isLetter(text.charAt(j)))
+						j++;
+					final boolean begin = j - i == 6 && regionMatches(text, i, "\\begin");
+					final boolean close = j - i == 4 && regionMatches(text, i, "\\end");
+					if ((begin || close) && j < end && text.charAt(j) == '{') {
+						int k = j + 1;
+						while (k < end && text.charAt(k) != '}' && text.charAt(k) != '\n')
+							k++;
+						if (k < end && text.charAt(k) == '}') {
+							addToken(i - start, KIND_ENVIRONMENT, begin, k + 1 - i);
+							j = k + 1;
+						}
+					}
+					i = j;
+				} else {
+					// Escaped character such as \{ is not a bracket
+					i += 2;
+				}
+				continue;
+			} else if (c == '{' || c == '}') {
+				addToken(i - start, KIND_BRACE, c == '{', 1);
+			} else if (c == '[' || c == ']') {
+				addToken(i - start, KIND_BRACKET, c == '[', 1);
+			}
+			i++;
+		}
+		int[] tokens = mTokens[paragraph];
+		if (mScratchCount == 0) {
+			tokens = null;
+		} else if (tokens == null || tokens.length != 2 * mScratchCount) {
+			tokens = new int[2 * mScratchCount];
+		}
+		if (tokens != null)
+			System.arraycopy(mScratch, 0, tokens, 0, tokens.length);
+		mTokens[paragraph] = tokens;
+	}
+
+	private void setLeaf(int kind, int leaf) {
+		final int node = mSize + leaf;
+		final int paragraph = getParagraph(leaf);
+		if (paragraph < 0) {
+			mSum[kind][node] = 0;
+			mMin[kind][node] = NO_MIN;
+			return;
+		}
+		final int[] tokens = getTokens(paragraph);
+		int depth = 0, min = 0;
+		for (int i = 0; i < tokens.length; i += 2) {
+			if ((tokens[i + 1] & KIND_MASK) == kind) {
+				depth += (tokens[i + 1] & INFO_OPEN) != 0 ? 1 : -1;
+				min = Math.min(min, depth);
+			}
+		}
+		mSum[kind][node] = depth;
+		mMin[kind][node] = min;
+	}
+
+	/**
+	 * Recompute the leaves [from, to) and their ancestors, level by level in O(to - from + log n)
+	 */
+	private void updateLeaves(int from, int to) {
+		for (int kind = 0; kind < KIND_COUNT; kind++) {
+			for (int leaf = from; leaf < to; leaf++)
+				setLeaf(kind, leaf);
+			for (int lo = (mSize + from) >> 1, hi = (mSize + to - 1) >> 1; lo >= 1; lo >>= 1, hi >>= 1) {
+				for (int node = lo; node <= hi; node++)
+					pull(kind, node);
+			}
+		}
+	}
+
+	/**
+	 * Follow another line index, e.g. that of a shared {@link TextDocument}; the content must then be reset with
+	 * {@link #clear()}
+	 */
+	public void setLineIndex(LineIndex lineIndex) {
+		mLineIndex = lineIndex;
+	}
+
+}
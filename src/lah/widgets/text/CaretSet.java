@@ -0,0 +1,186 @@
+package lah.widgets.text;
+
+import android.text.Editable;
+
+/**
+ * Additional carets of a text view, kept as a sorted array of distinct offsets and shifted on edits
+ *
+ * The primary caret remains the selection of the text; {@link #edit(Editable, int, int, int, CharSequence)} applies
+ * the same replacement at the primary caret and at all the additional ones, each replacement being local to its
+ * caret.
+ *
+ * @author L.A.H.
+ *
+ */
+public class CaretSet {
+
+	private int mCount;
+
+	// Whether edit() is replacing the text, during which onTextChanged() is ignored
+	private boolean mEditing;
+
+	// Replaced ranges of edit(), the primary caret included
+	private int[] mEditEnds = new int[16];
+
+	private int[] mEditStarts = new int[16];
+
+	private int[] mOffsets = new int[16];
+
+	/**
+	 * Add a caret at the offset
+	 *
+	 * @return false if there already is a caret at the offset
+	 */
+	public boolean add(int offset) {
+		final int index = indexOf(offset);
+		if (index < mCount && mOffsets[index] == offset)
+			return false;
+		if (mCount == mOffsets.length) {
+			final int[] offsets = new int[mCount * 2];
+			System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+			mOffsets = offsets;
+		}
+		System.arraycopy(mOffsets, index, mOffsets, index + 1, mCount - index);
+		mOffsets[index] = offset;
+		mCount++;
+		return true;
+	}
+
+	public void clear() {
+		mCount = 0;
+	}
+
+	public boolean contains(int offset) {
+		final int index = indexOf(offset);
+		return index < mCount && mOffsets[index] == offset;
+	}
+
+	/**
+	 * Replace [caret - before, caret + after) by the insert at the primary caret and at every additional caret; ranges
+	 * of neighboring carets are clipped so that they do not overlap. The carets are then placed after their inserts.
+	 *
+	 * There is one replace() per caret, from the last caret to the first so that the ranges still to be replaced keep
+	 * their offsets: each change stays local to its caret, leaving the text, spans, folds and cursors between the carets
+	 * alone, and costs the same whatever the distance between the carets. Callers group the replacements in a batch
+	 * edit so that the view is updated once.
+	 *
+	 * @param primary
+	 *            Offset of the primary caret, which need not be in the set
+	 * @return the new offset of the primary caret
+	 */
+	public int edit(Editable text, int primary, int before, int after, CharSequence insert) {
+		// Merge the primary caret into the replaced ranges
+		final int n = mCount + (contains(primary) ? 0 : 1);
+		if (mEditStarts.length < n) {
+			mEditStarts = new int[n * 2];
+			mEditEnds = new int[n * 2];
+		}
+		final int length = text.length();
+		int primaryIndex = -1, previousEnd = 0;
+		for (int i = 0, j = 0; i < n; i++) {
+			final int caret;
+			if (primaryIndex < 0 && (j == mCount || primary <= mOffsets[j])) {
+				primaryIndex = i;
+				caret = primary;
+				if (j < mCount && mOffsets[j] == primary)
+					j++;
+			} else {
+				caret = mOffsets[j++];
+			}
+			final int start = Math.max(caret - before, previousEnd);
+			mEditStarts[i] = start;
+			mEditEnds[i] = previousEnd = Math.max(start, Math.min(caret + after, length));
+		}
+
+		final int m = insert.length();
+		mEditing = true;
+		try {
+			for (int i = n - 1; i >= 0; i--) {
+				if (m > 0 || mEditEnds[i] > mEditStarts[i])
+					text.replace(mEditStarts[i], mEditEnds[i], insert);
+			}
+		} finally {
+			mEditing = false;
+		}
+
+		// Each caret follows its insert, shifted by the replacements before it
+		int delta = 0;
+		mCount = 0;
+		for (int i = 0; i < n; i++) {
+			final int offset = mEditStarts[i] + delta + m;
+			delta += m - (mEditEnds[i] - mEditStarts[i]);
+			if (i == primaryIndex)
+				primary = offset;
+			else
+				mOffsets[mCount++] = offset;
+		}
+		return primary;
+	}
+
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @return the estimated number of bytes held by the set
+	 */
+	public long getMemoryUsage() {
+		return MemoryUsage.sizeOf(mOffsets) + MemoryUsage.sizeOf(mEditStarts) + MemoryUsage.sizeOf(mEditEnds);
+	}
+
+	public int getOffset(int index) {
+		return mOffsets[index];
+	}
+
+	/**
+	 * Find the first caret at or after the given offset in O(log n)
+	 *
+	 * @return index of the caret or {@link #getCount()} if there is none
+	 */
+	public int indexOf(int offset) {
+		int low = 0, high = mCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mOffsets[mid] < offset)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Update the carets after the characters in [start, start + before) were replaced by after characters: carets in
+	 * the replaced range move to its start, carets after it are shifted, and carets meeting at the same offset are
+	 * merged. Edits made by {@link #edit(Editable, int, int, int, CharSequence)} are ignored as it places the carets
+	 * itself.
+	 */
+	public void onTextChanged(int start, int before, int after) {
+		if (mEditing || mCount == 0)
+			return;
+		final int end = start + before;
+		final int delta = after - before;
+		int count = indexOf(start + 1);
+		for (int i = count; i < mCount; i++) {
+			final int offset = mOffsets[i] >= end ? mOffsets[i] + delta : start;
+			if (count == 0 || mOffsets[count - 1] != offset)
+				mOffsets[count++] = offset;
+		}
+		mCount = count;
+	}
+
+	/**
+	 * Remove the caret at the offset
+	 *
+	 * @return false if there is no caret at the offset
+	 */
+	public boolean remove(int offset) {
+		final int index = indexOf(offset);
+		if (index == mCount || mOffsets[index] != offset)
+			return false;
+		System.arraycopy(mOffsets, index + 1, mOffsets, index, mCount - index - 1);
+		mCount--;
+		return true;
+	}
+
+}
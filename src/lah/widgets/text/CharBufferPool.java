@@ -0,0 +1,164 @@
+package lah.widgets.text;
+
+/**
+ * Pool of temporary char buffers in power-of-two size classes, one pool per thread
+ *
+ * As a pool is only ever used by the thread that owns it, obtaining and recycling a buffer takes no lock, so the UI
+ * thread never waits for a worker copying text. Each size class keeps at most {@link #SLOTS} buffers and a pool holds
+ * at most {@link #MAX_POOLED_CHARS} chars in total; buffers larger than the largest class are neither pooled nor
+ * counted as misses. Hits and misses are counted per size class to tell whether the classes fit the workload.
+ *
+ * A buffer must be recycled on the thread which obtained it and must not be used after being recycled.
+ *
+ * @author L.A.H.
+ *
+ */
+public final class CharBufferPool {
+
+	/**
+	 * Number of size classes, class i holding buffers of 2^(i + {@link #MIN_SHIFT}) chars
+	 */
+	public static final int CLASS_COUNT = 11;
+
+	/**
+	 * Maximal number of chars held by the pool of one thread
+	 */
+	public static final int MAX_POOLED_CHARS = 256 * 1024;
+
+	/**
+	 * Size of the smallest class is 2^MIN_SHIFT chars
+	 */
+	private static final int MIN_SHIFT = 6;
+
+	/**
+	 * Maximal number of buffers kept per size class
+	 */
+	public static final int SLOTS = 2;
+
+	private static final ThreadLocal<CharBufferPool> sPools = new ThreadLocal<CharBufferPool>() {
+		@Override
+		protected CharBufferPool initialValue() {
+			return new CharBufferPool();
+		}
+	};
+
+	/**
+	 * @return the pool of the calling thread
+	 */
+	public static CharBufferPool get() {
+		return sPools.get();
+	}
+
+	/**
+	 * @return the length of the buffers of the size class
+	 */
+	public static int getClassSize(int sizeClass) {
+		return 1 << (sizeClass + MIN_SHIFT);
+	}
+
+	/**
+	 * @return the smallest size class whose buffers hold length chars, {@link #CLASS_COUNT} if there is none
+	 */
+	private static int getSizeClass(int length) {
+		if (length <= 1 << MIN_SHIFT)
+			return 0;
+		final int sizeClass = 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+		return Math.min(sizeClass, CLASS_COUNT);
+	}
+
+	private final char[][][] mBuffers = new char[CLASS_COUNT][SLOTS][];
+
+	private final int[] mCounts = new int[CLASS_COUNT];
+
+	private final int[] mHits = new int[CLASS_COUNT];
+
+	private final int[] mMisses = new int[CLASS_COUNT];
+
+	private int mOversized;
+
+	private int mPooledChars;
+
+	private CharBufferPool() {
+	}
+
+	/**
+	 * Drop the pooled buffers, e.g. when memory is low
+	 */
+	public void clear() {
+		for (int sizeClass = 0; sizeClass < CLASS_COUNT; sizeClass++) {
+			for (int i = 0; i < mCounts[sizeClass]; i++)
+				mBuffers[sizeClass][i] = null;
+			mCounts[sizeClass] = 0;
+		}
+		mPooledChars = 0;
+	}
+
+	public int getHitCount(int sizeClass) {
+		return mHits[sizeClass];
+	}
+
+	public int getMissCount(int sizeClass) {
+		return mMisses[sizeClass];
+	}
+
+	/**
+	 * @return the number of requests larger than the largest size class
+	 */
+	public int getOversizedCount() {
+		return mOversized;
+	}
+
+	/**
+	 * @return the number of chars of the buffers currently held by the pool
+	 */
+	public int getPooledChars() {
+		return mPooledChars;
+	}
+
+	/**
+	 * Get a buffer of at least length chars, which should be given back with {@link #recycle(char[])}
+	 */
+	public char[] obtain(int length) {
+		final int sizeClass = getSizeClass(length);
+		if (sizeClass == CLASS_COUNT) {
+			mOversized++;
+			return new char[length];
+		}
+		final int count = mCounts[sizeClass];
+		if (count == 0) {
+			mMisses[sizeClass]++;
+			return new char[getClassSize(sizeClass)];
+		}
+		mHits[sizeClass]++;
+		final char[] buffer = mBuffers[sizeClass][count - 1];
+		mBuffers[sizeClass][count - 1] = null;
+		mCounts[sizeClass] = count - 1;
+		mPooledChars -= buffer.length;
+		return buffer;
+	}
+
+	/**
+	 * Give back a buffer obtained from this pool; it is dropped if its class is full or the pool is at its bound
+	 */
+	public void recycle(char[] buffer) {
+		final int sizeClass = getSizeClass(buffer.length);
+		if (sizeClass == CLASS_COUNT || buffer.length != getClassSize(sizeClass))
+			return;
+		final int count = mCounts[sizeClass];
+		if (count == SLOTS || mPooledChars + buffer.length > MAX_POOLED_CHARS)
+			return;
+		mBuffers[sizeClass][count] = buffer;
+		mCounts[sizeClass] = count + 1;
+		mPooledChars += buffer.length;
+	}
+
+	/**
+	 * Reset the hit and miss counters
+	 */
+	public void resetCounters() {
+		for (int i = 0; i < CLASS_COUNT; i++)
+			mHits[i] = mMisses[i] = 0;
+		mOversized = 0;
+	}
+
+}
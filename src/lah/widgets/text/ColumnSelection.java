@@ -0,0 +1,148 @@
+package lah.widgets.text;
+
+import android.text.Editable;
+import lah.widgets.TextArea.TextUtils;
+
+/**
+ * Rectangular selection of the columns [startColumn, endColumn) on the paragraphs [firstLine, lastLine] of a
+ * {@link LineIndex}
+ *
+ * A column is a character position in its paragraph, so the selected range of a row follows from the line index with
+ * additions only; rows shorter than the block contribute the part of them it covers. With a monospaced font the block
+ * is drawn as a single rectangle, unless a row wraps or has a tab or a non-ASCII character before the block end, in
+ * which case each row is drawn from its own range. Tabs count as one column.
+ *
+ * @author L.A.H.
+ *
+ */
+public class ColumnSelection {
+
+	/**
+	 * @return the offset of the column in the paragraph, clamped to the end of the paragraph
+	 */
+	public static int getOffset(LineIndex index, int line, int column) {
+		int length = index.getLineEnd(line) - index.getLineStart(line);
+		if (line + 1 < index.getLineCount())
+			length--; // terminating '\n'
+		return index.getLineStart(line) + Math.min(column, length);
+	}
+
+	private int mEndColumn;
+
+	private int mFirstLine = -1;
+
+	private int mLastLine;
+
+	private int mStartColumn;
+
+	public void clear() {
+		mFirstLine = -1;
+	}
+
+	/**
+	 * Delete the selected range of every row with a single replace() of the text spanning the rows, so that the
+	 * watchers of the text are notified once whatever the number of rows; the paragraphs themselves are left in place
+	 */
+	public void delete(Editable text, LineIndex index) {
+		if (isEmpty())
+			return;
+		final int editStart = getStart(index, mFirstLine), editEnd = getEnd(index, mLastLine);
+		int removed = 0;
+		for (int line = mFirstLine; line <= mLastLine; line++)
+			removed += getEnd(index, line) - getStart(index, line);
+		if (removed == 0)
+			return;
+		final CharBufferPool pool = CharBufferPool.get();
+		final int contentLength = editEnd - editStart - removed;
+		final char[] chars = pool.obtain(contentLength);
+		int position = 0;
+		for (int line = mFirstLine; line < mLastLine; line++) {
+			final int start = getEnd(index, line), end = getStart(index, line + 1);
+			TextUtils.getChars(text, start, end, chars, position);
+			position += end - start;
+		}
+		try {
+			text.replace(editStart, editEnd, TextSnapshot.wrap(chars, contentLength, editStart, -1));
+		} finally {
+			pool.recycle(chars);
+		}
+	}
+
+	/**
+	 * @return the offset past the selected range of the row
+	 */
+	public int getEnd(LineIndex index, int line) {
+		return getOffset(index, line, mEndColumn);
+	}
+
+	public int getEndColumn() {
+		return mEndColumn;
+	}
+
+	public int getFirstLine() {
+		return mFirstLine;
+	}
+
+	public int getLastLine() {
+		return mLastLine;
+	}
+
+	/**
+	 * @return the offset of the selected range of the row
+	 */
+	public int getStart(LineIndex index, int line) {
+		return getOffset(index, line, mStartColumn);
+	}
+
+	public int getStartColumn() {
+		return mStartColumn;
+	}
+
+	/**
+	 * @return the selected ranges of the rows, one per line
+	 */
+	public String getText(CharSequence text, LineIndex index) {
+		if (isEmpty())
+			return "";
+		final StringBuilder sb = new StringBuilder((mLastLine - mFirstLine + 1) * (mEndColumn - mStartColumn + 1));
+		for (int line = mFirstLine; line <= mLastLine; line++) {
+			if (line > mFirstLine)
+				sb.append('\n');
+			sb.append(text, getStart(index, line), getEnd(index, line));
+		}
+		return sb.toString();
+	}
+
+	public boolean isEmpty() {
+		return mFirstLine < 0;
+	}
+
+	/**
+	 * Update the selection after the paragraphs [firstLine, lastLine] (in the new text) changed: the block is shifted
+	 * if the change is above it and dropped if the change touches its rows
+	 *
+	 * @return whether the selection was dropped
+	 */
+	public boolean onTextChanged(int firstLine, int lastLine, int lineDelta) {
+		if (isEmpty() || firstLine > mLastLine)
+			return false;
+		if (lastLine - lineDelta < mFirstLine) {
+			mFirstLine += lineDelta;
+			mLastLine += lineDelta;
+			return false;
+		}
+		clear();
+		return true;
+	}
+
+	/**
+	 * Select the block whose opposite corners are the given paragraphs and columns, in any order
+	 */
+	public void set(int line1, int column1, int line2, int column2) {
+		mFirstLine = Math.min(line1, line2);
+		mLastLine = Math.max(line1, line2);
+		mStartColumn = Math.min(column1, column2);
+		mEndColumn = Math.max(column1, column2);
+	}
+
+}
@@ -0,0 +1,306 @@
+package lah.widgets.text;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Array-based trie of completion words (TeX commands with their backslash, environment names) ranked by frequency
+ *
+ * Every node keeps the ids of the {@link #MAX_RESULTS} most frequent words below it, so a prefix lookup is a walk down
+ * the prefix followed by a copy into the caller's array: it takes O(prefix length) and allocates nothing. The frequency
+ * of a word is the sum of its dictionary weight and of its number of occurrences in the document, which is adjusted
+ * incrementally; only the ancestors of the word are re-ranked.
+ *
+ * @author L.A.H.
+ *
+ */
+public class CompletionTrie {
+
+	/**
+	 * Number of results kept per node, i.e. the maximal k of a top-k lookup
+	 */
+	public static final int MAX_RESULTS = 8;
+
+	private static final int NONE = -1;
+
+	private static int[] grow(int[] array, int capacity) {
+		int[] result = new int[capacity];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	/**
+	 * @return whether the character may belong to an indexed word, i.e. is an ASCII letter
+	 */
+	public static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean regionMatches(CharSequence text, int at, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (text.charAt(at + i) != s.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Build a trie from a dictionary with one "word weight" per line
+	 */
+	public static CompletionTrie load(InputStream in) throws IOException {
+		final CompletionTrie trie = new CompletionTrie();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		trie.beginUpdate();
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.charAt(0) == '#')
+					continue;
+				final int space = line.indexOf(' ');
+				final int weight = space < 0 ? 1 : Integer.parseInt(line.substring(space + 1).trim());
+				trie.adjust(line, 0, space < 0 ? line.length() : space, weight);
+			}
+		} finally {
+			reader.close();
+		}
+		trie.endUpdate();
+		return trie;
+	}
+
+	private char[] mChars = new char[256];
+
+	// Structure of the trie: first child and next sibling of each node, NONE if there is none
+	private int[] mFirstChild = new int[256], mNextSibling = new int[256];
+
+	// Frequency of each word
+	private int[] mFrequencies = new int[64];
+
+	// Whether ranking is deferred until endUpdate(), for bulk updates
+	private boolean mDeferRanking;
+
+	private int mNodeCount;
+
+	private int[] mParents = new int[256];
+
+	// Ids of the most frequent words below each node, MAX_RESULTS entries per node padded with NONE
+	private int[] mTop = new int[256 * MAX_RESULTS];
+
+	// Word ending at each node, NONE if there is none
+	private int[] mWords = new int[256];
+
+	private int mWordCount;
+
+	// Node at which each word ends
+	private int[] mWordNodes = new int[64];
+
+	public CompletionTrie() {
+		newNode(NONE, '\0');
+	}
+
+	/**
+	 * Add delta to the frequency of the word text[start, end), adding the word if it is missing
+	 *
+	 * @return id of the word
+	 */
+	public int adjust(CharSequence text, int start, int end, int delta) {
+		int node = 0;
+		for (int i = start; i < end; i++) {
+			final char c = text.charAt(i);
+			int child = mFirstChild[node], previous = NONE;
+			while (child != NONE && mChars[child] < c) {
+				previous = child;
+				child = mNextSibling[child];
+			}
+			if (child == NONE || mChars[child] != c) {
+				// Keep the siblings sorted so that ties are resolved alphabetically
+				final int created = newNode(node, c);
+				mNextSibling[created] = child;
+				if (previous == NONE)
+					mFirstChild[node] = created;
+				else
+					mNextSibling[previous] = created;
+				child = created;
+			}
+			node = child;
+		}
+		int word = mWords[node];
+		if (word == NONE) {
+			if (mWordCount == mFrequencies.length) {
+				mFrequencies = grow(mFrequencies, 2 * mWordCount);
+				mWordNodes = grow(mWordNodes, 2 * mWordCount);
+			}
+			word = mWordCount++;
+			mWords[node] = word;
+			mWordNodes[word] = node;
+			mFrequencies[word] = 0;
+		}
+		mFrequencies[word] += delta;
+		if (!mDeferRanking) {
+			for (int n = node; n != NONE; n = mParents[n])
+				rank(n);
+		}
+		return word;
+	}
+
+	/**
+	 * Defer ranking until {@link #endUpdate()}, which is faster when many words are adjusted at once
+	 */
+	public void beginUpdate() {
+		mDeferRanking = true;
+	}
+
+	/**
+	 * Harvest the commands and the environment names of text[start, end) into the document frequencies
+	 *
+	 * @param sign
+	 *            1 to count the occurrences, -1 to discount them when the text is removed
+	 */
+	public void adjustDocument(CharSequence text, int start, int end, int sign) {
+		int i = start;
+		while (i < end) {
+			if (text.charAt(i) != '\\') {
+				i++;
+				continue;
+			}
+			int j = i + 1;
+			while (j < end && isLetter(text.charAt(j)))
+				j++;
+			if (j - i > 1) {
+				adjust(text, i, j, sign);
+				// Environment names are completed after \begin{ and \end{
+				if (j - i == 6 && j < end && text.charAt(j) == '{' && regionMatches(text, i, "\\begin")) {
+					int k = j + 1;
+					while (k < end && (isLetter(text.charAt(k)) || text.charAt(k) == '*'))
+						k++;
+					if (k > j + 1 && k < end && text.charAt(k) == '}')
+						adjust(text, j + 1, k, sign);
+				}
+			}
+			i = j;
+		}
+	}
+
+	/**
+	 * Rank the whole trie after a bulk update started by {@link #beginUpdate()}
+	 */
+	public void endUpdate() {
+		mDeferRanking = false;
+		rankSubtree(0);
+	}
+
+	/**
+	 * Find the most frequent words starting with text[start, end), without allocating
+	 *
+	 * @param out
+	 *            Receives the ids of the words by decreasing frequency, at most {@link #MAX_RESULTS}
+	 * @return number of words found
+	 */
+	public int find(CharSequence text, int start, int end, int[] out) {
+		int node = 0;
+		for (int i = start; i < end && node != NONE; i++) {
+			final char c = text.charAt(i);
+			node = mFirstChild[node];
+			while (node != NONE && mChars[node] < c)
+				node = mNextSibling[node];
+			if (node != NONE && mChars[node] != c)
+				node = NONE;
+		}
+		if (node == NONE)
+			return 0;
+		int count = 0;
+		final int base = node * MAX_RESULTS;
+		while (count < MAX_RESULTS && count < out.length && mTop[base + count] != NONE) {
+			out[count] = mTop[base + count];
+			count++;
+		}
+		return count;
+	}
+
+	public int getFrequency(int word) {
+		return mFrequencies[word];
+	}
+
+	/**
+	 * @return the estimated number of bytes held by the trie
+	 */
+	public long getMemoryUsage() {
+		return MemoryUsage.sizeOf(mChars) + MemoryUsage.sizeOf(mFirstChild) + MemoryUsage.sizeOf(mNextSibling)
+				+ MemoryUsage.sizeOf(mFrequencies) + MemoryUsage.sizeOf(mParents) + MemoryUsage.sizeOf(mTop)
+				+ MemoryUsage.sizeOf(mWords) + MemoryUsage.sizeOf(mWordNodes);
+	}
+
+	/**
+	 * Get a word from its id; this allocates and is meant for displaying the results only
+	 */
+	public String getWord(int word) {
+		final StringBuilder builder = new StringBuilder();
+		for (int n = mWordNodes[word]; n != 0; n = mParents[n])
+			builder.append(mChars[n]);
+		return builder.reverse().toString();
+	}
+
+	/**
+	 * Insert a word in the ranking of a node, keeping it sorted by decreasing frequency
+	 */
+	private void insert(int node, int word) {
+		final int base = node * MAX_RESULTS;
+		final int frequency = mFrequencies[word];
+		if (frequency <= 0)
+			return;
+		int i = MAX_RESULTS;
+		while (i > 0 && (mTop[base + i - 1] == NONE || mFrequencies[mTop[base + i - 1]] < frequency))
+			i--;
+		if (i == MAX_RESULTS)
+			return;
+		System.arraycopy(mTop, base + i, mTop, base + i + 1, MAX_RESULTS - i - 1);
+		mTop[base + i] = word;
+	}
+
+	private int newNode(int parent, char c) {
+		if (mNodeCount == mChars.length) {
+			final int capacity = 2 * mNodeCount;
+			char[] chars = new char[capacity];
+			System.arraycopy(mChars, 0, chars, 0, mNodeCount);
+			mChars = chars;
+			mFirstChild = grow(mFirstChild, capacity);
+			mNextSibling = grow(mNextSibling, capacity);
+			mParents = grow(mParents, capacity);
+			mWords = grow(mWords, capacity);
+			mTop = grow(mTop, capacity * MAX_RESULTS);
+		}
+		final int node = mNodeCount++;
+		mChars[node] = c;
+		mParents[node] = parent;
+		mFirstChild[node] = NONE;
+		mNextSibling[node] = NONE;
+		mWords[node] = NONE;
+		for (int i = 0; i < MAX_RESULTS; i++)
+			mTop[node * MAX_RESULTS + i] = NONE;
+		return node;
+	}
+
+	/**
+	 * Recompute the ranking of a node from its own word and the rankings of its children
+	 */
+	private void rank(int node) {
+		final int base = node * MAX_RESULTS;
+		for (int i = 0; i < MAX_RESULTS; i++)
+			mTop[base + i] = NONE;
+		if (mWords[node] != NONE)
+			insert(node, mWords[node]);
+		for (int child = mFirstChild[node]; child != NONE; child = mNextSibling[child]) {
+			for (int i = 0; i < MAX_RESULTS && mTop[child * MAX_RESULTS + i] != NONE; i++)
+				insert(node, mTop[child * MAX_RESULTS + i]);
+		}
+	}
+
+	private void rankSubtree(int node) {
+		for (int child = mFirstChild[node]; child != NONE; child = mNextSibling[child])
+			rankSubtree(child);
+		rank(node);
+	}
+
+}
@@ -0,0 +1,144 @@
+package lah.widgets.text;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+/**
+ * Draggable thumb along the right edge of a text, for jumping across long texts
+ *
+ * The position of the thumb is a fraction of the track and is mapped by the view to a paragraph through its line
+ * index, not to a pixel offset, so that a jump never needs the height of the text before the destination. The thumb
+ * is shown while the text scrolls and hidden {@link #HIDE_DELAY} ms after the last scroll.
+ *
+ * @author L.A.H.
+ *
+ */
+public class FastScrollThumb {
+
+	/**
+	 * Time in ms during which the thumb stays visible after a scroll
+	 */
+	public static final int HIDE_DELAY = 1500;
+
+	/**
+	 * Minimal number of screens of text for the thumb to be shown
+	 */
+	public static final int MIN_PAGES = 4;
+
+	private boolean mDragging;
+
+	private float mFraction;
+
+	private final float mHeight;
+
+	// Uptime at which the thumb is hidden
+	private long mHideTime;
+
+	private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+	private final RectF mRect = new RectF();
+
+	// Offset of the touch from the top of the thumb while it is dragged
+	private float mTouchOffset;
+
+	private final float mWidth;
+
+	/**
+	 * @param width
+	 *            Width of the thumb in pixels, the touch target is twice as wide
+	 * @param height
+	 *            Height of the thumb in pixels
+	 */
+	public FastScrollThumb(float width, float height) {
+		mWidth = width;
+		mHeight = height;
+		mPaint.setColor(0x80606060);
+	}
+
+	/**
+	 * Start dragging the thumb if (x, y) is on it
+	 *
+	 * @param right
+	 *            Right edge of the track
+	 * @param top
+	 *            Top of the track
+	 * @param bottom
+	 *            Bottom of the track
+	 * @return whether the drag started
+	 */
+	public boolean beginDrag(float x, float y, float right, float top, float bottom, long now) {
+		if (!isVisible(now) || x < right - 2 * mWidth || x > right)
+			return false;
+		final float thumbTop = getThumbTop(top, bottom);
+		if (y < thumbTop - mHeight / 2 || y > thumbTop + mHeight * 3 / 2)
+			return false;
+		mDragging = true;
+		mTouchOffset = Math.max(0, Math.min(y - thumbTop, mHeight));
+		return true;
+	}
+
+	/**
+	 * Draw the thumb if it is visible
+	 */
+	public void draw(Canvas canvas, float right, float top, float bottom, long now) {
+		if (!isVisible(now))
+			return;
+		final float thumbTop = getThumbTop(top, bottom);
+		mRect.set(right - mWidth, thumbTop, right, thumbTop + mHeight);
+		canvas.drawRoundRect(mRect, mWidth / 2, mWidth / 2, mPaint);
+	}
+
+	/**
+	 * Stop dragging, the thumb is hidden after the usual delay
+	 */
+	public void endDrag(long now) {
+		mDragging = false;
+		mHideTime = now + HIDE_DELAY;
+	}
+
+	/**
+	 * @return the position of the thumb, between 0 at the top of the track and 1 at its bottom
+	 */
+	public float getFraction() {
+		return mFraction;
+	}
+
+	private float getThumbTop(float top, float bottom) {
+		return top + mFraction * Math.max(0, bottom - top - mHeight);
+	}
+
+	public boolean isDragging() {
+		return mDragging;
+	}
+
+	public boolean isVisible(long now) {
+		return mDragging || now < mHideTime;
+	}
+
+	/**
+	 * Move the dragged thumb to follow the touch at y
+	 *
+	 * @return the new position of the thumb
+	 */
+	public float moveTo(float y, float top, float bottom) {
+		final float track = bottom - top - mHeight;
+		mFraction = track > 0 ? Math.max(0, Math.min(1, (y - mTouchOffset - top) / track)) : 0;
+		return mFraction;
+	}
+
+	/**
+	 * Set the position of the thumb from the scroll position of the text and show it, unless it is being dragged
+	 */
+	public void onScrolled(float fraction, long now) {
+		if (mDragging)
+			return;
+		mFraction = Math.max(0, Math.min(1, fraction));
+		mHideTime = now + HIDE_DELAY;
+	}
+
+	public void setColor(int color) {
+		mPaint.setColor(color);
+	}
+
+}
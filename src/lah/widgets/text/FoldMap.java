@@ -0,0 +1,232 @@
+package lah.widgets.text;
+
+import android.text.Layout;
+
+/**
+ * Collapsed ranges of paragraphs of a text and the mapping between the vertical coordinates of a layout of the whole
+ * text and those of the display, where the collapsed ranges take no space
+ *
+ * The folds are kept as sorted, disjoint ranges of paragraphs (aligned with a {@link LineIndex}) in primitive arrays.
+ * Their extent in the layout is measured lazily, in O(log n) per fold, so that mapping a coordinate is a binary search
+ * over the folds and never touches the hidden lines.
+ *
+ * @author L.A.H.
+ *
+ */
+public class FoldMap {
+
+	private static int[] grow(int[] array, int capacity) {
+		int[] result = new int[capacity];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	private int mCount;
+
+	// First and last hidden paragraphs of the folds
+	private int[] mFirst = new int[16], mLast = new int[16];
+
+	private boolean mGeometryBogus = true;
+
+	// Total height hidden by the folds before each fold
+	private int[] mHiddenBefore = new int[16];
+
+	// Layout coordinates of the top of the first and the bottom of the last hidden line of each fold
+	private int[] mTop = new int[16], mBottom = new int[16];
+
+	private int mTotalHidden;
+
+	public void clear() {
+		mCount = 0;
+		mGeometryBogus = true;
+	}
+
+	/**
+	 * Collapse the paragraphs [first, last], absorbing the folds inside the range
+	 *
+	 * @return false if the range partially overlaps an existing fold
+	 */
+	public boolean fold(int first, int last) {
+		if (first > last)
+			return false;
+		int from = indexOfFirstEndingFrom(first);
+		int to = from;
+		while (to < mCount && mFirst[to] <= last) {
+			if (mFirst[to] < first || mLast[to] > last)
+				return false;
+			to++;
+		}
+		final int count = mCount - (to - from) + 1;
+		if (count > mFirst.length) {
+			final int capacity = Math.max(count, 2 * mFirst.length);
+			mFirst = grow(mFirst, capacity);
+			mLast = grow(mLast, capacity);
+			mTop = new int[capacity];
+			mBottom = new int[capacity];
+			mHiddenBefore = new int[capacity];
+		}
+		System.arraycopy(mFirst, to, mFirst, from + 1, mCount - to);
+		System.arraycopy(mLast, to, mLast, from + 1, mCount - to);
+		mFirst[from] = first;
+		mLast[from] = last;
+		mCount = count;
+		mGeometryBogus = true;
+		return true;
+	}
+
+	public int getCount() {
+		return mCount;
+	}
+
+	public int getFirst(int index) {
+		return mFirst[index];
+	}
+
+	/**
+	 * Total height of the hidden lines
+	 */
+	public int getHiddenHeight() {
+		return mTotalHidden;
+	}
+
+	public int getLast(int index) {
+		return mLast[index];
+	}
+
+	/**
+	 * Layout coordinate of the top of the first hidden line of the first fold starting at or below y, or
+	 * {@link Integer#MAX_VALUE} if there is none
+	 */
+	public int getNextFoldTop(int y) {
+		int low = 0, high = mCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mTop[mid] < y)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low < mCount ? mTop[low] : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @return index of the fold hiding the paragraph or -1 if it is visible
+	 */
+	public int indexOf(int paragraph) {
+		final int index = indexOfFirstEndingFrom(paragraph);
+		return index < mCount && mFirst[index] <= paragraph ? index : -1;
+	}
+
+	private int indexOfFirstEndingFrom(int paragraph) {
+		int low = 0, high = mCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mLast[mid] < paragraph)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Index of the last fold whose key is at most y, -1 if none
+	 */
+	private int indexOfLastFoldAbove(int y, boolean visual) {
+		int low = 0, high = mCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if ((visual ? mTop[mid] - mHiddenBefore[mid] : mTop[mid]) <= y)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low - 1;
+	}
+
+	public void invalidateGeometry() {
+		mGeometryBogus = true;
+	}
+
+	public boolean isGeometryBogus() {
+		return mGeometryBogus;
+	}
+
+	/**
+	 * Update the folds after an edit: folds touched by the edit are expanded, the ones after are shifted
+	 *
+	 * @param firstLine
+	 *            First paragraph whose content changed
+	 * @param lastLine
+	 *            Last paragraph (in the new text) whose content changed
+	 * @param lineDelta
+	 *            Change in the number of paragraphs
+	 */
+	public void onTextChanged(int firstLine, int lastLine, int lineDelta) {
+		if (mCount == 0)
+			return;
+		final int oldLastLine = lastLine - lineDelta;
+		int j = 0;
+		for (int i = 0; i < mCount; i++) {
+			if (mLast[i] < firstLine) {
+				j++;
+			} else if (mFirst[i] > oldLastLine) {
+				mFirst[j] = mFirst[i] + lineDelta;
+				mLast[j] = mLast[i] + lineDelta;
+				j++;
+			}
+		}
+		mCount = j;
+		mGeometryBogus = true;
+	}
+
+	/**
+	 * Map a vertical coordinate of the display to the layout
+	 */
+	public int toLayout(int y) {
+		final int index = indexOfLastFoldAbove(y, true);
+		return index < 0 ? y : y + mHiddenBefore[index] + mBottom[index] - mTop[index];
+	}
+
+	/**
+	 * Map a vertical coordinate of the layout to the display, coordinates in a fold map to the top of the fold
+	 */
+	public int toVisual(int y) {
+		final int index = indexOfLastFoldAbove(y, false);
+		if (index < 0)
+			return y;
+		if (y < mBottom[index])
+			return mTop[index] - mHiddenBefore[index];
+		return y - mHiddenBefore[index] - (mBottom[index] - mTop[index]);
+	}
+
+	/**
+	 * Expand the fold at the given index
+	 */
+	public void unfold(int index) {
+		System.arraycopy(mFirst, index + 1, mFirst, index, mCount - index - 1);
+		System.arraycopy(mLast, index + 1, mLast, index, mCount - index - 1);
+		mCount--;
+		mGeometryBogus = true;
+	}
+
+	/**
+	 * Measure the extent of the folds in the layout, which must be that of the whole text indexed by lineIndex
+	 */
+	public void updateGeometry(Layout layout, LineIndex lineIndex) {
+		int hidden = 0;
+		final int paragraphCount = lineIndex.getLineCount();
+		for (int i = 0; i < mCount; i++) {
+			final int topLine = layout.getLineForOffset(lineIndex.getLineStart(mFirst[i]));
+			final int bottomLine = mLast[i] + 1 < paragraphCount ? layout.getLineForOffset(lineIndex
+					.getLineStart(mLast[i] + 1)) : layout.getLineCount();
+			mTop[i] = layout.getLineTop(topLine);
+			mBottom[i] = layout.getLineTop(bottomLine);
+			mHiddenBefore[i] = hidden;
+			hidden += mBottom[i] - mTop[i];
+		}
+		mTotalHidden = hidden;
+		mGeometryBogus = false;
+	}
+
+}
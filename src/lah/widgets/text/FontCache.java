@@ -0,0 +1,280 @@
+package lah.widgets.text;
+
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.text.TextPaint;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Process-wide cache of configured fonts shared by all the text views
+ *
+ * A {@link Font} is keyed by (typeface, style, size, density, flags) and holds a template {@link TextPaint} with the
+ * typeface derived from the style and the algorithmic bold and skew it needs, its font metrics and the advance widths
+ * of the ASCII characters. Views showing text in the same font share one instance: deriving the typeface and measuring
+ * are done once per process rather than once per view. Fonts are only weakly referenced by the cache, so a font is
+ * released as soon as no view holds it.
+ *
+ * Fonts are created and measured outside of the lock of the cache, so that a view asking for a font never waits for
+ * the {@link #warmUp(Typeface, int, float, float, int)} of another font on the {@link TextWorker} thread; when both
+ * ask for the same font at the same time, it is measured twice and the first one inserted is kept.
+ *
+ * @author L.A.H.
+ *
+ */
+public final class FontCache {
+
+	/**
+	 * Configured font, immutable once obtained from the cache
+	 */
+	public static final class Font {
+
+		private final float[] mAdvances = new float[ASCII_COUNT];
+
+		// Common advance of the printable ASCII characters, -1 if they differ
+		private final float mCharWidth;
+
+		private final int mLineSpacing;
+
+		private final Paint.FontMetricsInt mMetrics = new Paint.FontMetricsInt();
+
+		private final TextPaint mPaint;
+
+		Font(Typeface typeface, int style, float size, float density, int flags) {
+			mPaint = new TextPaint(flags);
+			mPaint.density = density;
+			mPaint.setTextSize(size);
+			if (style > 0) {
+				typeface = typeface == null ? Typeface.defaultFromStyle(style) : Typeface.create(typeface, style);
+				// Only what the typeface does not provide is done algorithmically
+				final int need = style & ~(typeface != null ? typeface.getStyle() : 0);
+				mPaint.setFakeBoldText((need & Typeface.BOLD) != 0);
+				mPaint.setTextSkewX((need & Typeface.ITALIC) != 0 ? -0.25f : 0);
+			}
+			mPaint.setTypeface(typeface);
+			mLineSpacing = mPaint.getFontMetricsInt(mMetrics);
+
+			final char[] ascii = new char[ASCII_COUNT];
+			for (int c = 0; c < ASCII_COUNT; c++)
+				ascii[c] = (char) c;
+			mPaint.getTextWidths(ascii, 0, ASCII_COUNT, mAdvances);
+			float width = mAdvances[' '];
+			for (int c = ' ' + 1; c < ASCII_COUNT - 1 && width >= 0; c++) {
+				if (mAdvances[c] != width)
+					width = -1;
+			}
+			mCharWidth = width;
+		}
+
+		/**
+		 * Configure the typeface, size, flags, algorithmic style and density of the paint as those of this font,
+		 * leaving its color and shadow unchanged
+		 */
+		public void applyTo(TextPaint paint) {
+			paint.setFlags(mPaint.getFlags());
+			paint.density = mPaint.density;
+			paint.setTextSize(mPaint.getTextSize());
+			paint.setTypeface(mPaint.getTypeface());
+			paint.setTextSkewX(mPaint.getTextSkewX());
+		}
+
+		/**
+		 * @return the advance width of the ASCII character c, or -1 if c is not ASCII
+		 */
+		public float getAdvance(char c) {
+			return c < ASCII_COUNT ? mAdvances[c] : -1;
+		}
+
+		/**
+		 * @return the advance width shared by all printable ASCII characters, -1 if the font is not monospaced
+		 */
+		public float getCharWidth() {
+			return mCharWidth;
+		}
+
+		/**
+		 * @return the metrics of the font, which must not be modified
+		 */
+		public Paint.FontMetricsInt getFontMetrics() {
+			return mMetrics;
+		}
+
+		/**
+		 * @return the recommended distance between baselines
+		 */
+		public int getLineSpacing() {
+			return mLineSpacing;
+		}
+
+		public float getTextSize() {
+			return mPaint.getTextSize();
+		}
+
+		public Typeface getTypeface() {
+			return mPaint.getTypeface();
+		}
+
+		/**
+		 * @return the width of the characters [start, end) of text, summed from the advance table for ASCII text
+		 */
+		public float measure(char[] text, int start, int end) {
+			float width = 0;
+			for (int i = start; i < end; i++) {
+				final char c = text[i];
+				if (c >= ASCII_COUNT) {
+					synchronized (mPaint) {
+						return width + mPaint.measureText(text, i, end - i);
+					}
+				}
+				width += mAdvances[c];
+			}
+			return width;
+		}
+
+	}
+
+	private static final class Key {
+
+		private final float mDensity;
+
+		private final int mFlags;
+
+		private final float mSize;
+
+		private final int mStyle;
+
+		private final Typeface mTypeface;
+
+		Key(Typeface typeface, int style, float size, float density, int flags) {
+			mTypeface = typeface;
+			mStyle = style;
+			mSize = size;
+			mDensity = density;
+			mFlags = flags;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			final Key k = (Key) o;
+			return k.mTypeface == mTypeface && k.mStyle == mStyle && k.mSize == mSize && k.mDensity == mDensity
+					&& k.mFlags == mFlags;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = mTypeface != null ? mTypeface.hashCode() : 0;
+			h = 31 * h + mStyle;
+			h = 31 * h + Float.floatToIntBits(mSize);
+			h = 31 * h + Float.floatToIntBits(mDensity);
+			return 31 * h + mFlags;
+		}
+
+	}
+
+	private static final class Ref extends WeakReference<Font> {
+
+		final Key mKey;
+
+		Ref(Key key, Font font) {
+			super(font, sQueue);
+			mKey = key;
+		}
+
+	}
+
+	private static final int ASCII_COUNT = 128;
+
+	private static final HashMap<Key, Ref> sFonts = new HashMap<Key, Ref>();
+
+	private static final ReferenceQueue<Font> sQueue = new ReferenceQueue<Font>();
+
+	// Fonts created by warmUp, held until the views using them are created
+	private static final ArrayList<Font> sWarmFonts = new ArrayList<Font>();
+
+	/**
+	 * Get the font for the given configuration, creating and measuring it if no view uses it yet
+	 *
+	 * @param typeface
+	 *            Base typeface, null for the default one
+	 * @param style
+	 *            {@link Typeface} style derived from the base typeface, 0 to use it as is
+	 * @param size
+	 *            Text size in pixels
+	 * @param density
+	 *            Density of the display
+	 * @param flags
+	 *            {@link Paint} flags, the fake bold flag is ignored since it follows from the style
+	 */
+	public static Font get(Typeface typeface, int style, float size, float density, int flags) {
+		final Key key = new Key(typeface, style, size, density, flags & ~Paint.FAKE_BOLD_TEXT_FLAG);
+		Font font = lookUp(key);
+		if (font != null)
+			return font;
+		final Font created = new Font(typeface, style, size, density, key.mFlags);
+		synchronized (sFonts) {
+			font = lookUp(key);
+			if (font != null)
+				return font;
+			sFonts.put(key, new Ref(key, created));
+			return created;
+		}
+	}
+
+	/**
+	 * @return the number of fonts currently held by the cache
+	 */
+	public static int getSize() {
+		synchronized (sFonts) {
+			return sFonts.size();
+		}
+	}
+
+	private static Font lookUp(Key key) {
+		synchronized (sFonts) {
+			Ref ref;
+			while ((ref = (Ref) sQueue.poll()) != null) {
+				if (sFonts.get(ref.mKey) == ref)
+					sFonts.remove(ref.mKey);
+			}
+			ref = sFonts.get(key);
+			return ref != null ? ref.get() : null;
+		}
+	}
+
+	/**
+	 * Let the fonts created by {@link #warmUp(Typeface, int, float, float, int)} be released once no view uses them
+	 */
+	public static void releaseWarmFonts() {
+		synchronized (sFonts) {
+			sWarmFonts.clear();
+		}
+	}
+
+	/**
+	 * Load the typeface and measure the font for the given configuration on the {@link TextWorker} thread, so that the
+	 * first view using it finds it in the cache. The font is held until {@link #releaseWarmFonts()}. This returns
+	 * immediately and a view created before the warm-up is done simply measures the font itself.
+	 *
+	 * @see #get(Typeface, int, float, float, int)
+	 */
+	public static void warmUp(final Typeface typeface, final int style, final float size, final float density,
+			final int flags) {
+		TextWorker.getWorkerHandler().post(new Runnable() {
+			public void run() {
+				final Font font = get(typeface, style, size, density, flags);
+				synchronized (sFonts) {
+					if (!sWarmFonts.contains(font))
+						sWarmFonts.add(font);
+				}
+			}
+		});
+	}
+
+	private FontCache() {
+	}
+
+}
@@ -0,0 +1,285 @@
+package lah.widgets.text;
+
+/**
+ * Incremental syntax highlighter for TeX sources
+ *
+ * The {@link TexLexer} state at the start of every line is checkpointed in a primitive array aligned with a
+ * {@link LineIndex}. After an edit, only the lines from the edited one are lexed again, and only until the state at a
+ * line start past the edited region agrees with the checkpoint recorded before the edit. Relexing is done on the
+ * {@link TextWorker} thread against a {@link TextSnapshot} of a window of lines; style runs are then produced on demand
+ * for the lines being displayed only.
+ *
+ * @author L.A.H.
+ *
+ */
+public class IncrementalHighlighter {
+
+	/**
+	 * Callback to notify the view that the style of some lines was recomputed
+	 */
+	public interface Callback {
+
+		void onLinesRestyled(int firstLine, int lastLine);
+
+	}
+
+	private class LexJob implements Runnable {
+
+		private boolean mConverged;
+
+		private final int mDirtyTo;
+
+		private final int mFirstLine;
+
+		private final int mJobGeneration;
+
+		private final int mOldCount;
+
+		private final int[] mOldStates;
+
+		private int[] mResult = new int[64];
+
+		private int mResultCount;
+
+		private final TextSnapshot mSnapshot;
+
+		private final int mState;
+
+		LexJob(TextSnapshot snapshot, int firstLine, int state) {
+			mSnapshot = snapshot;
+			mJobGeneration = snapshot.getGeneration();
+			mFirstLine = firstLine;
+			mState = state;
+			mDirtyTo = IncrementalHighlighter.this.mDirtyTo;
+			mOldStates = mStates;
+			mOldCount = mLineIndex.getLineCount();
+		}
+
+		/**
+		 * Apply the result on the UI thread
+		 */
+		void apply() {
+			mPending = false;
+			if (mJobGeneration != mGeneration) {
+				// The text was edited in the mean time, the edit has rescheduled the work
+				schedule();
+				return;
+			}
+			final int count = Math.min(mResultCount, mLineIndex.getLineCount() - mFirstLine - 1);
+			System.arraycopy(mResult, 0, mStates, mFirstLine + 1, count);
+			mLastPassLines += mResultCount;
+			if (mConverged || mFirstLine + mResultCount + 1 >= mLineIndex.getLineCount()) {
+				mLexFrom = Integer.MAX_VALUE;
+				IncrementalHighlighter.this.mDirtyTo = -1;
+			} else {
+				mLexFrom = mFirstLine + mResultCount;
+			}
+			if (mCallback != null)
+				mCallback.onLinesRestyled(mFirstLine, mFirstLine + mResultCount);
+			schedule();
+		}
+
+		@Override
+		public void run() {
+			final TextSnapshot text = mSnapshot;
+			final int n = text.length();
+			int state = mState;
+			int line = mFirstLine;
+			int i = 0;
+			while (i < n) {
+				if (mJobGeneration != mGeneration)
+					break;
+				int end = i;
+				while (end < n && text.charAt(end++) != '\n')
+					;
+				state = TexLexer.lexLine(text, i, end, state, null);
+				i = end;
+				line++;
+				if (mResultCount == mResult.length) {
+					int[] result = new int[mResult.length * 2];
+					System.arraycopy(mResult, 0, result, 0, mResultCount);
+					mResult = result;
+				}
+				mResult[mResultCount++] = state;
+				if (line > mDirtyTo && line < mOldCount && mOldStates[line] == state) {
+					mConverged = true;
+					break;
+				}
+			}
+			TextWorker.getMainHandler().post(new Runnable() {
+				public void run() {
+					apply();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Maximal number of characters handed to the worker in one job
+	 */
+	private static final int WINDOW_CHARS = 16 * 1024;
+
+	private Callback mCallback;
+
+	/**
+	 * Last line whose content was changed by an edit; relexing cannot stop before reaching this line
+	 */
+	private int mDirtyTo = -1;
+
+	private volatile int mGeneration;
+
+	/**
+	 * Number of lines lexed since the last call to {@link #getLexedLineCount(boolean)}
+	 */
+	private int mLastPassLines;
+
+	/**
+	 * First line to be lexed again; its start state is up-to-date
+	 */
+	private int mLexFrom = Integer.MAX_VALUE;
+
+	private LineIndex mLineIndex;
+
+	private boolean mPending;
+
+	/**
+	 * Lexer state at the start of each line of {@link #mLineIndex}
+	 */
+	private int[] mStates = new int[64];
+
+	private CharSequence mText;
+
+	public IncrementalHighlighter(LineIndex lineIndex) {
+		mLineIndex = lineIndex;
+	}
+
+	/**
+	 * Start highlighting a new text, the line index must already be up-to-date
+	 */
+	public void attach(CharSequence text) {
+		mText = text;
+		mGeneration++;
+		ensureCapacity(mLineIndex.getLineCount());
+		mStates[0] = TexLexer.STATE_NORMAL;
+		for (int i = 1; i < mLineIndex.getLineCount(); i++)
+			mStates[i] = -1;
+		mLexFrom = 0;
+		mDirtyTo = mLineIndex.getLineCount() - 1;
+		schedule();
+	}
+
+	private void ensureCapacity(int lines) {
+		if (lines > mStates.length) {
+			int[] states = new int[Math.max(lines, mStates.length * 2)];
+			System.arraycopy(mStates, 0, states, 0, mStates.length);
+			mStates = states;
+		}
+	}
+
+	/**
+	 * Number of lines that were lexed in the background, useful to check that an edit only caused a few lines to be
+	 * processed
+	 */
+	public int getLexedLineCount(boolean reset) {
+		int result = mLastPassLines;
+		if (reset)
+			mLastPassLines = 0;
+		return result;
+	}
+
+	/**
+	 * Compute the style runs of the given line from its checkpoint; this is cheap and intended to be called for the
+	 * visible lines only
+	 */
+	public void getLineRuns(int line, StyleRunBuffer out) {
+		out.clear();
+		final int state = mStates[line];
+		TexLexer.lexLine(mText, mLineIndex.getLineStart(line), mLineIndex.getLineEnd(line),
+				state < 0 ? TexLexer.STATE_NORMAL : state, out);
+	}
+
+	/**
+	 * @return the lexer state at the start of the line, {@link TexLexer#STATE_NORMAL} if it is not known yet
+	 */
+	public int getLineState(int line) {
+		final int state = line < mLineIndex.getLineCount() ? mStates[line] : -1;
+		return state < 0 ? TexLexer.STATE_NORMAL : state;
+	}
+
+	/**
+	 * @return the estimated number of bytes held by the checkpoints
+	 */
+	public long getMemoryUsage() {
+		return MemoryUsage.sizeOf(mStates);
+	}
+
+	/**
+	 * @return whether all checkpoints are up-to-date
+	 */
+	public boolean isIdle() {
+		return mLexFrom == Integer.MAX_VALUE && !mPending;
+	}
+
+	/**
+	 * Update the checkpoints after an edit, the line index must already be up-to-date
+	 *
+	 * @param firstLine
+	 *            First line whose content changed
+	 * @param lastLine
+	 *            Last line (in the new text) whose content changed
+	 * @param lineDelta
+	 *            Change in the number of lines
+	 */
+	public void onTextChanged(int firstLine, int lastLine, int lineDelta) {
+		if (mText == null)
+			return;
+		mGeneration++;
+		final int count = mLineIndex.getLineCount();
+		final int oldCount = count - lineDelta;
+		ensureCapacity(count);
+		if (lineDelta > 0) {
+			System.arraycopy(mStates, firstLine + 1, mStates, firstLine + 1 + lineDelta, oldCount - firstLine - 1);
+			for (int i = firstLine + 1; i <= firstLine + lineDelta; i++)
+				mStates[i] = -1;
+		} else if (lineDelta < 0) {
+			System.arraycopy(mStates, firstLine + 1 - lineDelta, mStates, firstLine + 1, count - firstLine - 1);
+		}
+		if (mDirtyTo > firstLine)
+			mDirtyTo += lineDelta;
+		mDirtyTo = Math.max(mDirtyTo, lastLine);
+		mLexFrom = Math.min(mLexFrom, firstLine);
+		schedule();
+	}
+
+	private void schedule() {
+		if (mPending || mText == null || mLexFrom >= mLineIndex.getLineCount())
+			return;
+		final int line = mLexFrom;
+		final int start = mLineIndex.getLineStart(line);
+		int end;
+		if (start + WINDOW_CHARS >= mText.length()) {
+			end = mText.length();
+		} else {
+			int endLine = mLineIndex.getLineForOffset(start + WINDOW_CHARS);
+			end = endLine == line ? mLineIndex.getLineEnd(line) : mLineIndex.getLineStart(endLine);
+		}
+		int state = mStates[line];
+		if (state < 0)
+			state = TexLexer.STATE_NORMAL;
+		mPending = true;
+		TextWorker.getWorkerHandler().post(new LexJob(TextSnapshot.obtain(mText, start, end, mGeneration), line, state));
+	}
+
+	public void setCallback(Callback callback) {
+		mCallback = callback;
+	}
+
+	/**
+	 * Follow another line index, e.g. that of a shared {@link TextDocument}; the content must then be reset with
+	 * {@link #attach(CharSequence)}
+	 */
+	public void setLineIndex(LineIndex lineIndex) {
+		mLineIndex = lineIndex;
+	}
+
+}
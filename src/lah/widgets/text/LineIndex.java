@@ -0,0 +1,122 @@
+package lah.widgets.text;
+
+/**
+ * Incrementally maintained index of the start offsets of the (logical, i.e. '\n'-terminated) lines of a text
+ *
+ * The index is kept in a sorted primitive array and is updated from the ranges reported by
+ * {@link android.text.TextWatcher#onTextChanged(CharSequence, int, int, int)} so that the text never needs to be
+ * rescanned as a whole.
+ *
+ * @author L.A.H.
+ *
+ */
+public class LineIndex {
+
+	/**
+	 * Start offsets of the lines, the first mLineCount entries are valid and sorted
+	 */
+	private int[] mLineStarts = new int[64];
+
+	private int mLineCount = 1;
+
+	/**
+	 * Length of the indexed text
+	 */
+	private int mLength;
+
+	/**
+	 * Reset the index to that of an empty text
+	 */
+	public void clear() {
+		mLineCount = 1;
+		mLineStarts[0] = 0;
+		mLength = 0;
+	}
+
+	/**
+	 * Get the line containing the given offset in O(log n)
+	 */
+	public int getLineForOffset(int offset) {
+		int low = 0, high = mLineCount - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (mLineStarts[mid] <= offset)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		return low;
+	}
+
+	public int getLineCount() {
+		return mLineCount;
+	}
+
+	/**
+	 * Get the offset past the last character of the line, including the terminating '\n' if there is one
+	 */
+	public int getLineEnd(int line) {
+		return line + 1 < mLineCount ? mLineStarts[line + 1] : mLength;
+	}
+
+	public int getLineStart(int line) {
+		return mLineStarts[line];
+	}
+
+	/**
+	 * @return the estimated number of bytes held by the index
+	 */
+	public long getMemoryUsage() {
+		return MemoryUsage.sizeOf(mLineStarts);
+	}
+
+	public int getTextLength() {
+		return mLength;
+	}
+
+	/**
+	 * Update the index after the characters in [start, start + before) were replaced by after characters
+	 *
+	 * @return the first line whose content changed
+	 */
+	public int onTextChanged(CharSequence text, int start, int before, int after) {
+		final int first = getLineForOffset(start);
+		// Lines starting in (start, start + before] lose their line break
+		int removeFrom = first + 1;
+		int removeTo = removeFrom;
+		while (removeTo < mLineCount && mLineStarts[removeTo] <= start + before)
+			removeTo++;
+
+		int inserted = 0;
+		for (int i = start; i < start + after; i++) {
+			if (text.charAt(i) == '\n')
+				inserted++;
+		}
+
+		final int delta = after - before;
+		final int newCount = mLineCount - (removeTo - removeFrom) + inserted;
+		if (newCount > mLineStarts.length) {
+			int[] starts = new int[Math.max(newCount, mLineStarts.length * 2)];
+			System.arraycopy(mLineStarts, 0, starts, 0, removeFrom);
+			System.arraycopy(mLineStarts, removeTo, starts, removeFrom + inserted, mLineCount - removeTo);
+			mLineStarts = starts;
+		} else {
+			System.arraycopy(mLineStarts, removeTo, mLineStarts, removeFrom + inserted, mLineCount - removeTo);
+		}
+
+		int j = removeFrom;
+		for (int i = start; i < start + after; i++) {
+			if (text.charAt(i) == '\n')
+				mLineStarts[j++] = i + 1;
+		}
+		if (delta != 0) {
+			for (int k = removeFrom + inserted; k < newCount; k++)
+				mLineStarts[k] += delta;
+		}
+
+		mLineCount = newCount;
+		mLength += delta;
+		return first;
+	}
+
+}
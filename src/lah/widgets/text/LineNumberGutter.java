@@ -0,0 +1,130 @@
+package lah.widgets.text;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * Gutter displaying paragraph numbers on the left of a text
+ *
+ * The advance widths of the ten digits are read from the advance table of the {@link FontCache.Font} of the text, so
+ * that the width of a number is a sum of table entries, and numbers are formatted into a reusable char buffer: drawing
+ * a row allocates nothing. The width of the gutter only depends on the number of digits of the largest number, so it
+ * changes, and the text has to be laid out again, only when that count does.
+ *
+ * @author L.A.H.
+ *
+ */
+public class LineNumberGutter {
+
+	/**
+	 * Minimal number of digits the gutter has room for, so that short texts do not relayout at line 10
+	 */
+	private static final int MIN_DIGITS = 2;
+
+	private int mBackgroundColor = 0xFFF0F0F0;
+
+	// Reusable buffer to format a number, 10 digits are enough for an int
+	private final char[] mBuffer = new char[10];
+
+	private int mDigitCount = MIN_DIGITS;
+
+	private final float[] mDigitWidths = new float[10];
+
+	// Font the digit widths were read from
+	private FontCache.Font mFont;
+
+	private float mMaxDigitWidth;
+
+	private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+	private int mWidth;
+
+	public LineNumberGutter() {
+		mPaint.setColor(0xFF909090);
+	}
+
+	/**
+	 * Fill the background of the rows [top, bottom) of the gutter whose left edge is at x
+	 */
+	public void drawBackground(Canvas canvas, float x, float top, float bottom) {
+		final int color = mPaint.getColor();
+		mPaint.setColor(mBackgroundColor);
+		canvas.drawRect(x, top, x + mWidth, bottom, mPaint);
+		mPaint.setColor(color);
+	}
+
+	/**
+	 * Draw the number right-aligned to x at the given baseline
+	 */
+	public void drawNumber(Canvas canvas, int number, float x, float baseline) {
+		int start = mBuffer.length;
+		do {
+			final int digit = number % 10;
+			mBuffer[--start] = (char) ('0' + digit);
+			x -= mDigitWidths[digit];
+			number /= 10;
+		} while (number > 0);
+		canvas.drawText(mBuffer, start, mBuffer.length - start, x, baseline, mPaint);
+	}
+
+	/**
+	 * Space between the numbers and the right edge of the gutter
+	 */
+	public float getPadding() {
+		return mMaxDigitWidth / 2;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public void setColors(int textColor, int backgroundColor) {
+		mPaint.setColor(textColor);
+		mBackgroundColor = backgroundColor;
+	}
+
+	/**
+	 * Set the largest number to be displayed
+	 *
+	 * @return whether the width of the gutter changed
+	 */
+	public boolean setMaxNumber(int number) {
+		int digits = 1;
+		for (int n = number / 10; n > 0; n /= 10)
+			digits++;
+		digits = Math.max(MIN_DIGITS, digits);
+		if (digits == mDigitCount)
+			return false;
+		mDigitCount = digits;
+		return updateWidth();
+	}
+
+	/**
+	 * Use the font of the text for the numbers, the digit widths are read again only if the font changed
+	 *
+	 * @return whether the width of the gutter changed
+	 */
+	public boolean setFont(FontCache.Font font) {
+		if (font == mFont)
+			return false;
+		mFont = font;
+		mPaint.setTextSize(font.getTextSize());
+		mPaint.setTypeface(font.getTypeface());
+		mMaxDigitWidth = 0;
+		for (int i = 0; i < mDigitWidths.length; i++) {
+			mDigitWidths[i] = font.getAdvance((char) ('0' + i));
+			mMaxDigitWidth = Math.max(mMaxDigitWidth, mDigitWidths[i]);
+		}
+		return updateWidth();
+	}
+
+	private boolean updateWidth() {
+		// Half a digit of padding on each side
+		final int width = (int) Math.ceil(mMaxDigitWidth * (mDigitCount + 1));
+		if (width == mWidth)
+			return false;
+		mWidth = width;
+		return true;
+	}
+
+}
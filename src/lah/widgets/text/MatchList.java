@@ -0,0 +1,111 @@
+package lah.widgets.text;
+
+/**
+ * Sorted list of non-overlapping ranges [start, end) of a text, kept in primitive arrays and shifted on edits
+ *
+ * @author L.A.H.
+ *
+ */
+public class MatchList {
+
+	private int mCount;
+
+	private int[] mEnds = new int[64];
+
+	private int[] mStarts = new int[64];
+
+	/**
+	 * Append a range, which must be after all the ranges already in the list
+	 */
+	public void add(int start, int end) {
+		if (mCount == mStarts.length) {
+			int[] starts = new int[mCount * 2];
+			int[] ends = new int[mCount * 2];
+			System.arraycopy(mStarts, 0, starts, 0, mCount);
+			System.arraycopy(mEnds, 0, ends, 0, mCount);
+			mStarts = starts;
+			mEnds = ends;
+		}
+		mStarts[mCount] = start;
+		mEnds[mCount] = end;
+		mCount++;
+	}
+
+	public void clear() {
+		mCount = 0;
+	}
+
+	public int getCount() {
+		return mCount;
+	}
+
+	public int getEnd(int index) {
+		return mEnds[index];
+	}
+
+	/**
+	 * @return the estimated number of bytes held by the list
+	 */
+	public long getMemoryUsage() {
+		return MemoryUsage.sizeOf(mStarts) + MemoryUsage.sizeOf(mEnds);
+	}
+
+	public int getStart(int index) {
+		return mStarts[index];
+	}
+
+	/**
+	 * Find the first range ending after the given offset in O(log n)
+	 *
+	 * @return index of the range or {@link #getCount()} if there is none
+	 */
+	public int indexOfFirstEndingAfter(int offset) {
+		int low = 0, high = mCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mEnds[mid] <= offset)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Find the first range starting at or after the given offset in O(log n)
+	 *
+	 * @return index of the range or {@link #getCount()} if there is none
+	 */
+	public int indexOfFirstStartingFrom(int offset) {
+		int low = 0, high = mCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (mStarts[mid] < offset)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Update the list after the characters in [start, start + before) were replaced by after characters: ranges touched
+	 * by the edit are dropped and the ranges after it are shifted
+	 */
+	public void onTextChanged(int start, int before, int after) {
+		final int end = start + before;
+		// Ranges touched by the edit end after its start and start before its end
+		final int first = indexOfFirstEndingAfter(start);
+		int last = first;
+		while (last < mCount && mStarts[last] < end)
+			last++;
+		final int removed = last - first;
+		final int delta = after - before;
+		for (int i = last; i < mCount; i++) {
+			mStarts[i - removed] = mStarts[i] + delta;
+			mEnds[i - removed] = mEnds[i] + delta;
+		}
+		mCount -= removed;
+	}
+
+}
@@ -0,0 +1,106 @@
+package lah.widgets.text;
+
+/**
+ * Estimated memory held by a text view, in bytes per category
+ *
+ * The estimates add up the sizes of the arrays and objects held for the text, with the 16 bytes of array header and the
+ * 4 bytes references of Dalvik. They are meant to compare categories and views and to enforce a budget, not to be
+ * exact.
+ *
+ * @author L.A.H.
+ *
+ */
+public class MemoryUsage {
+
+	/**
+	 * Number of categories
+	 */
+	public static final int CATEGORY_COUNT = 6;
+
+	/**
+	 * Frequency-ranked completion trie
+	 */
+	public static final int COMPLETIONS = 0;
+
+	/**
+	 * Line index, highlighter checkpoints, bracket and outline indexes, search matches
+	 */
+	public static final int INDEXES = 1;
+
+	/**
+	 * Line geometry of the layout
+	 */
+	public static final int LAYOUT = 2;
+
+	private static final String[] NAMES = { "completions", "indexes", "layout", "spans", "style runs", "text" };
+
+	/**
+	 * Spans attached to the text
+	 */
+	public static final int SPANS = 3;
+
+	/**
+	 * Cached syntax, spell checking and overview results of the paragraphs
+	 */
+	public static final int STYLE_RUNS = 4;
+
+	/**
+	 * Characters of the text
+	 */
+	public static final int TEXT = 5;
+
+	public static long sizeOf(char[] array) {
+		return array == null ? 0 : 16 + 2L * array.length;
+	}
+
+	public static long sizeOf(int[] array) {
+		return array == null ? 0 : 16 + 4L * array.length;
+	}
+
+	/**
+	 * @return the size of the outer array and of the rows it holds
+	 */
+	public static long sizeOf(int[][] array) {
+		if (array == null)
+			return 0;
+		long size = 16 + 4L * array.length;
+		for (int i = 0; i < array.length; i++)
+			size += sizeOf(array[i]);
+		return size;
+	}
+
+	public static long sizeOf(long[] array) {
+		return array == null ? 0 : 16 + 8L * array.length;
+	}
+
+	private final long[] mBytes = new long[CATEGORY_COUNT];
+
+	public void add(int category, long bytes) {
+		mBytes[category] += bytes;
+	}
+
+	public long get(int category) {
+		return mBytes[category];
+	}
+
+	public long getTotal() {
+		long total = 0;
+		for (int i = 0; i < CATEGORY_COUNT; i++)
+			total += mBytes[i];
+		return total;
+	}
+
+	public void reset() {
+		for (int i = 0; i < CATEGORY_COUNT; i++)
+			mBytes[i] = 0;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < CATEGORY_COUNT; i++)
+			sb.append(NAMES[i]).append(": ").append(mBytes[i] / 1024).append(" KB, ");
+		return sb.append("total: ").append(getTotal() / 1024).append(" KB").toString();
+	}
+
+}
@@ -0,0 +1,374 @@
+package lah.widgets.text;
+
+/**
+ * Incrementally maintained outline of a TeX source: the sectioning commands, the \label and the \ref-like commands
+ *
+ * Each kind of entry is kept in sorted primitive offset arrays. An edit only rescans the paragraphs it touched: their
+ * old entries are removed, the entries after them are shifted and the new ones are inserted as one block, so the text
+ * never needs to be reparsed as a whole. Finding the section containing an offset is a binary search.
+ *
+ * @author L.A.H.
+ *
+ */
+public class OutlineIndex {
+
+	/**
+	 * Sorted entries of one kind, each with the offset of its command, the range of its argument and a level
+	 */
+	public static class EntryList {
+
+		private int[] mArgEnds = new int[16];
+
+		private int[] mArgStarts = new int[16];
+
+		// New entries replacing [mReplaceFirst, mReplaceLast), packed as (start, argStart, argEnd, level)
+		private int[] mBlock = new int[16];
+
+		private int mBlockCount;
+
+		private int mCount;
+
+		private int[] mLevels = new int[16];
+
+		private int mReplaceFirst, mReplaceLast;
+
+		private int[] mStarts = new int[16];
+
+		/**
+		 * Append an entry to the block replacing the entries selected by {@link #beginReplace(int, int)}
+		 */
+		private void add(int start, int argStart, int argEnd, int level) {
+			if (4 * mBlockCount + 4 > mBlock.length)
+				mBlock = grow(mBlock);
+			final int k = 4 * mBlockCount++;
+			mBlock[k] = start;
+			mBlock[k + 1] = argStart;
+			mBlock[k + 2] = argEnd;
+			mBlock[k + 3] = level;
+		}
+
+		/**
+		 * Start replacing the entries starting in [start, end) by a block of new entries
+		 */
+		private void beginReplace(int start, int end) {
+			mReplaceFirst = indexOfLastStartingAt(start - 1) + 1;
+			mReplaceLast = mReplaceFirst;
+			while (mReplaceLast < mCount && mStarts[mReplaceLast] < end)
+				mReplaceLast++;
+			mBlockCount = 0;
+		}
+
+		/**
+		 * Put the block in place of the replaced entries: the entries after them are moved once by the difference in
+		 * count, their offsets being shifted by delta in the same pass, and the block is copied in the room left
+		 */
+		private void endReplace(int delta) {
+			final int first = mReplaceFirst, last = mReplaceLast;
+			final int move = first + mBlockCount - last;
+			final int count = mCount + move;
+			while (count > mStarts.length) {
+				mStarts = grow(mStarts);
+				mArgStarts = grow(mArgStarts);
+				mArgEnds = grow(mArgEnds);
+				mLevels = grow(mLevels);
+			}
+			if (move > 0) {
+				for (int i = mCount - 1; i >= last; i--)
+					moveEntry(i, i + move, delta);
+			} else if (move < 0 || delta != 0) {
+				for (int i = last; i < mCount; i++)
+					moveEntry(i, i + move, delta);
+			}
+			for (int i = 0; i < mBlockCount; i++) {
+				mStarts[first + i] = mBlock[4 * i];
+				mArgStarts[first + i] = mBlock[4 * i + 1];
+				mArgEnds[first + i] = mBlock[4 * i + 2];
+				mLevels[first + i] = mBlock[4 * i + 3];
+			}
+			mCount = count;
+			mBlockCount = 0;
+		}
+
+		/**
+		 * Get the argument of the entry, e.g. the title of a section or the key of a label
+		 */
+		public String getArgument(CharSequence text, int index) {
+			return text.subSequence(mArgStarts[index], mArgEnds[index]).toString();
+		}
+
+		public int getArgumentEnd(int index) {
+			return mArgEnds[index];
+		}
+
+		public int getArgumentStart(int index) {
+			return mArgStarts[index];
+		}
+
+		public int getCount() {
+			return mCount;
+		}
+
+		private long getMemoryUsage() {
+			return MemoryUsage.sizeOf(mStarts) + MemoryUsage.sizeOf(mArgStarts) + MemoryUsage.sizeOf(mArgEnds)
+					+ MemoryUsage.sizeOf(mLevels) + MemoryUsage.sizeOf(mBlock);
+		}
+
+		/**
+		 * Level of a section, from {@link OutlineIndex#LEVEL_PART} to {@link OutlineIndex#LEVEL_SUBPARAGRAPH}; 0 for
+		 * the other entries
+		 */
+		public int getLevel(int index) {
+			return mLevels[index];
+		}
+
+		/**
+		 * Offset of the backslash of the command
+		 */
+		public int getStart(int index) {
+			return mStarts[index];
+		}
+
+		/**
+		 * Find the entry whose argument is the given string
+		 *
+		 * @return index of the first such entry or -1
+		 */
+		public int indexOfArgument(CharSequence text, String argument) {
+			final int n = argument.length();
+			for (int i = 0; i < mCount; i++) {
+				if (mArgEnds[i] - mArgStarts[i] != n)
+					continue;
+				int k = 0;
+				while (k < n && text.charAt(mArgStarts[i] + k) == argument.charAt(k))
+					k++;
+				if (k == n)
+					return i;
+			}
+			return -1;
+		}
+
+		/**
+		 * Find the last entry starting at or before the offset in O(log n)
+		 *
+		 * @return index of the entry or -1 if there is none
+		 */
+		public int indexOfLastStartingAt(int offset) {
+			int low = 0, high = mCount;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (mStarts[mid] <= offset)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low - 1;
+		}
+
+		private void moveEntry(int from, int to, int delta) {
+			mStarts[to] = mStarts[from] + delta;
+			mArgStarts[to] = mArgStarts[from] + delta;
+			mArgEnds[to] = mArgEnds[from] + delta;
+			mLevels[to] = mLevels[from];
+		}
+
+	}
+
+	private static final String[] LABEL_COMMANDS = { "label" };
+
+	public static final int LEVEL_CHAPTER = 2;
+
+	public static final int LEVEL_PARAGRAPH = 6;
+
+	public static final int LEVEL_PART = 1;
+
+	public static final int LEVEL_SECTION = 3;
+
+	public static final int LEVEL_SUBPARAGRAPH = 7;
+
+	public static final int LEVEL_SUBSECTION = 4;
+
+	public static final int LEVEL_SUBSUBSECTION = 5;
+
+	private static final String[] REF_COMMANDS = { "ref", "eqref", "pageref", "autoref", "cref", "Cref", "nameref" };
+
+	private static final String[] SECTION_COMMANDS = { "part", "chapter", "section", "subsection", "subsubsection",
+			"paragraph", "subparagraph" };
+
+	private static int[] grow(int[] array) {
+		int[] result = new int[array.length * 2];
+		System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	private static int indexOfCommand(String[] commands, CharSequence text, int start, int end) {
+		for (int i = 0; i < commands.length; i++) {
+			final String command = commands[i];
+			if (command.length() != end - start)
+				continue;
+			int k = 0;
+			while (k < command.length() && text.charAt(start + k) == command.charAt(k))
+				k++;
+			if (k == command.length())
+				return i;
+		}
+		return -1;
+	}
+
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '@';
+	}
+
+	private final EntryList mLabels = new EntryList();
+
+	private LineIndex mLineIndex;
+
+	private final EntryList mRefs = new EntryList();
+
+	private final EntryList mSections = new EntryList();
+
+	public OutlineIndex(LineIndex lineIndex) {
+		mLineIndex = lineIndex;
+	}
+
+	public void clear() {
+		mSections.mCount = 0;
+		mLabels.mCount = 0;
+		mRefs.mCount = 0;
+	}
+
+	public EntryList getLabels() {
+		return mLabels;
+	}
+
+	/**
+	 * @return the estimated number of bytes held by the entries
+	 */
+	public long getMemoryUsage() {
+		return mSections.getMemoryUsage() + mLabels.getMemoryUsage() + mRefs.getMemoryUsage();
+	}
+
+	public EntryList getRefs() {
+		return mRefs;
+	}
+
+	/**
+	 * Find the section containing the offset, i.e. the last sectioning command before it, in O(log n)
+	 *
+	 * @return index in {@link #getSections()} or -1 if the offset is before the first section
+	 */
+	public int getSectionAt(int offset) {
+		return mSections.indexOfLastStartingAt(offset);
+	}
+
+	public EntryList getSections() {
+		return mSections;
+	}
+
+	/**
+	 * Update the outline after the characters in [start, start + before) were replaced by after characters, the line
+	 * index must already be up-to-date
+	 *
+	 * @param firstLine
+	 *            First paragraph whose content changed
+	 * @param lastLine
+	 *            Last paragraph (in the new text) whose content changed
+	 */
+	public void onTextChanged(CharSequence text, int start, int before, int after, int firstLine, int lastLine) {
+		final int delta = after - before;
+		final int rangeStart = mLineIndex.getLineStart(firstLine);
+		final int rangeEnd = mLineIndex.getLineEnd(lastLine);
+		// In the old text, the touched paragraphs spanned [rangeStart, rangeEnd - delta)
+		mSections.beginReplace(rangeStart, rangeEnd - delta);
+		mLabels.beginReplace(rangeStart, rangeEnd - delta);
+		mRefs.beginReplace(rangeStart, rangeEnd - delta);
+		scan(text, rangeStart, rangeEnd);
+		mSections.endReplace(delta);
+		mLabels.endReplace(delta);
+		mRefs.endReplace(delta);
+	}
+
+	/**
+	 * Collect the entries of [start, end) in the blocks of the lists
+	 */
+	private void scan(CharSequence text, int start, int end) {
+		int i = start;
+		while (i < end) {
+			final char c = text.charAt(i);
+			if (c == '%') {
+				// Skip to the end of the comment line
+				while (i < end && text.charAt(i) != '\n')
+					i++;
+				continue;
+			}
+			if (c != '\\') {
+				i++;
+				continue;
+			}
+			final int commandStart = i;
+			int j = i + 1;
+			while (j < end && isLetter(text.charAt(j)))
+				j++;
+			if (j == i + 1) {
+				// Control symbol such as \% or \\
+				i = Math.min(end, i + 2);
+				continue;
+			}
+			final int section = indexOfCommand(SECTION_COMMANDS, text, i + 1, j);
+			final boolean label = section < 0 && indexOfCommand(LABEL_COMMANDS, text, i + 1, j) >= 0;
+			final boolean ref = section < 0 && !label && indexOfCommand(REF_COMMANDS, text, i + 1, j) >= 0;
+			i = j;
+			if (section < 0 && !label && !ref)
+				continue;
+
+			// Optional star and [short title]
+			if (j < end && text.charAt(j) == '*')
+				j++;
+			if (j < end && text.charAt(j) == '[') {
+				while (j < end && text.charAt(j) != ']' && text.charAt(j) != '\n')
+					j++;
+				// The whole command must be in its paragraph, which is all an edit rescans
+				if (j >= end || text.charAt(j) != ']')
+					continue;
+				j++;
+			}
+			if (j >= end || text.charAt(j) != '{')
+				continue;
+			final int argStart = j + 1;
+			int depth = 1;
+			j = argStart;
+			while (j < end && text.charAt(j) != '\n') {
+				final char a = text.charAt(j);
+				if (a == '%')
+					break;
+				if (a == '\\') {
+					// An escaped line break would carry the argument over to the next paragraph
+					if (j + 1 < end && text.charAt(j + 1) == '\n')
+						break;
+					j++;
+				} else if (a == '{')
+					depth++;
+				else if (a == '}' && --depth == 0)
+					break;
+				j++;
+			}
+			if (depth != 0 || j >= end)
+				continue;
+			if (section >= 0)
+				mSections.add(commandStart, argStart, j, LEVEL_PART + section);
+			else if (label)
+				mLabels.add(commandStart, argStart, j, 0);
+			else
+				mRefs.add(commandStart, argStart, j, 0);
+			i = j + 1;
+		}
+	}
+
+	/**
+	 * Follow another line index, e.g. that of a shared {@link TextDocument}; the content must then be reset with
+	 * {@link #clear()}
+	 */
+	public void setLineIndex(LineIndex lineIndex) {
+		mLineIndex = lineIndex;
+	}
+
+}
@@ -0,0 +1,295 @@
+package lah.widgets.text;
+
+/**
+ * Per-paragraph summaries of a TeX source (length and dominant {@link TexLexer} style) for an overview of the whole
+ * text, computed incrementally in the background
+ *
+ * The summaries are packed in a primitive int array aligned with a {@link LineIndex}. An edit only invalidates the
+ * summaries of the paragraphs it touched; these are recomputed on the {@link TextWorker} thread from a
+ * {@link TextSnapshot}, one window of paragraphs at a time, and the listener is told which paragraphs changed so that
+ * an overview can be patched rather than redrawn.
+ *
+ * @author L.A.H.
+ *
+ */
+public class OverviewIndex {
+
+	/**
+	 * Listener notified on the UI thread when summaries changed
+	 */
+	public interface Listener {
+
+		/**
+		 * @param firstLine
+		 *            First paragraph whose summary changed
+		 * @param lastLine
+		 *            Last paragraph whose summary changed; all the paragraphs from firstLine on changed if the number
+		 *            of paragraphs did
+		 */
+		void onSummariesChanged(int firstLine, int lastLine);
+
+	}
+
+	private class SummaryJob implements Runnable {
+
+		private final int mFirstLine;
+
+		private final int mJobGeneration;
+
+		private int mResultCount;
+
+		private final int[] mResult;
+
+		private final TextSnapshot mSnapshot;
+
+		private final int mState;
+
+		SummaryJob(TextSnapshot snapshot, int firstLine, int lineCount, int state) {
+			mSnapshot = snapshot;
+			mJobGeneration = snapshot.getGeneration();
+			mFirstLine = firstLine;
+			mResult = new int[lineCount];
+			mState = state;
+		}
+
+		/**
+		 * Apply the result on the UI thread
+		 */
+		void apply() {
+			mPending = false;
+			if (mJobGeneration != mGeneration) {
+				// The text was edited in the mean time, the edited paragraphs are dirty again
+				schedule();
+				return;
+			}
+			System.arraycopy(mResult, 0, mSummaries, mFirstLine, mResultCount);
+			mDirtyFrom = mFirstLine + mResultCount;
+			if (mListener != null && mResultCount > 0)
+				mListener.onSummariesChanged(mFirstLine, mFirstLine + mResultCount - 1);
+			schedule();
+		}
+
+		@Override
+		public void run() {
+			final TextSnapshot text = mSnapshot;
+			final int n = text.length();
+			final StyleRunBuffer runs = new StyleRunBuffer();
+			final int[] weights = new int[TexLexer.STYLE_COUNT];
+			int state = mState;
+			int i = 0;
+			// The last paragraph of the window may be empty, i.e. start at n
+			while (mResultCount < mResult.length && mJobGeneration == mGeneration) {
+				int end = i;
+				while (end < n && text.charAt(end++) != '\n')
+					;
+				runs.clear();
+				state = TexLexer.lexLine(text, i, end, state, runs);
+				for (int s = 0; s < weights.length; s++)
+					weights[s] = 0;
+				for (int r = 0; r < runs.getCount(); r++)
+					weights[runs.getStyle(r)] += runs.getLength(r);
+				int dominant = TexLexer.STYLE_DEFAULT;
+				for (int s = 0; s < weights.length; s++) {
+					if (weights[s] > weights[dominant])
+						dominant = s;
+				}
+				final int length = end > i && text.charAt(end - 1) == '\n' ? end - i - 1 : end - i;
+				mResult[mResultCount++] = pack(length, dominant);
+				i = end;
+			}
+			TextWorker.getMainHandler().post(new Runnable() {
+				public void run() {
+					apply();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Summary of a paragraph which was not computed yet
+	 */
+	public static final int NONE = -1;
+
+	private static final int STYLE_BITS = 3;
+
+	/**
+	 * Maximal number of characters handed to the worker in one job
+	 */
+	private static final int WINDOW_CHARS = 64 * 1024;
+
+	/**
+	 * @return the length of the paragraph, without its '\n', from its summary
+	 */
+	public static int getLength(int summary) {
+		return summary >>> STYLE_BITS;
+	}
+
+	/**
+	 * @return the style covering most characters of the paragraph from its summary
+	 */
+	public static int getStyle(int summary) {
+		return summary & ((1 << STYLE_BITS) - 1);
+	}
+
+	private static int pack(int length, int style) {
+		return (Math.min(length, Integer.MAX_VALUE >>> STYLE_BITS) << STYLE_BITS) | style;
+	}
+
+	private int mCount = 1;
+
+	// Range of paragraphs which may have no summary, mDirtyFrom > mDirtyTo if there is none
+	private int mDirtyFrom = Integer.MAX_VALUE, mDirtyTo = -1;
+
+	private volatile int mGeneration;
+
+	private IncrementalHighlighter mHighlighter;
+
+	private Listener mListener;
+
+	private LineIndex mLineIndex;
+
+	private boolean mPending;
+
+	private int[] mSummaries = new int[64];
+
+	private CharSequence mText;
+
+	public OverviewIndex(LineIndex lineIndex) {
+		mLineIndex = lineIndex;
+		mSummaries[0] = NONE;
+	}
+
+	/**
+	 * Start summarizing a new text, the line index must already be up-to-date
+	 */
+	public void attach(CharSequence text) {
+		mText = text;
+		mGeneration++;
+		mCount = mLineIndex.getLineCount();
+		ensureCapacity(mCount);
+		for (int i = 0; i < mCount; i++)
+			mSummaries[i] = NONE;
+		mDirtyFrom = 0;
+		mDirtyTo = mCount - 1;
+		if (mListener != null)
+			mListener.onSummariesChanged(0, mCount - 1);
+		schedule();
+	}
+
+	/**
+	 * Reset the index to that of an empty text
+	 */
+	public void clear() {
+		mText = null;
+		mGeneration++;
+		mCount = 1;
+		mSummaries[0] = NONE;
+		mDirtyFrom = Integer.MAX_VALUE;
+		mDirtyTo = -1;
+	}
+
+	private void ensureCapacity(int count) {
+		if (count > mSummaries.length) {
+			int[] summaries = new int[Math.max(count, mSummaries.length * 2)];
+			System.arraycopy(mSummaries, 0, summaries, 0, mSummaries.length);
+			mSummaries = summaries;
+		}
+	}
+
+	public int getLineCount() {
+		return mCount;
+	}
+
+	public Listener getListener() {
+		return mListener;
+	}
+
+	/**
+	 * @return the estimated number of bytes held by the summaries
+	 */
+	public long getMemoryUsage() {
+		return MemoryUsage.sizeOf(mSummaries);
+	}
+
+	/**
+	 * @return the packed summary of the paragraph, to be read with {@link #getLength(int)} and
+	 *         {@link #getStyle(int)}, or {@link #NONE} if it was not computed yet
+	 */
+	public int getSummary(int paragraph) {
+		return paragraph < mCount ? mSummaries[paragraph] : NONE;
+	}
+
+	/**
+	 * Invalidate the summaries of the edited paragraphs, the line index must already be up-to-date
+	 *
+	 * @param firstLine
+	 *            First paragraph whose content changed
+	 * @param lastLine
+	 *            Last paragraph (in the new text) whose content changed
+	 * @param lineDelta
+	 *            Change in the number of paragraphs
+	 */
+	public void onTextChanged(int firstLine, int lastLine, int lineDelta) {
+		mGeneration++;
+		final int count = mCount + lineDelta;
+		ensureCapacity(count);
+		if (lineDelta > 0)
+			System.arraycopy(mSummaries, firstLine + 1, mSummaries, firstLine + 1 + lineDelta, mCount - firstLine - 1);
+		else if (lineDelta < 0)
+			System.arraycopy(mSummaries, firstLine + 1 - lineDelta, mSummaries, firstLine + 1, count - firstLine - 1);
+		mCount = count;
+		for (int i = firstLine; i <= lastLine && i < count; i++)
+			mSummaries[i] = NONE;
+		if (mDirtyTo > firstLine)
+			mDirtyTo += lineDelta;
+		mDirtyFrom = Math.min(mDirtyFrom, firstLine);
+		mDirtyTo = Math.max(mDirtyTo, lastLine);
+		if (mListener != null)
+			mListener.onSummariesChanged(firstLine, lineDelta == 0 ? lastLine : count - 1);
+		schedule();
+	}
+
+	private void schedule() {
+		if (mPending || mText == null)
+			return;
+		final int last = Math.min(mDirtyTo, mCount - 1);
+		while (mDirtyFrom <= last && mSummaries[mDirtyFrom] != NONE)
+			mDirtyFrom++;
+		if (mDirtyFrom > last) {
+			mDirtyFrom = Integer.MAX_VALUE;
+			mDirtyTo = -1;
+			return;
+		}
+		final int first = mDirtyFrom;
+		final int start = mLineIndex.getLineStart(first);
+		int end = first;
+		while (end < last && mSummaries[end + 1] == NONE && mLineIndex.getLineEnd(end + 1) - start <= WINDOW_CHARS)
+			end++;
+		final int state = mHighlighter != null ? mHighlighter.getLineState(first) : TexLexer.STATE_NORMAL;
+		mPending = true;
+		TextWorker.getWorkerHandler().post(
+				new SummaryJob(TextSnapshot.obtain(mText, start, mLineIndex.getLineEnd(end), mGeneration), first, end
+						- first + 1, state));
+	}
+
+	/**
+	 * Set the highlighter whose checkpoints give the lexer state at the start of the summarized paragraphs, null to
+	 * start outside of math
+	 */
+	public void setHighlighter(IncrementalHighlighter highlighter) {
+		mHighlighter = highlighter;
+	}
+
+	/**
+	 * Follow another line index, e.g. that of a shared {@link TextDocument}; the content must then be reset with
+	 * {@link #clear()} or {@link #attach(CharSequence)}
+	 */
+	public void setLineIndex(LineIndex lineIndex) {
+		mLineIndex = lineIndex;
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+}
@@ -0,0 +1,525 @@
+package lah.widgets.text;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Spell checker for the prose of a TeX source, running on the {@link TextWorker} thread
+ *
+ * Only the visible paragraphs and the recently edited ones are checked: a window of them is copied to a
+ * {@link TextSnapshot}, lexed with {@link TexLexer} so that commands, math, verbatim and the arguments of commands such
+ * as \label or \cite are skipped, and the words of the remaining text are looked up in a main and a personal
+ * {@link SpellDictionary}. The results are kept as style runs ({@link #STYLE_CORRECT}, {@link #STYLE_MISSPELLED})
+ * aligned with a {@link LineIndex}, so drawing them costs no span. Checks after edits are delayed until typing pauses
+ * and results computed from a stale snapshot are dropped; nothing is ever waited for on the UI thread.
+ *
+ * @author L.A.H.
+ *
+ */
+public class SpellChecker {
+
+	/**
+	 * Callback to notify the view that some paragraphs were checked
+	 */
+	public interface Callback {
+
+		void onParagraphsChecked(int firstLine, int lastLine);
+
+	}
+
+	private class CheckJob implements Runnable {
+
+		private final int mFirstLine;
+
+		private final int mJobGeneration;
+
+		// Number of paragraphs checked, set on the worker
+		private int mLineCount;
+
+		// Runs of the checked paragraphs, set on the worker
+		private int[][] mResult;
+
+		private final TextSnapshot mSnapshot;
+
+		private final int mState;
+
+		CheckJob(TextSnapshot snapshot, int firstLine, int state) {
+			mSnapshot = snapshot;
+			mJobGeneration = snapshot.getGeneration();
+			mFirstLine = firstLine;
+			mState = state;
+		}
+
+		/**
+		 * Apply the result on the UI thread
+		 */
+		void apply() {
+			mPending = false;
+			if (mJobGeneration != mGeneration) {
+				// Dropped, a delayed check was posted by the edit
+				if (!mDelayed)
+					schedule();
+				return;
+			}
+			final int last = mFirstLine + mLineCount - 1;
+			for (int i = 0; i < mLineCount; i++)
+				mRuns.setRuns(mFirstLine + i, mResult[i]);
+			if (mDirtyFirst >= mFirstLine && mDirtyFirst <= last) {
+				mDirtyFirst = last + 1;
+				if (mDirtyFirst > mDirtyLast)
+					mDirtyFirst = mDirtyLast = -1;
+			}
+			if (mCallback != null && mLineCount > 0)
+				mCallback.onParagraphsChecked(mFirstLine, last);
+			schedule();
+		}
+
+		@Override
+		public void run() {
+			final TextSnapshot text = mSnapshot;
+			final int n = text.length();
+			final StyleRunBuffer lexed = new StyleRunBuffer();
+			final StyleRunBuffer out = new StyleRunBuffer();
+			final Tokenizer tokenizer = new Tokenizer();
+			int count = 0;
+			for (int i = 0; i < n; count++) {
+				int end = i;
+				while (end < n && text.charAt(end++) != '\n')
+					;
+				i = end;
+			}
+			mResult = new int[count][];
+			int state = mState;
+			int i = 0;
+			while (i < n && mJobGeneration == mGeneration) {
+				int end = i;
+				while (end < n && text.charAt(end++) != '\n')
+					;
+				lexed.clear();
+				out.clear();
+				state = TexLexer.lexLine(text, i, end, state, lexed);
+				tokenizer.check(text, i, end, lexed, out);
+				if (out.getCount() == 0) {
+					mResult[mLineCount] = CLEAN;
+				} else {
+					final int[] runs = new int[2 * out.getCount()];
+					for (int r = 0; r < out.getCount(); r++) {
+						runs[2 * r] = out.getLength(r);
+						runs[2 * r + 1] = out.getStyle(r);
+					}
+					mResult[mLineCount] = runs;
+				}
+				mLineCount++;
+				i = end;
+			}
+			TextWorker.getMainHandler().post(new Runnable() {
+				public void run() {
+					apply();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Word scanner over the lexed runs of the paragraphs of a job, keeping the state of skipped command arguments from
+	 * one paragraph to the next
+	 */
+	private class Tokenizer {
+
+		// Whether the next brace group is the argument of a command which is not prose
+		private boolean mSkipNext;
+
+		// Depth of braces in the skipped argument, 0 outside
+		private int mSkipDepth;
+
+		/**
+		 * Check the words of text[start, end) whose runs are in lexed, adding the resulting runs to out; out is left
+		 * empty if there is no misspelled word
+		 */
+		void check(CharSequence text, int start, int end, StyleRunBuffer lexed, StyleRunBuffer out) {
+			int position = start, checkedTo = start;
+			int wordStart = -1;
+			boolean glued = false;
+			for (int r = 0; r < lexed.getCount(); r++) {
+				final int style = lexed.getStyle(r);
+				final int runEnd = position + lexed.getLength(r);
+				if (style == TexLexer.STYLE_COMMAND) {
+					// A word going on with a command, such as an accent, is not checked
+					wordStart = -1;
+					mSkipNext = mSkipDepth == 0 && isNonProse(text, position + 1, runEnd);
+					glued = true;
+					position = runEnd;
+					continue;
+				}
+				for (; position < runEnd; position++) {
+					final char c = text.charAt(position);
+					if (style == TexLexer.STYLE_BRACKET) {
+						if (c == '{') {
+							if (mSkipDepth > 0)
+								mSkipDepth++;
+							else if (mSkipNext)
+								mSkipDepth = 1;
+							mSkipNext = false;
+						} else if (c == '}' && mSkipDepth > 0) {
+							mSkipDepth--;
+						}
+					}
+					final boolean prose = mSkipDepth == 0
+							&& (style == TexLexer.STYLE_DEFAULT || style == TexLexer.STYLE_COMMENT);
+					if (prose && (Character.isLetter(c) || (c == '\'' && wordStart >= 0))) {
+						if (wordStart < 0) {
+							if (glued)
+								continue;
+							wordStart = position;
+						}
+						continue;
+					}
+					if (wordStart >= 0) {
+						if (!Character.isLetterOrDigit(c))
+							checkedTo = checkWord(text, wordStart, position, checkedTo, out);
+						wordStart = -1;
+					}
+					glued = Character.isLetterOrDigit(c) || c == '@';
+				}
+			}
+			if (wordStart >= 0)
+				checkedTo = checkWord(text, wordStart, position, checkedTo, out);
+			if (out.getCount() > 0)
+				out.add(end - checkedTo, STYLE_CORRECT);
+		}
+
+		/**
+		 * Look up the word text[start, end), appending runs up to its end to out if it is misspelled
+		 *
+		 * @return the end of the text covered by out
+		 */
+		private int checkWord(CharSequence text, int start, int end, int checkedTo, StyleRunBuffer out) {
+			while (end > start && text.charAt(end - 1) == '\'')
+				end--;
+			if (end - start < 2 || isMixedCase(text, start, end) || contains(text, start, end))
+				return checkedTo;
+			out.add(start - checkedTo, STYLE_CORRECT);
+			out.add(end - start, STYLE_MISSPELLED);
+			return end;
+		}
+
+	}
+
+	// Runs of a checked paragraph without misspelled word
+	private static final int[] CLEAN = new int[0];
+
+	/**
+	 * Delay in milliseconds between an edit and the check of the edited paragraphs
+	 */
+	private static final int EDIT_DELAY = 400;
+
+	/**
+	 * Commands whose argument is not prose
+	 */
+	private static final String[] NON_PROSE_COMMANDS = { "begin", "end", "label", "ref", "eqref", "pageref", "autoref",
+			"cref", "Cref", "cite", "citep", "citet", "nocite", "usepackage", "documentclass", "input", "include",
+			"includegraphics", "bibliography", "bibliographystyle", "url", "href", "newcommand", "renewcommand",
+			"newenvironment", "setlength", "hspace", "vspace", "pagestyle", "thispagestyle" };
+
+	public static final int STYLE_CORRECT = 0;
+
+	public static final int STYLE_MISSPELLED = 1;
+
+	/**
+	 * Maximal number of characters handed to the worker in one job
+	 */
+	private static final int WINDOW_CHARS = 16 * 1024;
+
+	/**
+	 * Whether the word is an acronym or has capitals past its first letter, such words are not checked
+	 */
+	private static boolean isMixedCase(CharSequence text, int start, int end) {
+		for (int i = start + 1; i < end; i++) {
+			if (Character.isUpperCase(text.charAt(i)))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean isNonProse(CharSequence text, int start, int end) {
+		for (int i = 0; i < NON_PROSE_COMMANDS.length; i++) {
+			final String command = NON_PROSE_COMMANDS[i];
+			if (command.length() != end - start)
+				continue;
+			int k = 0;
+			while (k < command.length() && text.charAt(start + k) == command.charAt(k))
+				k++;
+			if (k == command.length())
+				return true;
+		}
+		return false;
+	}
+
+	private Callback mCallback;
+
+	private final Runnable mDelayedCheck = new Runnable() {
+		public void run() {
+			mDelayed = false;
+			schedule();
+		}
+	};
+
+	// Whether mDelayedCheck is posted
+	private boolean mDelayed;
+
+	private volatile SpellDictionary mDictionary;
+
+	// Edited paragraphs to be checked again, -1 if there is none
+	private int mDirtyFirst = -1, mDirtyLast = -1;
+
+	private volatile int mGeneration;
+
+	private IncrementalHighlighter mHighlighter;
+
+	private LineIndex mLineIndex;
+
+	private boolean mPending;
+
+	// Guarded by itself as it is modified on the UI thread while the worker reads it
+	private final SpellDictionary mPersonal = new SpellDictionary();
+
+	private final StyleRunStore mRuns = new StyleRunStore();
+
+	private CharSequence mText;
+
+	// Paragraphs being displayed, -1 if none
+	private int mVisibleFirst = -1, mVisibleLast = -1;
+
+	public SpellChecker(LineIndex lineIndex) {
+		mLineIndex = lineIndex;
+	}
+
+	/**
+	 * Add a word to the personal dictionary and check the visible paragraphs again
+	 *
+	 * @return false if the word was already there
+	 */
+	public boolean addToPersonalDictionary(String word) {
+		synchronized (mPersonal) {
+			if (!mPersonal.add(word, 0, word.length()))
+				return false;
+		}
+		recheck();
+		return true;
+	}
+
+	/**
+	 * Start checking a new text, the line index must already be up-to-date
+	 */
+	public void attach(CharSequence text) {
+		mText = text;
+		mGeneration++;
+		// Align the store with the line index, all paragraphs unchecked
+		final int lineCount = mLineIndex.getLineCount();
+		mRuns.clear();
+		mRuns.onTextChanged(0, lineCount - 1, lineCount - 1, 0, 0, 0);
+		mDirtyFirst = mDirtyLast = -1;
+		TextWorker.getMainHandler().removeCallbacks(mDelayedCheck);
+		mDelayed = false;
+		schedule();
+	}
+
+	/**
+	 * Reset the checker to that of an empty text
+	 */
+	public void clear() {
+		mGeneration++;
+		mRuns.clear();
+		mDirtyFirst = mDirtyLast = -1;
+	}
+
+	private boolean contains(CharSequence text, int start, int end) {
+		final SpellDictionary dictionary = mDictionary;
+		if (dictionary != null && dictionary.contains(text, start, end))
+			return true;
+		synchronized (mPersonal) {
+			return mPersonal.contains(text, start, end);
+		}
+	}
+
+	public SpellDictionary getDictionary() {
+		return mDictionary;
+	}
+
+	/**
+	 * @return the estimated number of bytes held by the results, the dictionaries are not counted
+	 */
+	public long getMemoryUsage() {
+		return mRuns.getMemoryUsage();
+	}
+
+	/**
+	 * @return the runs of the paragraph as consecutive (length, style) pairs, where the text past the last run is
+	 *         correct, or null if it was not checked
+	 */
+	public int[] getRuns(int paragraph) {
+		return mRuns.getRuns(paragraph);
+	}
+
+	/**
+	 * Update the results after the characters in [start, start + before) were replaced by after characters, the line
+	 * index must already be up-to-date; the edited paragraphs are checked again once typing pauses
+	 *
+	 * @param firstLine
+	 *            First paragraph whose content changed
+	 * @param lastLine
+	 *            Last paragraph (in the new text) whose content changed
+	 * @param lineDelta
+	 *            Change in the number of paragraphs
+	 * @param offset
+	 *            Offset of the edit relative to the start of firstLine
+	 */
+	public void onTextChanged(int firstLine, int lastLine, int lineDelta, int offset, int before, int after) {
+		mGeneration++;
+		mRuns.onTextChanged(firstLine, lastLine, lineDelta, offset, before, after);
+		if (mDirtyFirst < 0) {
+			mDirtyFirst = firstLine;
+		} else {
+			mDirtyFirst = Math.min(mDirtyFirst, firstLine);
+			if (mDirtyLast > firstLine)
+				mDirtyLast += lineDelta;
+		}
+		mDirtyLast = Math.max(mDirtyLast, lastLine);
+		if (mVisibleFirst > firstLine)
+			mVisibleFirst = Math.max(firstLine, mVisibleFirst + lineDelta);
+		if (mVisibleLast > firstLine)
+			mVisibleLast = Math.max(firstLine, mVisibleLast + lineDelta);
+		if (mText != null && mDictionary != null) {
+			TextWorker.getMainHandler().removeCallbacks(mDelayedCheck);
+			TextWorker.getMainHandler().postDelayed(mDelayedCheck, EDIT_DELAY);
+			mDelayed = true;
+		}
+	}
+
+	/**
+	 * Forget the results outside of the visible paragraphs and check these again, e.g. when a dictionary changed
+	 */
+	private void recheck() {
+		mGeneration++;
+		if (mVisibleFirst < 0) {
+			mRuns.clearRuns();
+		} else {
+			mRuns.clearRuns(0, mVisibleFirst - 1);
+			mRuns.clearRuns(mVisibleLast + 1, Integer.MAX_VALUE);
+		}
+		mDirtyFirst = mVisibleFirst;
+		mDirtyLast = mVisibleLast;
+		schedule();
+	}
+
+	/**
+	 * Write the personal dictionary, e.g. to restore it with {@link #setPersonalDictionary(SpellDictionary)}
+	 */
+	public void savePersonalDictionary(OutputStream out) throws IOException {
+		synchronized (mPersonal) {
+			mPersonal.save(out);
+		}
+	}
+
+	/**
+	 * Check the edited and the unchecked paragraphs among the visible ones, one window at a time
+	 */
+	private void schedule() {
+		if (mPending || mDelayed || mText == null || mDictionary == null || mVisibleFirst < 0)
+			return;
+		final int lineCount = mLineIndex.getLineCount();
+		final int visibleLast = Math.min(mVisibleLast, lineCount - 1);
+		// Edited paragraphs out of sight are simply checked when they are shown again
+		if (mDirtyFirst >= 0) {
+			mRuns.clearRuns(mDirtyFirst, Math.min(mDirtyLast, mVisibleFirst - 1));
+			mRuns.clearRuns(Math.max(mDirtyFirst, visibleLast + 1), mDirtyLast);
+			mDirtyFirst = Math.max(mDirtyFirst, mVisibleFirst);
+			mDirtyLast = Math.min(mDirtyLast, visibleLast);
+			if (mDirtyFirst > mDirtyLast)
+				mDirtyFirst = mDirtyLast = -1;
+		}
+		int first = mVisibleFirst;
+		while (first <= visibleLast && mRuns.getRuns(first) != null && (mDirtyFirst < 0 || first < mDirtyFirst))
+			first++;
+		int last = visibleLast;
+		while (last >= first && mRuns.getRuns(last) != null && last > mDirtyLast)
+			last--;
+		if (first > last)
+			return;
+		final int start = mLineIndex.getLineStart(first);
+		int end = mLineIndex.getLineEnd(last);
+		if (end - start > WINDOW_CHARS) {
+			final int endLine = mLineIndex.getLineForOffset(start + WINDOW_CHARS);
+			end = endLine == first ? mLineIndex.getLineEnd(first) : mLineIndex.getLineStart(endLine);
+		}
+		final int state = mHighlighter != null ? mHighlighter.getLineState(first) : TexLexer.STATE_NORMAL;
+		mPending = true;
+		TextWorker.getWorkerHandler().post(new CheckJob(TextSnapshot.obtain(mText, start, end, mGeneration), first,
+				state));
+	}
+
+	public void setCallback(Callback callback) {
+		mCallback = callback;
+	}
+
+	/**
+	 * Set the main dictionary, null to stop checking; it must not be modified afterwards as the worker reads it without
+	 * locking
+	 */
+	public void setDictionary(SpellDictionary dictionary) {
+		mDictionary = dictionary;
+		if (dictionary != null) {
+			recheck();
+		} else {
+			mGeneration++;
+			mRuns.clearRuns();
+		}
+	}
+
+	/**
+	 * Set the highlighter whose checkpoints give the lexer state at the start of the checked paragraphs, null to start
+	 * outside of math
+	 */
+	public void setHighlighter(IncrementalHighlighter highlighter) {
+		mHighlighter = highlighter;
+	}
+
+	/**
+	 * Follow another line index, e.g. that of a shared {@link TextDocument}; the content must then be reset with
+	 * {@link #clear()} or {@link #attach(CharSequence)}
+	 */
+	public void setLineIndex(LineIndex lineIndex) {
+		mLineIndex = lineIndex;
+	}
+
+	/**
+	 * Replace the words of the personal dictionary by those of the given one
+	 */
+	public void setPersonalDictionary(SpellDictionary dictionary) {
+		synchronized (mPersonal) {
+			mPersonal.clear();
+			mPersonal.addAll(dictionary);
+		}
+		recheck();
+	}
+
+	/**
+	 * Set the paragraphs being displayed, the unchecked ones among them are checked
+	 */
+	public void setVisibleParagraphs(int first, int last) {
+		if (first == mVisibleFirst && last == mVisibleLast)
+			return;
+		mVisibleFirst = first;
+		mVisibleLast = last;
+		schedule();
+	}
+
+	/**
+	 * Drop the results of the paragraphs which are not displayed, they are checked again once they are
+	 */
+	public void trimToVisible() {
+		mRuns.clearRuns(0, mVisibleFirst - 1);
+		mRuns.clearRuns(mVisibleLast + 1, Integer.MAX_VALUE);
+	}
+
+}
@@ -0,0 +1,209 @@
+package lah.widgets.text;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Memory-efficient, case-insensitive set of words: a Bloom filter in front of an open-addressing hash set
+ *
+ * The words are stored back to back in a single char pool, each preceded by its length, and the hash table only holds
+ * int offsets into the pool, so a dictionary costs about two chars per letter instead of a String per word. Most
+ * misspelled words are rejected by the Bloom filter without touching the table.
+ *
+ * The methods are not synchronized; a dictionary which is modified while being read must be guarded by the caller.
+ *
+ * @author L.A.H.
+ *
+ */
+public class SpellDictionary {
+
+	/**
+	 * Number of probes of the Bloom filter
+	 */
+	private static final int BLOOM_HASHES = 3;
+
+	private static int hash(CharSequence text, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++)
+			h = 31 * h + Character.toLowerCase(text.charAt(i));
+		return spread(h);
+	}
+
+	/**
+	 * Load a dictionary with one word per line
+	 */
+	public static SpellDictionary load(InputStream in) throws IOException {
+		final SpellDictionary dictionary = new SpellDictionary();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0 && line.charAt(0) != '#')
+					dictionary.add(line, 0, line.length());
+			}
+		} finally {
+			reader.close();
+		}
+		return dictionary;
+	}
+
+	/**
+	 * Spread the bits of a hash code as the table and the filter use the low bits
+	 */
+	private static int spread(int h) {
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+
+	private long[] mBloom = new long[64];
+
+	private int mCount;
+
+	private char[] mPool = new char[1024];
+
+	private int mPoolSize;
+
+	// Offsets in mPool of the words plus one, 0 for an empty slot
+	private int[] mTable = new int[256];
+
+	/**
+	 * Add the word text[start, end)
+	 *
+	 * @return false if the word was already there
+	 */
+	public boolean add(CharSequence text, int start, int end) {
+		final int length = end - start;
+		if (length <= 0 || length > Character.MAX_VALUE || contains(text, start, end))
+			return false;
+		if (2 * (mCount + 1) > mTable.length)
+			rehash(2 * mTable.length);
+		if (mPoolSize + length + 1 > mPool.length) {
+			char[] pool = new char[Math.max(2 * mPool.length, mPoolSize + length + 1)];
+			System.arraycopy(mPool, 0, pool, 0, mPoolSize);
+			mPool = pool;
+		}
+		final int offset = mPoolSize;
+		mPool[mPoolSize++] = (char) length;
+		for (int i = start; i < end; i++)
+			mPool[mPoolSize++] = Character.toLowerCase(text.charAt(i));
+		final int h = hash(text, start, end);
+		insert(offset, h);
+		setBloom(h);
+		mCount++;
+		return true;
+	}
+
+	/**
+	 * Add the words of another dictionary
+	 */
+	public void addAll(SpellDictionary dictionary) {
+		final CharSequence pool = new String(dictionary.mPool, 0, dictionary.mPoolSize);
+		for (int offset = 0; offset < dictionary.mPoolSize; offset += dictionary.mPool[offset] + 1)
+			add(pool, offset + 1, offset + 1 + dictionary.mPool[offset]);
+	}
+
+	/**
+	 * Remove all the words
+	 */
+	public void clear() {
+		Arrays.fill(mTable, 0);
+		Arrays.fill(mBloom, 0);
+		mPoolSize = 0;
+		mCount = 0;
+	}
+
+	/**
+	 * Test whether the word text[start, end) is in the dictionary, ignoring case
+	 */
+	public boolean contains(CharSequence text, int start, int end) {
+		final int h = hash(text, start, end);
+		if (!testBloom(h))
+			return false;
+		final int mask = mTable.length - 1;
+		final int length = end - start;
+		for (int slot = h & mask;; slot = (slot + 1) & mask) {
+			final int entry = mTable[slot];
+			if (entry == 0)
+				return false;
+			final int offset = entry - 1;
+			if (mPool[offset] == length) {
+				int i = 0;
+				while (i < length && mPool[offset + 1 + i] == Character.toLowerCase(text.charAt(start + i)))
+					i++;
+				if (i == length)
+					return true;
+			}
+		}
+	}
+
+	public int getWordCount() {
+		return mCount;
+	}
+
+	private void insert(int offset, int h) {
+		final int mask = mTable.length - 1;
+		int slot = h & mask;
+		while (mTable[slot] != 0)
+			slot = (slot + 1) & mask;
+		mTable[slot] = offset + 1;
+	}
+
+	private void rehash(int capacity) {
+		final int[] old = mTable;
+		mTable = new int[capacity];
+		// About 8 bits of filter per word at the maximal load factor of 1/2
+		mBloom = new long[Math.max(64, capacity / 16)];
+		for (int i = 0; i < old.length; i++) {
+			if (old[i] == 0)
+				continue;
+			final int offset = old[i] - 1;
+			// The pooled words are already lower case
+			int h = 0;
+			for (int k = offset + 1; k <= offset + mPool[offset]; k++)
+				h = 31 * h + mPool[k];
+			h = spread(h);
+			insert(offset, h);
+			setBloom(h);
+		}
+	}
+
+	/**
+	 * Write the words, in lower case, one per line in the format read by {@link #load(InputStream)}
+	 */
+	public void save(OutputStream out) throws IOException {
+		final Writer writer = new OutputStreamWriter(out, "UTF-8");
+		for (int offset = 0; offset < mPoolSize; offset += mPool[offset] + 1) {
+			writer.write(mPool, offset + 1, mPool[offset]);
+			writer.write('\n');
+		}
+		writer.flush();
+	}
+
+	private void setBloom(int h) {
+		final int bits = mBloom.length << 6;
+		final int step = (h >>> 16) | 1;
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			final int bit = ((h + i * step) & Integer.MAX_VALUE) % bits;
+			mBloom[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	private boolean testBloom(int h) {
+		final int bits = mBloom.length << 6;
+		final int step = (h >>> 16) | 1;
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			final int bit = ((h + i * step) & Integer.MAX_VALUE) % bits;
+			if ((mBloom[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,53 @@
+package lah.widgets.text;
+
+/**
+ * Reusable buffer of style runs, stored as consecutive (length, style) pairs in a primitive array
+ *
+ * Adjacent runs of the same style are merged on insertion so that a buffer never holds more runs than necessary.
+ *
+ * @author L.A.H.
+ *
+ */
+public class StyleRunBuffer {
+
+	private int mCount;
+
+	private int[] mRuns = new int[32];
+
+	public void add(int length, int style) {
+		if (length <= 0)
+			return;
+		if (mCount > 0 && mRuns[2 * mCount - 1] == style) {
+			mRuns[2 * mCount - 2] += length;
+			return;
+		}
+		if (2 * mCount + 2 > mRuns.length) {
+			int[] runs = new int[mRuns.length * 2];
+			System.arraycopy(mRuns, 0, runs, 0, 2 * mCount);
+			mRuns = runs;
+		}
+		mRuns[2 * mCount] = length;
+		mRuns[2 * mCount + 1] = style;
+		mCount++;
+	}
+
+	public void clear() {
+		mCount = 0;
+	}
+
+	/**
+	 * @return the number of runs in this buffer
+	 */
+	public int getCount() {
+		return mCount;
+	}
+
+	public int getLength(int run) {
+		return mRuns[2 * run];
+	}
+
+	public int getStyle(int run) {
+		return mRuns[2 * run + 1];
+	}
+
+}
@@ -0,0 +1,139 @@
+package lah.widgets.text;
+
+/**
+ * Style runs of the paragraphs of a text, kept outside of the text so that styling costs neither span objects nor span
+ * callbacks
+ *
+ * Each paragraph owns a compact int array of (length, styleId) pairs or null if it is not styled. The paragraphs are
+ * aligned with a {@link LineIndex} and are shifted on edits by {@link #onTextChanged(int, int, int, int, int, int)}.
+ *
+ * @author L.A.H.
+ *
+ */
+public class StyleRunStore {
+
+	private int mCount = 1;
+
+	private int[][] mRuns = new int[64][];
+
+	/**
+	 * Reset the store to that of an empty text
+	 */
+	public void clear() {
+		clearRuns();
+		mCount = 1;
+	}
+
+	/**
+	 * Remove the runs of all paragraphs
+	 */
+	public void clearRuns() {
+		for (int i = 0; i < mCount; i++)
+			mRuns[i] = null;
+	}
+
+	/**
+	 * Remove the runs of the paragraphs [first, last]
+	 */
+	public void clearRuns(int first, int last) {
+		for (int i = Math.max(0, first); i <= last && i < mCount; i++)
+			mRuns[i] = null;
+	}
+
+	/**
+	 * @return the estimated number of bytes held by the runs
+	 */
+	public long getMemoryUsage() {
+		return MemoryUsage.sizeOf(mRuns);
+	}
+
+	/**
+	 * @return the runs of the paragraph as consecutive (length, styleId) pairs, or null if it is not styled
+	 */
+	public int[] getRuns(int paragraph) {
+		return paragraph < mCount ? mRuns[paragraph] : null;
+	}
+
+	/**
+	 * Update the store after the characters in [start, start + before) were replaced by after characters
+	 *
+	 * @param firstLine
+	 *            First paragraph whose content changed
+	 * @param lastLine
+	 *            Last paragraph (in the new text) whose content changed
+	 * @param lineDelta
+	 *            Change in the number of paragraphs
+	 * @param offset
+	 *            Offset of the edit relative to the start of firstLine
+	 */
+	public void onTextChanged(int firstLine, int lastLine, int lineDelta, int offset, int before, int after) {
+		final int count = mCount + lineDelta;
+		if (count > mRuns.length) {
+			int[][] runs = new int[Math.max(count, mRuns.length * 2)][];
+			System.arraycopy(mRuns, 0, runs, 0, mCount);
+			mRuns = runs;
+		}
+		if (lineDelta > 0) {
+			System.arraycopy(mRuns, firstLine + 1, mRuns, firstLine + 1 + lineDelta, mCount - firstLine - 1);
+		} else if (lineDelta < 0) {
+			System.arraycopy(mRuns, firstLine + 1 - lineDelta, mRuns, firstLine + 1, count - firstLine - 1);
+			for (int i = count; i < mCount; i++)
+				mRuns[i] = null;
+		}
+		mCount = count;
+
+		if (lineDelta == 0 && firstLine == lastLine && mRuns[firstLine] != null) {
+			// Edit inside a single paragraph: stretch the run under the edit to keep colors until restyled
+			final int[] runs = mRuns[firstLine];
+			int acc = 0;
+			for (int i = 0; i < runs.length; i += 2) {
+				if (offset < acc + runs[i] || i + 2 == runs.length) {
+					if (offset + before <= acc + runs[i]) {
+						runs[i] += after - before;
+						return;
+					}
+					break;
+				}
+				acc += runs[i];
+			}
+		}
+		for (int i = firstLine; i <= lastLine && i < mCount; i++)
+			mRuns[i] = null;
+	}
+
+	/**
+	 * Replace the runs of a paragraph by an array owned by the store from now on, null to unstyle the paragraph
+	 */
+	void setRuns(int paragraph, int[] runs) {
+		if (paragraph < mCount)
+			mRuns[paragraph] = runs;
+	}
+
+	/**
+	 * Replace the runs of a paragraph
+	 *
+	 * @return whether the runs actually changed
+	 */
+	public boolean setRuns(int paragraph, StyleRunBuffer buffer) {
+		if (paragraph >= mCount)
+			return false;
+		final int n = buffer.getCount();
+		int[] runs = mRuns[paragraph];
+		if (runs != null && runs.length == 2 * n) {
+			boolean same = true;
+			for (int i = 0; i < n && same; i++)
+				same = runs[2 * i] == buffer.getLength(i) && runs[2 * i + 1] == buffer.getStyle(i);
+			if (same)
+				return false;
+		} else {
+			runs = new int[2 * n];
+			mRuns[paragraph] = runs;
+		}
+		for (int i = 0; i < n; i++) {
+			runs[2 * i] = buffer.getLength(i);
+			runs[2 * i + 1] = buffer.getStyle(i);
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,177 @@
+package lah.widgets.text;
+
+/**
+ * Line-oriented lexer for TeX sources
+ *
+ * The lexer is resumable: everything it needs to know about the text preceding a line is encoded in a single int state
+ * so that the state at every line start can be checkpointed in a primitive array, see {@link IncrementalHighlighter}.
+ *
+ * @author L.A.H.
+ *
+ */
+public final class TexLexer {
+
+	public static final int STATE_DISPLAY_MATH = 2;
+
+	public static final int STATE_MATH = 1;
+
+	public static final int STATE_NORMAL = 0;
+
+	public static final int STATE_VERBATIM = 3;
+
+	public static final int STYLE_BRACKET = 4;
+
+	public static final int STYLE_COMMAND = 1;
+
+	public static final int STYLE_COMMENT = 2;
+
+	public static final int STYLE_DEFAULT = 0;
+
+	public static final int STYLE_MATH = 3;
+
+	public static final int STYLE_SPECIAL = 5;
+
+	public static final int STYLE_VERBATIM = 6;
+
+	/**
+	 * Number of styles produced by this lexer
+	 */
+	public static final int STYLE_COUNT = 7;
+
+	private static final String BEGIN_VERBATIM = "{verbatim}";
+
+	private static final String END_VERBATIM = "\\end{verbatim}";
+
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '@';
+	}
+
+	/**
+	 * Lex the line text[start, end) starting in the given state
+	 *
+	 * @param out
+	 *            Buffer to receive the style runs of the line, can be null when only the resulting state is wanted
+	 * @return the state at the end of the line
+	 */
+	public static int lexLine(CharSequence text, int start, int end, int state, StyleRunBuffer out) {
+		int i = start;
+		while (i < end) {
+			final char c = text.charAt(i);
+			if (state == STATE_VERBATIM) {
+				int close = indexOf(text, END_VERBATIM, i, end);
+				if (close < 0) {
+					emit(out, end - i, STYLE_VERBATIM);
+					return state;
+				}
+				emit(out, close - i, STYLE_VERBATIM);
+				emit(out, END_VERBATIM.length(), STYLE_COMMAND);
+				i = close + END_VERBATIM.length();
+				state = STATE_NORMAL;
+				continue;
+			}
+			switch (c) {
+			case '%': {
+				int stop = end;
+				if (stop > i && text.charAt(stop - 1) == '\n')
+					stop--;
+				emit(out, stop - i, STYLE_COMMENT);
+				emit(out, end - stop, STYLE_DEFAULT);
+				return state;
+			}
+			case '\\': {
+				int j = i + 1;
+				if (j < end && isLetter(text.charAt(j))) {
+					while (j < end && isLetter(text.charAt(j)))
+						j++;
+					emit(out, j - i, STYLE_COMMAND);
+					if (state == STATE_NORMAL && j - i == 6 && startsWith(text, "\\begin", i)
+							&& startsWith(text, BEGIN_VERBATIM, j) && j + BEGIN_VERBATIM.length() <= end) {
+						emit(out, BEGIN_VERBATIM.length(), STYLE_BRACKET);
+						j += BEGIN_VERBATIM.length();
+						state = STATE_VERBATIM;
+					}
+				} else if (j < end && text.charAt(j) != '\n') {
+					final char d = text.charAt(j++);
+					if (d == '(' && state == STATE_NORMAL) {
+						state = STATE_MATH;
+						emit(out, 2, STYLE_MATH);
+					} else if (d == '[' && state == STATE_NORMAL) {
+						state = STATE_DISPLAY_MATH;
+						emit(out, 2, STYLE_MATH);
+					} else if ((d == ')' && state == STATE_MATH) || (d == ']' && state == STATE_DISPLAY_MATH)) {
+						state = STATE_NORMAL;
+						emit(out, 2, STYLE_MATH);
+					} else {
+						emit(out, 2, STYLE_COMMAND);
+					}
+				} else {
+					emit(out, j - i, STYLE_COMMAND);
+				}
+				i = j;
+				continue;
+			}
+			case '$':
+				if (i + 1 < end && text.charAt(i + 1) == '$' && state != STATE_MATH) {
+					state = state == STATE_DISPLAY_MATH ? STATE_NORMAL : STATE_DISPLAY_MATH;
+					emit(out, 2, STYLE_MATH);
+					i += 2;
+					continue;
+				}
+				if (state != STATE_DISPLAY_MATH)
+					state = state == STATE_MATH ? STATE_NORMAL : STATE_MATH;
+				emit(out, 1, STYLE_MATH);
+				break;
+			case '{':
+			case '}':
+			case '[':
+			case ']':
+				emit(out, 1, STYLE_BRACKET);
+				break;
+			case '&':
+			case '~':
+			case '#':
+			case '^':
+			case '_':
+				emit(out, 1, STYLE_SPECIAL);
+				break;
+			case '\n':
+				emit(out, 1, STYLE_DEFAULT);
+				break;
+			default:
+				emit(out, 1, state == STATE_NORMAL ? STYLE_DEFAULT : STYLE_MATH);
+				break;
+			}
+			i++;
+		}
+		return state;
+	}
+
+	private static void emit(StyleRunBuffer out, int length, int style) {
+		if (out != null)
+			out.add(length, style);
+	}
+
+	private static int indexOf(CharSequence text, String pattern, int from, int end) {
+		final int last = end - pattern.length();
+		for (int i = from; i <= last; i++) {
+			if (startsWith(text, pattern, i))
+				return i;
+		}
+		return -1;
+	}
+
+	private static boolean startsWith(CharSequence text, String pattern, int at) {
+		final int n = pattern.length();
+		if (at + n > text.length())
+			return false;
+		for (int k = 0; k < n; k++) {
+			if (text.charAt(at + k) != pattern.charAt(k))
+				return false;
+		}
+		return true;
+	}
+
+	private TexLexer() { /* cannot be instantiated */
+	}
+
+}
@@ -0,0 +1,236 @@
+package lah.widgets.text;
+
+import android.text.DynamicLayout;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextPaint;
+import android.text.TextWatcher;
+import java.util.ArrayList;
+
+/**
+ * Text shared by several views, e.g. two panes showing the same source, with its line index and its layouts
+ *
+ * The document is the only watcher the views attach to the text: it updates the {@link LineIndex} once per change and
+ * then delivers the change, with the affected paragraphs, to every view. Views laying out the text with the same
+ * {@link FontCache.Font}, width and padding share one {@link DynamicLayout}, so that a change is also reflowed once.
+ * The viewports, cursors and caches of the views remain their own.
+ *
+ * A text has at most one document, found with {@link #of(Editable)}. The document keeps watching the text after its
+ * last listener is removed, so that a view detached for a while, e.g. by a view pager, finds the line index up-to-date
+ * and tells from {@link #getGeneration()} whether the text changed meanwhile.
+ *
+ * @author L.A.H.
+ *
+ */
+public class TextDocument implements TextWatcher, SpanWatcher {
+
+	/**
+	 * View of the document, notified on the UI thread; the span changes of the text are forwarded as they are
+	 */
+	public interface Listener extends SpanWatcher {
+
+		/**
+		 * Called after the change was applied to the text and to the layouts
+		 */
+		void afterDocumentChanged(TextDocument document);
+
+		/**
+		 * Called before the characters in [start, start + before) are replaced by after characters, the line index
+		 * still is that of the old text
+		 */
+		void beforeDocumentChanged(TextDocument document, int start, int before, int after);
+
+		/**
+		 * Called after the characters in [start, start + before) were replaced by after characters, the line index is
+		 * already up-to-date
+		 *
+		 * @param firstLine
+		 *            First paragraph whose content changed
+		 * @param lastLine
+		 *            Last paragraph (in the new text) whose content changed
+		 * @param lineDelta
+		 *            Change in the number of paragraphs
+		 */
+		void onDocumentChanged(TextDocument document, int start, int before, int after, int firstLine, int lastLine,
+				int lineDelta);
+
+	}
+
+	private static class SharedLayout {
+
+		final FontCache.Font mFont;
+
+		final boolean mIncludePad;
+
+		final DynamicLayout mLayout;
+
+		int mRefCount;
+
+		final int mWidth;
+
+		SharedLayout(FontCache.Font font, int width, boolean includePad, DynamicLayout layout) {
+			mFont = font;
+			mWidth = width;
+			mIncludePad = includePad;
+			mLayout = layout;
+		}
+
+	}
+
+	/**
+	 * @return the document of the text, a new one if no view watches the text yet
+	 */
+	public static TextDocument of(Editable text) {
+		final TextDocument[] documents = text.getSpans(0, text.length(), TextDocument.class);
+		return documents.length > 0 ? documents[0] : new TextDocument(text);
+	}
+
+	// Number of changes of the text since it is watched
+	private int mGeneration;
+
+	private final ArrayList<SharedLayout> mLayouts = new ArrayList<SharedLayout>(2);
+
+	private final LineIndex mLineIndex = new LineIndex();
+
+	private final ArrayList<Listener> mListeners = new ArrayList<Listener>(2);
+
+	private final Editable mText;
+
+	private boolean mWatching;
+
+	private TextDocument(Editable text) {
+		mText = text;
+	}
+
+	/**
+	 * Start delivering the changes of the text to the listener; the first listener ever starts the watching of the
+	 * text
+	 */
+	public void addListener(Listener listener) {
+		if (mListeners.contains(listener))
+			return;
+		mListeners.add(listener);
+		if (!mWatching) {
+			mLineIndex.clear();
+			mLineIndex.onTextChanged(mText, 0, 0, mText.length());
+			mText.setSpan(this, 0, mText.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+			mWatching = true;
+		}
+	}
+
+	@Override
+	public void afterTextChanged(Editable s) {
+		for (int i = 0; i < mListeners.size(); i++)
+			mListeners.get(i).afterDocumentChanged(this);
+	}
+
+	@Override
+	public void beforeTextChanged(CharSequence s, int start, int before, int after) {
+		for (int i = 0; i < mListeners.size(); i++)
+			mListeners.get(i).beforeDocumentChanged(this, start, before, after);
+	}
+
+	/**
+	 * @return the number of changes of the text, which a listener leaving the document may keep to know on its return
+	 *         whether its caches are still valid
+	 */
+	public int getGeneration() {
+		return mGeneration;
+	}
+
+	/**
+	 * @return the index of the paragraphs of the text, which must not be modified by the listeners
+	 */
+	public LineIndex getLineIndex() {
+		return mLineIndex;
+	}
+
+	public Listener getListener(int index) {
+		return mListeners.get(index);
+	}
+
+	public int getListenerCount() {
+		return mListeners.size();
+	}
+
+	public Editable getText() {
+		return mText;
+	}
+
+	/**
+	 * Get a layout of the text, shared with the other views using the same font, width and padding; it must be given
+	 * back with {@link #releaseLayout(Layout)}. The layout draws with a paint of its own, which a view should
+	 * {@link TextPaint#set(TextPaint)} from its paint before drawing to apply its colors.
+	 */
+	public DynamicLayout obtainLayout(FontCache.Font font, int width, boolean includePad) {
+		for (int i = 0; i < mLayouts.size(); i++) {
+			final SharedLayout shared = mLayouts.get(i);
+			if (shared.mFont == font && shared.mWidth == width && shared.mIncludePad == includePad) {
+				shared.mRefCount++;
+				return shared.mLayout;
+			}
+		}
+		final TextPaint paint = new TextPaint();
+		font.applyTo(paint);
+		final SharedLayout shared = new SharedLayout(font, width, includePad, new DynamicLayout(mText, paint, width,
+				Layout.Alignment.ALIGN_NORMAL, 1.0f, 0.0f, includePad));
+		shared.mRefCount = 1;
+		mLayouts.add(shared);
+		return shared.mLayout;
+	}
+
+	@Override
+	public void onSpanAdded(Spannable text, Object what, int start, int end) {
+		for (int i = 0; i < mListeners.size(); i++)
+			mListeners.get(i).onSpanAdded(text, what, start, end);
+	}
+
+	@Override
+	public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+		for (int i = 0; i < mListeners.size(); i++)
+			mListeners.get(i).onSpanChanged(text, what, ostart, oend, nstart, nend);
+	}
+
+	@Override
+	public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+		for (int i = 0; i < mListeners.size(); i++)
+			mListeners.get(i).onSpanRemoved(text, what, start, end);
+	}
+
+	@Override
+	public void onTextChanged(CharSequence s, int start, int before, int after) {
+		final int lineCount = mLineIndex.getLineCount();
+		final int firstLine = mLineIndex.onTextChanged(s, start, before, after);
+		final int lastLine = mLineIndex.getLineForOffset(start + after);
+		final int lineDelta = mLineIndex.getLineCount() - lineCount;
+		mGeneration++;
+		for (int i = 0; i < mListeners.size(); i++)
+			mListeners.get(i).onDocumentChanged(this, start, before, after, firstLine, lastLine, lineDelta);
+	}
+
+	/**
+	 * Give back a layout obtained from {@link #obtainLayout(FontCache.Font, int, boolean)}, it is dropped once no view
+	 * uses it; layouts of other documents are ignored
+	 */
+	public void releaseLayout(Layout layout) {
+		for (int i = 0; i < mLayouts.size(); i++) {
+			final SharedLayout shared = mLayouts.get(i);
+			if (shared.mLayout == layout) {
+				if (--shared.mRefCount == 0)
+					mLayouts.remove(i);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stop delivering the changes of the text to the listener
+	 */
+	public void removeListener(Listener listener) {
+		mListeners.remove(listener);
+	}
+
+}
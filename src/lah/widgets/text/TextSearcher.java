@@ -0,0 +1,465 @@
+package lah.widgets.text;
+
+import java.util.concurrent.CancellationException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Background search of a text for a literal (Boyer-Moore-Horspool) or regular expression query
+ *
+ * The search runs on the {@link TextWorker} thread over a {@link TextSnapshot} and streams the matches back to the UI
+ * thread in chunks, which are appended to a {@link MatchList}. Edits made while a search is running are logged so that
+ * the offsets of the late chunks can be mapped to the current text. Starting a new search cancels the previous one.
+ *
+ * @author L.A.H.
+ *
+ */
+public class TextSearcher {
+
+	/**
+	 * Callback to notify the view of the progress of a search
+	 */
+	public interface Listener {
+
+		/**
+		 * Called when the matches [firstIndex, firstIndex + count) were added to the match list
+		 */
+		void onMatchesFound(int firstIndex, int count);
+
+		void onSearchFinished(int matchCount);
+
+	}
+
+	/**
+	 * Text read by a regular expression search, which checks regularly whether the search was cancelled and then
+	 * throws a {@link CancellationException}, so that a long scan or backtracking without any match can be stopped
+	 */
+	private static final class CancellableText implements CharSequence {
+
+		private int mCountdown = CANCEL_CHECK_INTERVAL;
+
+		private final MatchSink mSink;
+
+		private final CharSequence mText;
+
+		CancellableText(CharSequence text, MatchSink sink) {
+			mText = text;
+			mSink = sink;
+		}
+
+		public char charAt(int index) {
+			if (--mCountdown == 0) {
+				mCountdown = CANCEL_CHECK_INTERVAL;
+				if (mSink.isCancelled())
+					throw new CancellationException();
+			}
+			return mText.charAt(index);
+		}
+
+		public int length() {
+			return mText.length();
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			return mText.subSequence(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return mText.toString();
+		}
+
+	}
+
+	/**
+	 * Receiver of the matches found by {@link TextSearcher#find(CharSequence, String, int, MatchSink)}
+	 */
+	public interface MatchSink {
+
+		/**
+		 * Polled regularly during long scans
+		 */
+		boolean isCancelled();
+
+		/**
+		 * @return false to stop the search
+		 */
+		boolean onMatch(int start, int end);
+
+	}
+
+	/**
+	 * Result of {@link TextSearcher#replaceAll(CharSequence, String, String, int)}: each match is to be replaced by
+	 * the range [getContentStart(i), getContentEnd(i)) of the contents, the replacement strings being stored one after
+	 * the other
+	 */
+	public static final class Replacement {
+
+		// Ends of the replacement strings of a regular expression query in mContents, null if all the matches are
+		// replaced by the whole of mContents
+		private int[] mContentEnds;
+
+		private CharSequence mContents;
+
+		private final MatchList mMatches = new MatchList();
+
+		public int getContentEnd(int index) {
+			return mContentEnds == null ? mContents.length() : mContentEnds[index];
+		}
+
+		public CharSequence getContents() {
+			return mContents;
+		}
+
+		public int getContentStart(int index) {
+			return mContentEnds == null || index == 0 ? 0 : mContentEnds[index - 1];
+		}
+
+		public int getCount() {
+			return mMatches.getCount();
+		}
+
+		/**
+		 * @return the matches to replace, in increasing order of offsets
+		 */
+		public MatchList getMatches() {
+			return mMatches;
+		}
+
+	}
+
+	private class SearchJob implements Runnable, MatchSink {
+
+		private int[] mChunk = new int[2 * CHUNK_SIZE];
+
+		private int mChunkCount;
+
+		private final int mFlags;
+
+		private final int mId;
+
+		private final String mQuery;
+
+		private final TextSnapshot mSnapshot;
+
+		SearchJob(TextSnapshot snapshot, String query, int flags, int id) {
+			mSnapshot = snapshot;
+			mQuery = query;
+			mFlags = flags;
+			mId = id;
+		}
+
+		private void flush(final boolean finished) {
+			final int[] chunk = mChunk;
+			final int count = mChunkCount;
+			mChunk = new int[2 * CHUNK_SIZE];
+			mChunkCount = 0;
+			TextWorker.getMainHandler().post(new Runnable() {
+				public void run() {
+					deliver(mId, chunk, count, finished);
+				}
+			});
+		}
+
+		public boolean isCancelled() {
+			return mId != mSearchId;
+		}
+
+		public boolean onMatch(int start, int end) {
+			mChunk[2 * mChunkCount] = start;
+			mChunk[2 * mChunkCount + 1] = end;
+			if (++mChunkCount == CHUNK_SIZE)
+				flush(false);
+			return mId == mSearchId;
+		}
+
+		@Override
+		public void run() {
+			if (mId != mSearchId)
+				return;
+			find(mSnapshot, mQuery, mFlags, this);
+			if (mId == mSearchId)
+				flush(true);
+		}
+	}
+
+	/**
+	 * Number of loop iterations of the literal search, or of characters read by a regular expression search, between
+	 * two checks for cancellation
+	 */
+	private static final int CANCEL_CHECK_INTERVAL = 4096;
+
+	/**
+	 * Number of matches delivered to the UI thread at once
+	 */
+	private static final int CHUNK_SIZE = 256;
+
+	public static final int FLAG_IGNORE_CASE = 2;
+
+	public static final int FLAG_REGEX = 1;
+
+	/**
+	 * Find the non-overlapping matches of the query in the text, in increasing order of offsets
+	 */
+	public static void find(CharSequence text, String query, int flags, MatchSink sink) {
+		if (query.length() == 0)
+			return;
+		if ((flags & FLAG_REGEX) != 0)
+			findRegex(text, query, (flags & FLAG_IGNORE_CASE) != 0, sink);
+		else
+			findLiteral(text, query, (flags & FLAG_IGNORE_CASE) != 0, sink);
+	}
+
+	/**
+	 * Collect all the matches of the query in the text
+	 */
+	public static void findAll(CharSequence text, String query, int flags, final MatchList out) {
+		find(text, query, flags, new MatchSink() {
+			public boolean isCancelled() {
+				return false;
+			}
+
+			public boolean onMatch(int start, int end) {
+				out.add(start, end);
+				return true;
+			}
+		});
+	}
+
+	private static void findLiteral(CharSequence text, String query, boolean ignoreCase, MatchSink sink) {
+		final int m = query.length();
+		final CharBufferPool pool = CharBufferPool.get();
+		final char[] pattern = pool.obtain(m);
+		try {
+			findLiteral(text, pattern, query, ignoreCase, sink);
+		} finally {
+			pool.recycle(pattern);
+		}
+	}
+
+	/**
+	 * @param pattern
+	 *            Buffer of at least query.length() chars for the query in the case it is searched in
+	 */
+	private static void findLiteral(CharSequence text, char[] pattern, String query, boolean ignoreCase,
+			MatchSink sink) {
+		final int m = query.length();
+		for (int i = 0; i < m; i++)
+			pattern[i] = ignoreCase ? Character.toLowerCase(query.charAt(i)) : query.charAt(i);
+
+		// Horspool shift table on the low byte of the chars: characters sharing a low byte take the smallest shift
+		final int[] shift = new int[256];
+		for (int i = 0; i < 256; i++)
+			shift[i] = m;
+		for (int i = 0; i < m - 1; i++)
+			shift[pattern[i] & 0xFF] = m - 1 - i;
+
+		final int last = text.length() - m;
+		int i = 0, checked = 0;
+		while (i <= last) {
+			if (++checked == CANCEL_CHECK_INTERVAL) {
+				checked = 0;
+				if (sink.isCancelled())
+					return;
+			}
+			int j = m - 1;
+			char c = text.charAt(i + j);
+			if (ignoreCase)
+				c = Character.toLowerCase(c);
+			final char tail = c;
+			while (c == pattern[j]) {
+				if (j == 0)
+					break;
+				j--;
+				c = text.charAt(i + j);
+				if (ignoreCase)
+					c = Character.toLowerCase(c);
+			}
+			if (j == 0 && c == pattern[0]) {
+				if (!sink.onMatch(i, i + m))
+					return;
+				i += m;
+			} else {
+				i += shift[tail & 0xFF];
+			}
+		}
+	}
+
+	private static void findRegex(CharSequence text, String query, boolean ignoreCase, MatchSink sink) {
+		final Matcher matcher;
+		try {
+			matcher = Pattern.compile(query, ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0).matcher(
+					new CancellableText(text, sink));
+		} catch (PatternSyntaxException e) {
+			return;
+		}
+		try {
+			while (matcher.find()) {
+				if (sink.isCancelled())
+					return;
+				if (matcher.end() == matcher.start())
+					continue;
+				if (!sink.onMatch(matcher.start(), matcher.end()))
+					return;
+			}
+		} catch (CancellationException e) {
+			// Cancelled while reading the text
+		}
+	}
+
+	/**
+	 * Edits made since the snapshot of the running search was taken, as (start, before, after) triples
+	 */
+	private int[] mEdits = new int[48];
+
+	private int mEditCount;
+
+	private Listener mListener;
+
+	private final MatchList mMatches;
+
+	private boolean mRunning;
+
+	private volatile int mSearchId;
+
+	public TextSearcher(MatchList matches) {
+		mMatches = matches;
+	}
+
+	/**
+	 * Cancel the running search, the matches found so far are kept
+	 */
+	public void cancel() {
+		mSearchId++;
+		mRunning = false;
+		mEditCount = 0;
+	}
+
+	private void deliver(int id, int[] chunk, int count, boolean finished) {
+		if (id != mSearchId)
+			return;
+		final int firstIndex = mMatches.getCount();
+		for (int i = 0; i < count; i++) {
+			int start = chunk[2 * i], end = chunk[2 * i + 1];
+			// Map the range through the edits made after the snapshot, dropping it if it was touched
+			for (int k = 0; k < mEditCount && start >= 0; k++) {
+				final int editStart = mEdits[3 * k], editEnd = editStart + mEdits[3 * k + 1];
+				final int delta = mEdits[3 * k + 2] - mEdits[3 * k + 1];
+				if (end <= editStart) {
+					continue;
+				} else if (start >= editEnd) {
+					start += delta;
+					end += delta;
+				} else {
+					start = -1;
+				}
+			}
+			if (start >= 0)
+				mMatches.add(start, end);
+		}
+		if (mListener != null && mMatches.getCount() > firstIndex)
+			mListener.onMatchesFound(firstIndex, mMatches.getCount() - firstIndex);
+		if (finished) {
+			mRunning = false;
+			mEditCount = 0;
+			if (mListener != null)
+				mListener.onSearchFinished(mMatches.getCount());
+		}
+	}
+
+	public MatchList getMatches() {
+		return mMatches;
+	}
+
+	public boolean isRunning() {
+		return mRunning;
+	}
+
+	/**
+	 * Update the matches after an edit of the text
+	 */
+	public void onTextChanged(int start, int before, int after) {
+		mMatches.onTextChanged(start, before, after);
+		if (mRunning) {
+			if (3 * mEditCount + 3 > mEdits.length) {
+				int[] edits = new int[mEdits.length * 2];
+				System.arraycopy(mEdits, 0, edits, 0, 3 * mEditCount);
+				mEdits = edits;
+			}
+			mEdits[3 * mEditCount] = start;
+			mEdits[3 * mEditCount + 1] = before;
+			mEdits[3 * mEditCount + 2] = after;
+			mEditCount++;
+		}
+	}
+
+	/**
+	 * Find all the matches of the query and their replacements in a single pass over the text, so that each match can
+	 * then be replaced on its own
+	 * 
+	 * @param replacement
+	 *            Replacement string, which can refer to the groups of a regular expression query as in
+	 *            {@link Matcher#appendReplacement(StringBuffer, String)}
+	 * @return the replacement or null if there is no match
+	 */
+	public static Replacement replaceAll(CharSequence text, String query, String replacement, int flags) {
+		if (query.length() == 0)
+			return null;
+		final Replacement result = new Replacement();
+		if ((flags & FLAG_REGEX) != 0) {
+			final Matcher matcher;
+			try {
+				matcher = Pattern.compile(query,
+						(flags & FLAG_IGNORE_CASE) != 0 ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0)
+						.matcher(text);
+			} catch (PatternSyntaxException e) {
+				return null;
+			}
+			// appendReplacement() also appends the text since the previous match, which is dropped from the scratch
+			final StringBuffer scratch = new StringBuffer();
+			final StringBuilder contents = new StringBuilder();
+			int[] ends = new int[16];
+			int appended = 0;
+			while (matcher.find()) {
+				if (matcher.end() == matcher.start())
+					continue;
+				scratch.setLength(0);
+				matcher.appendReplacement(scratch, replacement);
+				contents.append(scratch, matcher.start() - appended, scratch.length());
+				appended = matcher.end();
+				final int count = result.mMatches.getCount();
+				if (count == ends.length) {
+					final int[] grown = new int[2 * count];
+					System.arraycopy(ends, 0, grown, 0, count);
+					ends = grown;
+				}
+				ends[count] = contents.length();
+				result.mMatches.add(matcher.start(), matcher.end());
+			}
+			result.mContents = contents;
+			result.mContentEnds = ends;
+		} else {
+			findAll(text, query, flags, result.mMatches);
+			result.mContents = replacement;
+		}
+		return result.getCount() == 0 ? null : result;
+	}
+
+	/**
+	 * Start searching the snapshot for the query, cancelling the previous search and clearing its matches
+	 */
+	public void search(TextSnapshot snapshot, String query, int flags) {
+		cancel();
+		mMatches.clear();
+		if (query == null || query.length() == 0)
+			return;
+		mRunning = true;
+		TextWorker.getWorkerHandler().post(new SearchJob(snapshot, query, flags, mSearchId));
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+}
@@ -0,0 +1,91 @@
+package lah.widgets.text;
+
+import lah.widgets.TextArea.TextUtils;
+import android.text.GetChars;
+
+/**
+ * Immutable copy of a range of a text, safe to be read from a worker thread while the original text is being edited
+ *
+ * Offsets passed to {@link #charAt(int)} are relative to the start of the copied range; {@link #getStart()} gives the
+ * offset of that range in the original text. The generation records the edit count of the source text at the time of
+ * the copy so that results computed from a stale snapshot can be recognized and dropped.
+ *
+ * @author L.A.H.
+ *
+ */
+public final class TextSnapshot implements GetChars {
+
+	/**
+	 * Copy text[start, end)
+	 */
+	public static TextSnapshot obtain(CharSequence text, int start, int end, int generation) {
+		final char[] chars = new char[end - start];
+		TextUtils.getChars(text, start, end, chars, 0);
+		return new TextSnapshot(chars, 0, chars.length, start, generation);
+	}
+
+	/**
+	 * Wrap the first length characters of the array without copying, the array must not be modified afterwards
+	 */
+	public static TextSnapshot wrap(char[] chars, int length, int start, int generation) {
+		return new TextSnapshot(chars, 0, length, start, generation);
+	}
+
+	private final char[] mChars;
+
+	private final int mCharsOffset;
+
+	private final int mGeneration;
+
+	private final int mLength;
+
+	private final int mStart;
+
+	private TextSnapshot(char[] chars, int charsOffset, int length, int start, int generation) {
+		mChars = chars;
+		mCharsOffset = charsOffset;
+		mLength = length;
+		mStart = start;
+		mGeneration = generation;
+	}
+
+	@Override
+	public char charAt(int index) {
+		return mChars[mCharsOffset + index];
+	}
+
+	@Override
+	public void getChars(int start, int end, char[] dest, int destoff) {
+		System.arraycopy(mChars, mCharsOffset + start, dest, destoff, end - start);
+	}
+
+	/**
+	 * @return the edit count of the source text when this snapshot was taken
+	 */
+	public int getGeneration() {
+		return mGeneration;
+	}
+
+	/**
+	 * @return the offset in the source text of the first character of this snapshot
+	 */
+	public int getStart() {
+		return mStart;
+	}
+
+	@Override
+	public int length() {
+		return mLength;
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return new TextSnapshot(mChars, mCharsOffset + start, end - start, mStart + start, mGeneration);
+	}
+
+	@Override
+	public String toString() {
+		return new String(mChars, mCharsOffset, mLength);
+	}
+
+}
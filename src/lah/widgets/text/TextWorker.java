@@ -0,0 +1,45 @@
+package lah.widgets.text;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Background thread shared by all the text processing subsystems (highlighting, searching, ...) so that no work on
+ * the text content blocks the UI thread
+ *
+ * @author L.A.H.
+ *
+ */
+public final class TextWorker {
+
+	private static Handler sMainHandler;
+
+	private static Handler sWorkerHandler;
+
+	/**
+	 * @return handler to post results back to the UI thread
+	 */
+	public static synchronized Handler getMainHandler() {
+		if (sMainHandler == null)
+			sMainHandler = new Handler(Looper.getMainLooper());
+		return sMainHandler;
+	}
+
+	/**
+	 * @return handler to post work to the background thread, the thread is started on first use
+	 */
+	public static synchronized Handler getWorkerHandler() {
+		if (sWorkerHandler == null) {
+			HandlerThread thread = new HandlerThread("TextWorker", Process.THREAD_PRIORITY_BACKGROUND);
+			thread.start();
+			sWorkerHandler = new Handler(thread.getLooper());
+		}
+		return sWorkerHandler;
+	}
+
+	private TextWorker() { /* cannot be instantiated */
+	}
+
+}
@@ -0,0 +1,94 @@
+package lah.widgets.text;
+
+/**
+ * Finder of the word around an offset of a TeX source, for word selection by double-tap and long-press
+ *
+ * Instead of binding a {@link java.text.BreakIterator} to the text, the characters around the offset are classified
+ * directly, with a fast path for ASCII: a word is a maximal run of letters, digits and '@', together with its leading
+ * backslash when it is a command. The scan never goes further than {@link #MAX_WORD_LENGTH} characters from the
+ * offset, so that a lookup costs the same in huge files, and allocates nothing. The last word found is cached along
+ * with the edit count of the text so that repeated lookups inside it (e.g. a long-press following a double-tap) are
+ * free.
+ *
+ * @author L.A.H.
+ *
+ */
+public class WordBoundaryFinder {
+
+	/**
+	 * Maximal distance from the offset at which a word boundary is looked for
+	 */
+	public static final int MAX_WORD_LENGTH = 256;
+
+	private static boolean isWordChar(char c) {
+		if (c < 0x80)
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '@';
+		return Character.isLetterOrDigit(c);
+	}
+
+	private int mEnd = -1;
+
+	private int mGeneration;
+
+	private int mStart = -1;
+
+	private CharSequence mText;
+
+	/**
+	 * Find the word containing the offset or ending at it; when there is none, the character at the offset is taken
+	 *
+	 * @param generation
+	 *            Edit count of the text, a cached result is reused only if it did not change
+	 * @return false if the offset is at the end of the text and not preceded by a word
+	 */
+	public boolean find(CharSequence text, int offset, int generation) {
+		if (text == mText && generation == mGeneration && mStart >= 0 && offset > mStart && offset < mEnd)
+			return true;
+		mText = text;
+		mGeneration = generation;
+
+		final int length = text.length();
+		final int minStart = Math.max(0, offset - MAX_WORD_LENGTH);
+		final int maxEnd = Math.min(length, offset + MAX_WORD_LENGTH);
+		int start = offset, end = offset;
+		if (offset + 1 < length && text.charAt(offset) == '\\' && isWordChar(text.charAt(offset + 1))) {
+			// On the backslash of a command
+			end = offset + 1;
+			while (end < maxEnd && isWordChar(text.charAt(end)))
+				end++;
+		} else {
+			while (start > minStart && isWordChar(text.charAt(start - 1)))
+				start--;
+			while (end < maxEnd && isWordChar(text.charAt(end)))
+				end++;
+			if (start == end) {
+				if (offset >= length) {
+					mStart = mEnd = -1;
+					return false;
+				}
+				end = offset + 1;
+			} else if (start > 0 && text.charAt(start - 1) == '\\' && (start < 2 || text.charAt(start - 2) != '\\')) {
+				// Command, unless the backslash is the second one of a \\ line break
+				start--;
+			}
+		}
+		mStart = start;
+		mEnd = end;
+		return true;
+	}
+
+	/**
+	 * @return the end of the word found by the last successful call to {@link #find(CharSequence, int, int)}
+	 */
+	public int getEnd() {
+		return mEnd;
+	}
+
+	/**
+	 * @return the start of the word found by the last successful call to {@link #find(CharSequence, int, int)}
+	 */
+	public int getStart() {
+		return mStart;
+	}
+
+}
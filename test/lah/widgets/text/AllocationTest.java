@@ -0,0 +1,109 @@
+package lah.widgets.text;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Count the bytes allocated by the indexes of lah.widgets.text on the paths a text view takes while the user types,
+ * moves the cursor and scrolls, which must be none once the indexes are built; plain JVM test, run by its main() on a
+ * HotSpot VM, which counts the allocations per thread
+ *
+ * @author L.A.H.
+ *
+ */
+public class AllocationTest {
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	private static long allocatedBytes() {
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	public static void main(String[] args) {
+		final AllocationTest test = new AllocationTest();
+		// The first session sizes the scratch arrays and builds the trees
+		test.session();
+		final long overhead = -allocatedBytes() + allocatedBytes();
+		final long before = allocatedBytes();
+		test.session();
+		final long allocated = allocatedBytes() - before - overhead;
+		if (allocated != 0)
+			throw new AssertionError(allocated + " bytes allocated by a typing, cursor and scroll session");
+		System.out.println("AllocationTest passed");
+	}
+
+	private final BracketIndex mBrackets;
+
+	private final LineIndex mLineIndex = new LineIndex();
+
+	private final BracketIndex.Match mMatch = new BracketIndex.Match();
+
+	private final MatchList mMatches = new MatchList();
+
+	private final StringBuilder mText;
+
+	private AllocationTest() {
+		final int lines = 2000;
+		mText = new StringBuilder(64 * lines);
+		for (int i = 0; i < lines; i++)
+			mText.append("\\begin{tabular}{ll} a & {b} \\\\ % row\n");
+		mLineIndex.onTextChanged(mText, 0, 0, mText.length());
+		mBrackets = new BracketIndex(mLineIndex);
+		mBrackets.onTextChanged(mText, 0, lines, lines);
+		for (int i = 0; i < lines; i += 10)
+			mMatches.add(mLineIndex.getLineStart(i), mLineIndex.getLineStart(i) + 6);
+	}
+
+	/**
+	 * Move the cursor along a paragraph, matching its brackets at each step
+	 */
+	private void moveCursor(int paragraph) {
+		final int start = mLineIndex.getLineStart(paragraph), end = mLineIndex.getLineEnd(paragraph);
+		for (int offset = start; offset < end; offset++) {
+			mLineIndex.getLineForOffset(offset);
+			mBrackets.findMatch(mText, offset, mMatch);
+		}
+	}
+
+	/**
+	 * Scroll through the text a paragraph at a time, finding the search matches of each screen
+	 */
+	private void scroll() {
+		for (int paragraph = 0; paragraph < mLineIndex.getLineCount(); paragraph++)
+			mMatches.indexOfFirstEndingAfter(mLineIndex.getLineStart(paragraph));
+	}
+
+	private void session() {
+		type(1000, 21, "xyz");
+		moveCursor(1000);
+		type(10, 34, "row");
+		moveCursor(500);
+		scroll();
+	}
+
+	/**
+	 * Type the characters at the column of the paragraph one by one, then delete them one by one, updating the
+	 * indexes as a text view does; the characters are no brackets, as a paragraph gaining or losing a bracket gets a
+	 * token array of the new size
+	 */
+	private void type(int paragraph, int column, String characters) {
+		final int offset = mLineIndex.getLineStart(paragraph) + column;
+		for (int i = 0; i < characters.length(); i++) {
+			mText.insert(offset + i, characters.charAt(i));
+			update(offset + i, 0, 1);
+		}
+		for (int i = characters.length() - 1; i >= 0; i--) {
+			mText.deleteCharAt(offset + i);
+			update(offset + i, 1, 0);
+		}
+	}
+
+	private void update(int start, int before, int after) {
+		final int lineCount = mLineIndex.getLineCount();
+		final int firstLine = mLineIndex.onTextChanged(mText, start, before, after);
+		final int lastLine = mLineIndex.getLineForOffset(start + after);
+		mBrackets.onTextChanged(mText, firstLine, lastLine, mLineIndex.getLineCount() - lineCount);
+		mMatches.onTextChanged(start, before, after);
+	}
+
+}
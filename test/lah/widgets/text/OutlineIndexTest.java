@@ -0,0 +1,100 @@
+package lah.widgets.text;
+
+import java.util.Random;
+
+/**
+ * Check that the outline updated edit by edit equals the outline of a full rescan, on a scripted case and on random
+ * edits; plain JVM test, run by its main()
+ *
+ * @author L.A.H.
+ *
+ */
+public class OutlineIndexTest {
+
+	/**
+	 * Text with its line index and outline, updated the way a text view updates them
+	 */
+	private static class Session {
+
+		final LineIndex lineIndex = new LineIndex();
+
+		final OutlineIndex outline = new OutlineIndex(lineIndex);
+
+		final StringBuilder text = new StringBuilder();
+
+		void replace(int start, int before, CharSequence insert) {
+			text.replace(start, start + before, insert.toString());
+			final int firstLine = lineIndex.onTextChanged(text, start, before, insert.length());
+			final int lastLine = lineIndex.getLineForOffset(start + insert.length());
+			outline.onTextChanged(text, start, before, insert.length(), firstLine, lastLine);
+		}
+
+	}
+
+	private static final String[] PIECES = { "\\section{A}", "\\subsection*{B}", "\\section[t]", "\\label{x}",
+			"\\ref{y}", "\n", "ab", "{", "}", "[", "]", "\\", "\\\n", "%", "%\\" };
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+
+	private static String dump(OutlineIndex outline) {
+		final StringBuilder sb = new StringBuilder();
+		final OutlineIndex.EntryList[] lists = { outline.getSections(), outline.getLabels(), outline.getRefs() };
+		for (OutlineIndex.EntryList list : lists) {
+			for (int i = 0; i < list.getCount(); i++)
+				sb.append(list.getStart(i)).append(':').append(list.getArgumentStart(i)).append('-')
+						.append(list.getArgumentEnd(i)).append(':').append(list.getLevel(i)).append(' ');
+			sb.append('|');
+		}
+		return sb.toString();
+	}
+
+	public static void main(String[] args) {
+		testCommandAcrossParagraphs();
+		testRandomEdits();
+		System.out.println("OutlineIndexTest passed");
+	}
+
+	private static String rescan(CharSequence text) {
+		final LineIndex lineIndex = new LineIndex();
+		lineIndex.onTextChanged(text, 0, 0, text.length());
+		final OutlineIndex outline = new OutlineIndex(lineIndex);
+		outline.onTextChanged(text, 0, 0, text.length(), 0, lineIndex.getLineCount() - 1);
+		return dump(outline);
+	}
+
+	/**
+	 * A command whose [short title] or argument is cut by a line break has no entry, so deleting its brace in the
+	 * next paragraph leaves nothing stale
+	 */
+	private static void testCommandAcrossParagraphs() {
+		final String[] texts = { "\\section[\n{T}", "\\label{a\\\n}", "\\ref{a%\n}" };
+		for (String s : texts) {
+			final Session session = new Session();
+			session.replace(0, 0, s);
+			check(session.outline.getSections().getCount() + session.outline.getLabels().getCount()
+					+ session.outline.getRefs().getCount() == 0, "entry across paragraphs in " + s);
+			session.replace(s.indexOf('\n') + 1, 1, "");
+			check(dump(session.outline).equals(rescan(session.text)), "stale entry after editing " + s);
+		}
+	}
+
+	private static void testRandomEdits() {
+		final Random random = new Random(1);
+		final Session session = new Session();
+		for (int edit = 0; edit < 20000; edit++) {
+			final int start = random.nextInt(session.text.length() + 1);
+			final int before = Math.min(random.nextInt(6), session.text.length() - start);
+			final StringBuilder insert = new StringBuilder();
+			for (int i = random.nextInt(4); i > 0; i--)
+				insert.append(PIECES[random.nextInt(PIECES.length)]);
+			session.replace(start, before, insert);
+			if (edit % 7 == 0)
+				check(dump(session.outline).equals(rescan(session.text)), "outline differs from a rescan after edit "
+						+ edit);
+		}
+	}
+
+}